@@ -5,11 +5,13 @@ import org.jetbrains.bio.genome.coverage.AutoFragment
 import org.jetbrains.bio.genome.coverage.Coverage
 import org.jetbrains.bio.genome.coverage.Fragment
 import org.jetbrains.bio.genome.query.ReadsQuery
+import org.jetbrains.bio.util.await
 import org.jetbrains.bio.util.isAccessible
 import org.jetbrains.bio.util.size
 import org.slf4j.LoggerFactory
 import java.net.URI
 import java.nio.file.Path
+import java.util.concurrent.Callable
 import java.util.stream.Collectors
 import java.util.stream.Stream
 
@@ -68,14 +70,60 @@ object PeaksInfo {
         return result
     }
 
+    /**
+     * Computes the fraction of reads in peaks averaged over the [coverages].
+     * The tags inside the overlapping peaks are counted once per peak.
+     */
     private fun frip(genomeQuery: GenomeQuery, peakLocations: List<Location>, coverages: List<Coverage>): Double {
         val frip = coverages.map { coverage ->
-            1.0 * peakLocations.map { coverage.getBothStrandsCoverage(it.toChromosomeRange()).toLong() }.sum() /
-                    genomeQuery.get().map {
-                        coverage.getBothStrandsCoverage(ChromosomeRange(0, it.length, it)).toLong()
-                    }.sum()
+            val inPeaks = peaksCounts(peakLocations, coverage).map { it.toLong() }.sum()
+            val total = genomeQuery.get().map {
+                coverage.getBothStrandsCoverage(ChromosomeRange(0, it.length, it)).toLong()
+            }.sum()
+            1.0 * inPeaks / total
         }.average()
         LOG.debug("Frip: $frip")
         return frip
     }
+
+    /**
+     * Returns the number of tags on both strands inside each of the [peaks].
+     *
+     * The peaks of each chromosome are sorted once and swept against the sorted
+     * tags instead of searching the tags for each peak independently, see
+     * [Coverage.getCoverage]. Chromosomes are processed in parallel.
+     */
+    fun peaksCounts(peaks: List<Location>, coverage: Coverage): IntArray {
+        val counts = IntArray(peaks.size)
+        peaks.indices.groupBy { peaks[it].chromosome }.map { (chromosome, indices) ->
+            Callable {
+                val byStart = indices.sortedBy { peaks[it].startOffset }.toIntArray()
+                val byEnd = indices.sortedBy { peaks[it].endOffset }.toIntArray()
+                // The number of tags inside [start, end) is the number of tags before
+                // the end minus the number of tags before the start. Both are counted
+                // for windows with a common far left bound, which are trivially sorted.
+                val lefts = IntArray(indices.size) { SWEEP_LEFT_BOUND }
+                val starts = IntArray(indices.size) { peaks[byStart[it]].startOffset }
+                val ends = IntArray(indices.size) { peaks[byEnd[it]].endOffset }
+                val before = IntArray(indices.size)
+                for (strand in Strand.values()) {
+                    coverage.getCoverage(chromosome, strand, lefts, starts, before)
+                    for (i in byStart.indices) {
+                        counts[byStart[i]] -= before[i]
+                    }
+                    coverage.getCoverage(chromosome, strand, lefts, ends, before)
+                    for (i in byEnd.indices) {
+                        counts[byEnd[i]] += before[i]
+                    }
+                }
+            }
+        }.await(parallel = true)
+        return counts
+    }
+
+    /**
+     * Left bound of the sweep windows, far enough from any tag even
+     * after the fragment shift is applied.
+     */
+    private const val SWEEP_LEFT_BOUND = Int.MIN_VALUE / 2
 }
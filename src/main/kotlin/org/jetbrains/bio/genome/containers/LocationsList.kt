@@ -5,13 +5,18 @@ import kotlinx.support.jdk7.use
 import org.jetbrains.bio.big.BedEntry
 import org.jetbrains.bio.genome.*
 import org.jetbrains.bio.genome.format.BedFormat
+import org.jetbrains.bio.genome.format.BedScanner
+import org.jetbrains.bio.genome.format.scanBedChunks
 import org.jetbrains.bio.genome.format.toBedEntry
 import org.jetbrains.bio.genome.format.unpackRegularFields
 import org.jetbrains.bio.viktor.KahanSum
+import org.slf4j.LoggerFactory
 import java.io.IOException
+import java.io.InputStream
 import java.io.Reader
 import java.nio.file.Path
 import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
 
 abstract class LocationsList<T : RangesList> : GenomeStrandMapLike<List<Location>> {
     abstract val rangeLists: GenomeStrandMap<T>
@@ -130,6 +135,8 @@ abstract class LocationsList<T : RangesList> : GenomeStrandMapLike<List<Location
     }
 
     companion object {
+        private val LOG = LoggerFactory.getLogger(LocationsList::class.java)
+
         val EXTBED_2_LOC_FUN: (Chromosome, BedEntry, BedFormat) -> Location = { chr, e, fmt ->
             val ex = e.unpackRegularFields(fmt)
             Location(ex.start, ex.end, chr, ex.strand.toStrand())
@@ -154,6 +161,92 @@ abstract class LocationsList<T : RangesList> : GenomeStrandMapLike<List<Location
             }
             return builder.build()
         }
+
+        /**
+         * Same as above with [EXTBED_2_LOC_FUN], but reads the BED records
+         * from the raw bytes of [input] without allocating an entry per line,
+         * see [BedScanner].
+         *
+         * The scanner is lenient, so the lines which can't be parsed, including
+         * the ones with a malformed score or strand, are skipped rather than
+         * failing the load. The number of the skipped lines is logged as a warning.
+         */
+        @Throws(IOException::class)
+        fun <T> load(
+            builder: LocationsListBuilder<T>,
+            input: InputStream,
+            src: String,
+            format: BedFormat
+        ): T {
+            BedScanner(input, format, src).use { scanner ->
+                scanner.forEachLocation(builder.genomeQuery) { chromosome, strand, start, end ->
+                    builder.add(chromosome, strand, start, end)
+                }
+                warnLinesFailedToParse(src, scanner.linesFailedToParse)
+            }
+            return builder.build()
+        }
+
+        /**
+         * Same as above, but scans the chunks of a large BED file concurrently,
+         * see [scanBedChunks]. Each chunk is collected into ranges sorted per
+         * chromosome and strand, so that the builder only has to merge them.
+         * The lines which can't be parsed are skipped and counted, same as above.
+         */
+        @Throws(IOException::class)
+        fun <T> load(
+            builder: LocationsListBuilder<T>,
+            path: Path,
+            format: BedFormat
+        ): T {
+            val gq = builder.genomeQuery
+            val linesFailedToParse = AtomicInteger()
+            val chunks = scanBedChunks(path, format) { scanner ->
+                val ranges = genomeStrandMap(gq) { _, _ -> arrayListOf<Range>() }
+                scanner.forEachLocation(gq) { chromosome, strand, start, end ->
+                    ranges[chromosome, strand].add(Range(start, end))
+                }
+                gq.get().forEach { chromosome ->
+                    ranges[chromosome, Strand.PLUS].sort()
+                    ranges[chromosome, Strand.MINUS].sort()
+                }
+                linesFailedToParse.addAndGet(scanner.linesFailedToParse)
+                ranges
+            }
+            warnLinesFailedToParse(path.toString(), linesFailedToParse.get())
+            // The builders sort the ranges with TimSort, which detects the already
+            // sorted runs, so the chunks are effectively merged.
+            for (ranges in chunks) {
+                gq.get().forEach { chromosome ->
+                    builder.addAll(chromosome, Strand.PLUS, ranges[chromosome, Strand.PLUS])
+                    builder.addAll(chromosome, Strand.MINUS, ranges[chromosome, Strand.MINUS])
+                }
+            }
+            return builder.build()
+        }
+
+        private fun warnLinesFailedToParse(src: String, linesFailedToParse: Int) {
+            if (linesFailedToParse > 0) {
+                LOG.warn("$src: skipped $linesFailedToParse BED lines which failed to parse")
+            }
+        }
+
+        private inline fun BedScanner.forEachLocation(
+            gq: GenomeQuery,
+            consumer: (Chromosome, Strand, Int, Int) -> Unit
+        ) {
+            // Chromosomes by the scanner chromosome index.
+            val chromosomes = ArrayList<Chromosome?>()
+            while (next()) {
+                while (chromosomes.size < chromosomesCount) {
+                    chromosomes.add(gq[chromosomeName(chromosomes.size)])
+                }
+                val chromosome = chromosomes[chromosomeIndex]
+                if (chromosome != null) {
+                    consumer(chromosome, strand.toStrand(), start, end)
+                }
+            }
+        }
     }
 }
 
@@ -168,4 +261,13 @@ abstract class LocationsListBuilder<T>(val genomeQuery: GenomeQuery) {
         return this
     }
 
+    fun add(chromosome: Chromosome, strand: Strand, startOffset: Int, endOffset: Int): LocationsListBuilder<T> {
+        ranges[chromosome, strand].add(Range(startOffset, endOffset))
+        return this
+    }
+
+    internal fun addAll(chromosome: Chromosome, strand: Strand, ranges: Collection<Range>) {
+        this.ranges[chromosome, strand].addAll(ranges)
+    }
+
 }
@@ -92,9 +92,11 @@ class LocationsMergingList private constructor(
             path: Path,
             format: BedFormat = BedFormat.auto(path),
             entry2LocationFun: (Chromosome, BedEntry, BedFormat) -> Location = EXTBED_2_LOC_FUN
-        ) = load(
-            gq, path.bufferedReader(), "${path.toAbsolutePath()}", format, entry2LocationFun
-        )
+        ) = if (entry2LocationFun === LocationsList.EXTBED_2_LOC_FUN) {
+            LocationsList.load(builder(gq), path, format)
+        } else {
+            load(gq, path.bufferedReader(), "${path.toAbsolutePath()}", format, entry2LocationFun)
+        }
 
         @Throws(IOException::class)
         fun load(
@@ -54,9 +54,11 @@ class LocationsSortedList private constructor(
             path: Path,
             format: BedFormat = BedFormat.auto(path),
             entry2LocationFun: (Chromosome, BedEntry, BedFormat) -> Location = LocationsList.EXTBED_2_LOC_FUN
-        ) = load(
-            gq, path.bufferedReader(), "${path.toAbsolutePath()}", format, entry2LocationFun
-        )
+        ) = if (entry2LocationFun === LocationsList.EXTBED_2_LOC_FUN) {
+            LocationsList.load(builder(gq), path, format)
+        } else {
+            load(gq, path.bufferedReader(), "${path.toAbsolutePath()}", format, entry2LocationFun)
+        }
 
         @Throws(IOException::class)
         fun load(
@@ -2,13 +2,25 @@ package org.jetbrains.bio.genome.containers
 
 import gnu.trove.list.TIntList
 import gnu.trove.list.array.TIntArrayList
+import kotlinx.support.jdk7.use
 import org.jetbrains.bio.genome.Location
 import org.jetbrains.bio.genome.Range
+import org.jetbrains.bio.npy.NpzFile
+import java.io.IOException
+import java.nio.file.Path
 
 
 /**
  * A container for possibly overlapping ranges. Which doesn't merge overlapping ranges.
  *
+ * The queries are answered with an implicit interval tree over the ranges sorted
+ * by start offsets: the range in the middle of the array is the root, the ranges
+ * in the middle of each half are its children and so on. Each node is augmented
+ * with the max end offset of its subtree, so that the subtrees ending before the
+ * query are skipped and a single query takes O(log n + k) for k reported ranges.
+ * The augmentation is computed once per list on the first query and can be saved
+ * along with the list, see [saveIndexed].
+ *
  * // TODO: optional 'uniq' mode
  *
  * @see [org.jetbrains.bio.genome.Range] for details.
@@ -16,9 +28,21 @@ import org.jetbrains.bio.genome.Range
  */
 class RangesSortedList internal constructor(
     startOffsets: TIntList,
-    endOffsets: TIntList
+    endOffsets: TIntList,
+    indexedMaxEnds: IntArray? = null
 ) : BaseRangesList(startOffsets, endOffsets) {
 
+    /** Max end offset of the subtree rooted at each range, see [search]. */
+    private val maxEnds: IntArray by lazy(LazyThreadSafetyMode.PUBLICATION) {
+        indexedMaxEnds ?: computeMaxEnds()
+    }
+
+    init {
+        require(indexedMaxEnds == null || indexedMaxEnds.size == size) {
+            "Expected $size max end offsets, but was ${indexedMaxEnds!!.size}"
+        }
+    }
+
     /**
      * Leaves only ranges intersecting some range form other
      *
@@ -32,58 +56,164 @@ class RangesSortedList internal constructor(
      * OTHER 6  |-|     |----|              : +
      */
     override fun overlapRanges(startOffset: Int, endOffset: Int): Boolean {
-        val rangesNumber = size
-        for (idx in 0 until rangesNumber) {
-            if (startOffsets[idx] >= endOffset) {
-                // cannot overlap here and further, start offsets are sorted
-                return false
-            }
-
-            if (endOffsets[idx] > startOffset) {
-                return true
-            }
-
+        var found = false
+        search(endOffset, startOffset) {
+            found = true
+            false
         }
-        return false
+        return found
     }
 
     override fun includesRange(startOffset: Int, endOffset: Int): Boolean {
-        val rangesNumber = size
-        for (idx in 0 until rangesNumber) {
-            if (startOffset < startOffsets[idx]) {
-                // cannot contain here and further, start offsets are sorted
-                return false
-            }
-
-            if (endOffset <= endOffsets[idx]) {
-                return true
-            }
-
+        var found = false
+        // start <= startOffset and end >= endOffset
+        search(startOffset + 1, endOffset - 1) {
+            found = true
+            false
         }
-        return false
+        return found
     }
 
     override fun intersectRanges(startOffset: Int, endOffset: Int): List<Range> {
-        val rangesNumber = size
-
         val result = arrayListOf<Range>()
-
-        for (idx in 0 until rangesNumber) {
-            if (startOffsets[idx] >= endOffset) {
-                // cannot intersect here and further, start offsets are sorted
-                break
+        search(endOffset, startOffset) { idx ->
+            val start = kotlin.math.max(startOffset, startOffsets[idx])
+            val end = kotlin.math.min(endOffset, endOffsets[idx])
+            if (start < end) {
+                result.add(Range(start, end))
             }
+            true
+        }
+        return result
+    }
 
-            if (endOffsets[idx] > startOffset) {
-                val start = kotlin.math.max(startOffset, startOffsets[idx])
-                val end = kotlin.math.min(endOffset, endOffsets[idx])
-                if(start < end) {
-                    result.add(Range(start, end))
+    /**
+     * Passes the indices of the ranges with start offset less than [startBound]
+     * and end offset greater than [endBound] to [consumer] in the list order,
+     * until [consumer] returns false.
+     *
+     * Range `i` is a node of level `k` if `i` has exactly `k` trailing ones,
+     * its children are `i -/+ 2^(k - 1)`. The nodes past the end of the list are
+     * virtual, their subtrees are still traversed. Small subtrees are scanned
+     * linearly. Same as in `cgranges` by Heng Li.
+     */
+    private inline fun search(startBound: Int, endBound: Int, consumer: (Int) -> Boolean) {
+        val n = size
+        if (n == 0) {
+            return
+        }
+        val maxEnds = this.maxEnds
+        val maxLevel = 31 - Integer.numberOfLeadingZeros(n)
+        // Each level holds at most a revisited node and its left child.
+        val nodes = IntArray(2 * maxLevel + 2)
+        val levels = IntArray(nodes.size)
+        val visited = BooleanArray(nodes.size)
+        var top = 0
+        nodes[top] = (1 shl maxLevel) - 1
+        levels[top] = maxLevel
+        visited[top++] = false
+        while (top > 0) {
+            top--
+            val node = nodes[top]
+            val level = levels[top]
+            if (level <= LINEAR_SCAN_LEVEL) {
+                val from = node shr level shl level
+                val to = kotlin.math.min(n, from + (1 shl (level + 1)) - 1)
+                var idx = from
+                while (idx < to && startOffsets[idx] < startBound) {
+                    if (endOffsets[idx] > endBound && !consumer(idx)) {
+                        return
+                    }
+                    idx++
+                }
+            } else if (!visited[top]) {
+                // Revisit the node after its left subtree.
+                visited[top++] = true
+                val left = node - (1 shl (level - 1))
+                if (left >= n || maxEnds[left] > endBound) {
+                    nodes[top] = left
+                    levels[top] = level - 1
+                    visited[top++] = false
+                }
+            } else if (node < n && startOffsets[node] < startBound) {
+                if (endOffsets[node] > endBound && !consumer(node)) {
+                    return
                 }
+                nodes[top] = node + (1 shl (level - 1))
+                levels[top] = level - 1
+                visited[top++] = false
+            }
+        }
+    }
+
+    private fun computeMaxEnds(): IntArray {
+        val n = size
+        val result = IntArray(n) { endOffsets[it] }
+        if (n == 0) {
+            return result
+        }
+        // The last real node of the current level and the max end of its subtree,
+        // used in place of the virtual right children.
+        var lastIdx = (n - 1) and 1.inv()
+        var last = result[lastIdx]
+        var level = 1
+        while (1 shl level <= n) {
+            val half = 1 shl (level - 1)
+            var idx = (half shl 1) - 1
+            while (idx < n) {
+                val left = result[idx - half]
+                val right = if (idx + half < n) result[idx + half] else last
+                result[idx] = kotlin.math.max(result[idx], kotlin.math.max(left, right))
+                idx += half shl 2
+            }
+            lastIdx = if ((lastIdx shr level) and 1 != 0) lastIdx - half else lastIdx + half
+            if (lastIdx < n && result[lastIdx] > last) {
+                last = result[lastIdx]
             }
+            level++
         }
+        return result
+    }
 
-        return result;
+    /**
+     * Saves the ranges along with the query index, so that [loadIndexed]
+     * doesn't have to recompute it.
+     */
+    @Throws(IOException::class)
+    fun saveIndexed(path: Path) = NpzFile.write(path).use { writer ->
+        writer.write(VERSION_FIELD, intArrayOf(VERSION))
+        writer.write(START_OFFSETS_FIELD, startOffsets.toArray())
+        writer.write(END_OFFSETS_FIELD, endOffsets.toArray())
+        writer.write(MAX_ENDS_FIELD, maxEnds)
+    }
+
+    companion object {
+        /**
+         * Binary storage format version. Loader will throw an [IllegalStateException]
+         * if it doesn't match.
+         */
+        const val VERSION = 1
+        const val VERSION_FIELD = "version"
+
+        private const val START_OFFSETS_FIELD = "start_offsets"
+        private const val END_OFFSETS_FIELD = "end_offsets"
+        private const val MAX_ENDS_FIELD = "max_ends"
+
+        /** Subtrees of this level or lower, i.e. up to 15 ranges, are scanned linearly. */
+        private const val LINEAR_SCAN_LEVEL = 3
+
+        @Throws(IOException::class)
+        fun loadIndexed(path: Path): RangesSortedList = NpzFile.read(path).use { reader ->
+            val version = reader[VERSION_FIELD].asIntArray().single()
+            check(version == VERSION) {
+                "$path ranges version is $version instead of $VERSION"
+            }
+            RangesSortedList(
+                TIntArrayList.wrap(reader[START_OFFSETS_FIELD].asIntArray()),
+                TIntArrayList.wrap(reader[END_OFFSETS_FIELD].asIntArray()),
+                reader[MAX_ENDS_FIELD].asIntArray()
+            )
+        }
     }
 }
 
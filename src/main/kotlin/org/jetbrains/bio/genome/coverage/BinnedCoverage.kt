@@ -0,0 +1,149 @@
+package org.jetbrains.bio.genome.coverage
+
+import com.google.common.base.MoreObjects
+import com.google.common.math.IntMath
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.genome.Chromosome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.Strand
+import org.jetbrains.bio.genome.containers.GenomeMap
+import org.jetbrains.bio.genome.containers.genomeMap
+import org.jetbrains.bio.npy.NpzFile
+import org.jetbrains.bio.viktor.F64Array
+import org.jetbrains.bio.viktor.asF64Array
+import java.io.IOException
+import java.math.RoundingMode
+import java.nio.file.Path
+
+/**
+ * Genome-wide tag counts in consecutive bins of [binSize] bp.
+ * Immutable. Saves data in [NpzFile] format.
+ *
+ * Bins follow the [org.jetbrains.bio.genome.Range.slice] convention, i.e.
+ * each chromosome is covered by `ceil(length / binSize)` bins with the last
+ * bin possibly being shorter. The count of a bin is equal to
+ * [Coverage.getBothStrandsCoverage] of its range, fragment shift included.
+ */
+class BinnedCoverage private constructor(
+        val genomeQuery: GenomeQuery,
+        val binSize: Int,
+        internal val data: GenomeMap<IntArray>
+) {
+
+    /**
+     * Returns the bin counts for a given [chromosome].
+     * The array is shared, so it must not be modified.
+     */
+    operator fun get(chromosome: Chromosome): IntArray = data[chromosome]
+
+    /**
+     * Returns a copy of the bin counts for a given [chromosome].
+     */
+    fun getF64Array(chromosome: Chromosome): F64Array {
+        val counts = data[chromosome]
+        return DoubleArray(counts.size) { counts[it].toDouble() }.asF64Array()
+    }
+
+    @Throws(IOException::class)
+    internal fun save(outputPath: Path) {
+        NpzFile.write(outputPath).use { writer ->
+            writer.write(VERSION_FIELD, intArrayOf(VERSION))
+            writer.write(BIN_SIZE_FIELD, intArrayOf(binSize))
+            for (chromosome in genomeQuery.get()) {
+                writer.write(chromosome.name, data[chromosome])
+            }
+        }
+    }
+
+    override fun toString() = MoreObjects.toStringHelper(this)
+            .addValue(genomeQuery)
+            .add("bin", binSize).toString()
+
+    companion object {
+
+        /**
+         * Binary storage format version. Loader will throw an [IllegalStateException]
+         * if it doesn't match.
+         */
+        const val VERSION = 1
+        const val VERSION_FIELD = "version"
+        const val BIN_SIZE_FIELD = "bin_size"
+
+        /**
+         * Bins the [coverage] in one linear pass over the tags of each
+         * chromosome and strand, chromosomes are processed in parallel.
+         */
+        fun of(coverage: Coverage, binSize: Int): BinnedCoverage {
+            require(binSize > 0) { "bin size should be positive, got: $binSize" }
+            val data = genomeMap(coverage.genomeQuery, parallel = true) { chromosome ->
+                binCounts(coverage, chromosome, binSize)
+            }
+            return BinnedCoverage(coverage.genomeQuery, binSize, data)
+        }
+
+        /**
+         * Returns the bin counts of [coverage] for a given [chromosome].
+         * Requires a single pass over the tags of the chromosome.
+         */
+        internal fun binCounts(coverage: Coverage, chromosome: Chromosome, binSize: Int): IntArray {
+            val counts = IntArray(binsCount(chromosome, binSize))
+            when (coverage) {
+                is SingleEndCoverage -> for (strand in Strand.values()) {
+                    coverage.data[chromosome, strand].bin(
+                            binSize, coverage.shift(strand), chromosome.length, counts
+                    )
+                }
+                is PairedEndCoverage ->
+                    coverage.data[chromosome].bin(binSize, 0, chromosome.length, counts)
+                else -> {
+                    // Fall back to the batch query for foreign implementations.
+                    val starts = IntArray(counts.size) { it * binSize }
+                    val ends = IntArray(counts.size) {
+                        Math.min(chromosome.length, (it + 1) * binSize)
+                    }
+                    val strandCounts = IntArray(counts.size)
+                    for (strand in Strand.values()) {
+                        coverage.getCoverage(chromosome, strand, starts, ends, strandCounts)
+                        for (i in counts.indices) {
+                            counts[i] += strandCounts[i]
+                        }
+                    }
+                }
+            }
+            return counts
+        }
+
+        internal fun binsCount(chromosome: Chromosome, binSize: Int) =
+                IntMath.divide(chromosome.length, binSize, RoundingMode.CEILING)
+
+        @Throws(IOException::class)
+        internal fun load(inputPath: Path, genomeQuery: GenomeQuery): BinnedCoverage {
+            return NpzFile.read(inputPath).use { reader ->
+                val version = reader[VERSION_FIELD].asIntArray().single()
+                check(version == VERSION) {
+                    "$inputPath binned coverage version is $version instead of $VERSION"
+                }
+
+                val binSize = reader[BIN_SIZE_FIELD].asIntArray().single()
+                val data = genomeMap(genomeQuery) { chromosome ->
+                    val counts = try {
+                        reader[chromosome.name].asIntArray()
+                    } catch (e: IllegalStateException) {
+                        throw IllegalStateException(
+                                "Cache file $inputPath doesn't contain ${chromosome.name}.\n" +
+                                        "If problem persists, delete the cache file $inputPath " +
+                                        "and it will be recreated with correct settings.",
+                                e
+                        )
+                    }
+                    check(counts.size == binsCount(chromosome, binSize)) {
+                        "$inputPath has ${counts.size} bins for ${chromosome.name} " +
+                                "instead of ${binsCount(chromosome, binSize)}"
+                    }
+                    counts
+                }
+                BinnedCoverage(genomeQuery, binSize, data)
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.jetbrains.bio.genome.coverage
+
+import com.google.common.base.MoreObjects
+import org.jetbrains.bio.dataframe.DataFrame
+import org.jetbrains.bio.dataframe.IntColumn
+import org.jetbrains.bio.genome.Chromosome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.containers.GenomeMap
+import org.jetbrains.bio.genome.containers.genomeMap
+import org.jetbrains.bio.viktor.F64Array
+
+/**
+ * Tag counts of several libraries in a shared grid of consecutive [binSize] bp bins,
+ * one column per library. Immutable.
+ *
+ * The bins follow the [BinnedCoverage] convention. All the libraries are binned
+ * in a single sweep per chromosome, chromosomes are processed in parallel, so it's
+ * much cheaper than querying each library separately for the same windows.
+ */
+class CoverageMatrix private constructor(
+        val genomeQuery: GenomeQuery,
+        val binSize: Int,
+        val labels: List<String>,
+        private val data: GenomeMap<List<IntArray>>
+) {
+
+    /**
+     * Number of libraries, i.e. columns.
+     */
+    val size: Int get() = labels.size
+
+    /**
+     * Returns the bin counts of the library at [index] for a given [chromosome].
+     * The array is shared, so it must not be modified.
+     */
+    operator fun get(chromosome: Chromosome, index: Int): IntArray = data[chromosome][index]
+
+    /**
+     * Returns a copy of the bin counts for a given [chromosome] as
+     * a matrix of shape `bins x libraries`.
+     */
+    fun getF64Array(chromosome: Chromosome): F64Array {
+        val columns = data[chromosome]
+        val bins = BinnedCoverage.binsCount(chromosome, binSize)
+        val result = F64Array(bins, size)
+        for (j in columns.indices) {
+            val counts = columns[j]
+            for (i in 0 until bins) {
+                result[i, j] = counts[i].toDouble()
+            }
+        }
+        return result
+    }
+
+    /**
+     * Returns the bin counts for a given [chromosome] as a data frame with
+     * an integer column per library, labeled with [labels].
+     * The columns share the data with the matrix.
+     */
+    fun dataFrame(chromosome: Chromosome): DataFrame = DataFrame(
+            BinnedCoverage.binsCount(chromosome, binSize),
+            data[chromosome].mapIndexed { j, counts -> IntColumn(labels[j], counts) }
+    )
+
+    override fun toString() = MoreObjects.toStringHelper(this)
+            .addValue(genomeQuery)
+            .add("bin", binSize)
+            .add("labels", labels).toString()
+
+    companion object {
+
+        /**
+         * Bins all the [coverages] at once. The coverages should share the genome query,
+         * [labels] defaults to the library indices.
+         */
+        fun of(
+                coverages: List<Coverage>,
+                binSize: Int,
+                labels: List<String> = coverages.indices.map { it.toString() }
+        ): CoverageMatrix {
+            require(binSize > 0) { "bin size should be positive, got: $binSize" }
+            require(coverages.isNotEmpty()) { "no coverages given" }
+            require(labels.size == coverages.size) {
+                "expected ${coverages.size} labels, got: ${labels.size}"
+            }
+            require(labels.toSet().size == labels.size) { "labels are not unique: $labels" }
+            val genomeQuery = coverages.first().genomeQuery
+            require(coverages.all { it.genomeQuery == genomeQuery }) {
+                "coverages have different genome queries"
+            }
+
+            val data = genomeMap(genomeQuery, parallel = true) { chromosome ->
+                coverages.map { BinnedCoverage.binCounts(it, chromosome, binSize) }
+            }
+            return CoverageMatrix(genomeQuery, binSize, labels, data)
+        }
+    }
+}
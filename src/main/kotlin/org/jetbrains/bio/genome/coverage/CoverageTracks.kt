@@ -0,0 +1,208 @@
+package org.jetbrains.bio.genome.coverage
+
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.big.BedGraphSection
+import org.jetbrains.bio.big.BigWigFile
+import org.jetbrains.bio.genome.Chromosome
+import org.jetbrains.bio.genome.Strand
+import org.jetbrains.bio.util.bufferedWriter
+import org.jetbrains.bio.util.parallelismLevel
+import java.io.IOException
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/**
+ * The signal exported by [saveBigWig] and [saveBedGraph].
+ */
+enum class TrackSignal {
+    /** The number of tags in each bin, see [BinnedCoverage]. */
+    TAGS,
+    /**
+     * The number of fragments overlapping each bin. Single-end tags are
+     * extended to the fragment size, paired-end coverage has to have the
+     * fragment lengths, see [PairedEndCoverage.getFragmentPileup].
+     */
+    FRAGMENTS
+}
+
+/**
+ * Saves the coverage binned into consecutive [binSize] bp bins as a bigWig track.
+ *
+ * If [rpm] is true, the values are normalized to reads per million, i.e. divided
+ * by the depth in millions. Chromosomes are binned in parallel and streamed into
+ * the writer in the [org.jetbrains.bio.genome.GenomeQuery] order, the writer
+ * computes [zoomLevelCount] zoom levels on its own.
+ */
+@Throws(IOException::class)
+fun Coverage.saveBigWig(
+        outputPath: Path,
+        binSize: Int,
+        signal: TrackSignal = TrackSignal.TAGS,
+        rpm: Boolean = false,
+        zoomLevelCount: Int = 8
+) {
+    val scale = trackScale(rpm)
+    mapTracks(binSize, signal) { chromosome, counts ->
+        if (counts.all { it == 0 }) {
+            // The writer doesn't need empty sections.
+            null
+        } else {
+            val section = BedGraphSection(chromosome.name)
+            forEachRun(chromosome, binSize, counts) { start, end, count ->
+                section.set(start, end, (count * scale).toFloat())
+            }
+            section
+        }
+    }.use { sections ->
+        BigWigFile.write(
+                sections.filterNotNull().asIterable(),
+                genomeQuery.get().map { it.name to it.length },
+                outputPath,
+                zoomLevelCount
+        )
+    }
+}
+
+/**
+ * Saves the coverage binned into consecutive [binSize] bp bins as a bedGraph track,
+ * see [saveBigWig]. Runs of bins with equal values are merged, empty bins are omitted.
+ */
+@Throws(IOException::class)
+fun Coverage.saveBedGraph(
+        outputPath: Path,
+        binSize: Int,
+        signal: TrackSignal = TrackSignal.TAGS,
+        rpm: Boolean = false
+) {
+    val scale = trackScale(rpm)
+    outputPath.bufferedWriter().use { writer ->
+        mapTracks(binSize, signal) { chromosome, counts -> chromosome to counts }.use { tracks ->
+            for ((chromosome, counts) in tracks) {
+                forEachRun(chromosome, binSize, counts) { start, end, count ->
+                    val value = if (rpm) (count * scale).toFloat().toString() else count.toString()
+                    writer.write("${chromosome.name}\t$start\t$end\t$value\n")
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Returns the track values of [coverage] for a given [chromosome], see [TrackSignal].
+ */
+internal fun trackCounts(coverage: Coverage, chromosome: Chromosome, binSize: Int, signal: TrackSignal) =
+        when (signal) {
+            TrackSignal.TAGS -> BinnedCoverage.binCounts(coverage, chromosome, binSize)
+            TrackSignal.FRAGMENTS -> fragmentCounts(coverage, chromosome, binSize)
+        }
+
+/**
+ * Counts the fragments overlapping each bin in a single pass over the tags,
+ * by accumulating the fragment boundaries and summing them up afterwards.
+ */
+private fun fragmentCounts(coverage: Coverage, chromosome: Chromosome, binSize: Int): IntArray {
+    val bins = BinnedCoverage.binsCount(chromosome, binSize)
+    val boundaries = IntArray(bins + 1)
+    val addFragment = { start: Int, end: Int ->
+        val from = Math.max(0, start)
+        val to = Math.min(chromosome.length, end)
+        if (from < to) {
+            boundaries[from / binSize]++
+            boundaries[(to - 1) / binSize + 1]--
+        }
+    }
+    when (coverage) {
+        is SingleEndCoverage -> {
+            val fragment = Math.max(1, coverage.actualFragment)
+            val positive = coverage.data[chromosome, Strand.PLUS]
+            for (i in 0 until positive.size()) {
+                addFragment(positive[i], positive[i] + fragment)
+            }
+            val negative = coverage.data[chromosome, Strand.MINUS]
+            for (i in 0 until negative.size()) {
+                addFragment(negative[i] - fragment + 1, negative[i] + 1)
+            }
+        }
+        is PairedEndCoverage -> {
+            val lengths = checkNotNull(coverage.fragmentLengths) {
+                "Fragment lengths are not available, the cache file has to be recreated"
+            }[chromosome]
+            val tags = coverage.data[chromosome]
+            for (i in 0 until tags.size()) {
+                val start = tags[i] - lengths[i] / 2
+                addFragment(start, start + lengths[i])
+            }
+        }
+        else -> throw IllegalArgumentException(
+                "Fragments are not supported for ${coverage::class.java.simpleName}"
+        )
+    }
+
+    val counts = IntArray(bins)
+    var count = 0
+    for (i in 0 until bins) {
+        count += boundaries[i]
+        counts[i] = count
+    }
+    return counts
+}
+
+private fun Coverage.trackScale(rpm: Boolean) = if (rpm && depth > 0) 1e6 / depth else 1.0
+
+/**
+ * Calls [consumer] for each run of consecutive non-empty bins with equal counts.
+ */
+private inline fun forEachRun(
+        chromosome: Chromosome, binSize: Int, counts: IntArray,
+        consumer: (Int, Int, Int) -> Unit
+) {
+    var i = 0
+    while (i < counts.size) {
+        val count = counts[i]
+        var j = i + 1
+        while (j < counts.size && counts[j] == count) {
+            j++
+        }
+        if (count != 0) {
+            consumer(i * binSize, Math.min(chromosome.length, j * binSize), count)
+        }
+        i = j
+    }
+}
+
+/**
+ * Bins the chromosomes in parallel and maps the results in the genome query
+ * order as they become available.
+ */
+private fun <T> Coverage.mapTracks(
+        binSize: Int, signal: TrackSignal,
+        transform: (Chromosome, IntArray) -> T
+): TrackSequence<T> {
+    require(binSize > 0) { "bin size should be positive, got: $binSize" }
+    val chromosomes = genomeQuery.get()
+    val executor = Executors.newWorkStealingPool(Math.max(1, Math.min(chromosomes.size, parallelismLevel())))
+    val futures = chromosomes.map { chromosome ->
+        chromosome to executor.submit(Callable { trackCounts(this, chromosome, binSize, signal) })
+    }
+    val sequence = futures.asSequence().map { (chromosome, future) ->
+        val counts = try {
+            future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+        transform(chromosome, counts)
+    }
+    return TrackSequence(sequence) { executor.shutdownNow() }
+}
+
+/**
+ * A one-off sequence of tracks which releases the binning threads on [close].
+ */
+private class TrackSequence<T>(
+        private val sequence: Sequence<T>,
+        private val onClose: () -> Unit
+) : Sequence<T> by sequence, AutoCloseable {
+    override fun close() = onClose()
+}
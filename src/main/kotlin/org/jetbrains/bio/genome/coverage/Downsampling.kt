@@ -0,0 +1,78 @@
+package org.jetbrains.bio.genome.coverage
+
+import gnu.trove.list.array.TIntArrayList
+import org.jetbrains.bio.genome.Chromosome
+import org.jetbrains.bio.genome.Strand
+
+/**
+ * Returns a coverage with each tag kept with probability [fraction].
+ *
+ * The decision for each tag is made by a hash of [seed], chromosome, strand,
+ * offset and the index of the tag among the tags with the same offset, so
+ * the result is reproducible and doesn't depend on the order of processing.
+ * Chromosomes are processed in parallel. The fragment size of a single-end
+ * coverage is preserved.
+ */
+fun Coverage.downsample(fraction: Double, seed: Long = 0L): Coverage {
+    require(fraction in 0.0..1.0) { "fraction should be in [0, 1], got: $fraction" }
+    return when (this) {
+        is SingleEndCoverage -> sample(fraction, seed)
+        is PairedEndCoverage -> sample(fraction, seed)
+        else -> throw IllegalArgumentException(
+                "Downsampling is not supported for ${this::class.java.simpleName}"
+        )
+    }
+}
+
+/**
+ * Returns a coverage downsampled to the given expected [depth], see [downsample].
+ * The coverage is returned as is if its depth is already less than [depth].
+ */
+fun Coverage.downsampleTo(depth: Long, seed: Long = 0L): Coverage {
+    require(depth >= 0) { "depth should be non-negative, got: $depth" }
+    return if (depth >= this.depth) this else downsample(depth.toDouble() / this.depth, seed)
+}
+
+/**
+ * Returns the sorted indices of the [tags] kept with probability [fraction],
+ * see [downsample].
+ */
+internal fun sampleTags(
+        tags: TagsList,
+        chromosome: Chromosome, strand: Strand,
+        fraction: Double, seed: Long
+): TIntArrayList {
+    val size = tags.size()
+    val result = TIntArrayList()
+    if (fraction >= 1) {
+        for (i in 0 until size) {
+            result.add(i)
+        }
+        return result
+    }
+
+    val key = mix(mix(seed + chromosome.name.hashCode()) + strand.ordinal)
+    var occurrence = 0
+    for (i in 0 until size) {
+        val offset = tags[i]
+        occurrence = if (i > 0 && tags[i - 1] == offset) occurrence + 1 else 0
+        val hash = mix(mix(key + offset) + occurrence)
+        if ((hash ushr 11) * DOUBLE_UNIT < fraction) {
+            result.add(i)
+        }
+    }
+    return result
+}
+
+/** Maps the upper 53 bits of a hash to [0, 1). */
+private const val DOUBLE_UNIT = 1.0 / (1L shl 53)
+
+/**
+ * SplitMix64 finalizer.
+ */
+private fun mix(value: Long): Long {
+    var h = value + -0x61c8864680b583ebL
+    h = (h xor (h ushr 30)) * -0x40a7b892e31b1a47L
+    h = (h xor (h ushr 27)) * -0x6b2fb644ecceee15L
+    return h xor (h ushr 31)
+}
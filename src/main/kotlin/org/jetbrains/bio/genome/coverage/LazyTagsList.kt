@@ -0,0 +1,92 @@
+package org.jetbrains.bio.genome.coverage
+
+import java.util.*
+
+/**
+ * A tag list which is loaded from a cache file on first access.
+ *
+ * The [size] is known beforehand, so the coverage depth doesn't require
+ * any tags to be loaded. The loaded tags are registered in [cache], which
+ * may evict them later on, in which case they are reloaded on next access.
+ */
+internal class LazyTagsList(
+        private val size: Int,
+        private val cache: ResidentTagsCache,
+        internal val loader: () -> TagsList
+) : TagsList() {
+
+    @Volatile
+    internal var resident: TagsList? = null
+
+    /**
+     * Returns true if the tags are currently loaded.
+     */
+    val isResident: Boolean get() = resident != null
+
+    private fun tags() = resident ?: cache.load(this)
+
+    override fun size() = size
+
+    override fun get(index: Int) = tags()[index]
+
+    override fun toArray(offset: Int, length: Int) = tags().toArray(offset, length)
+
+    override fun binarySearchLeft(target: Int) = tags().binarySearchLeft(target)
+
+    override fun bytes() = resident?.bytes() ?: 0L
+}
+
+/**
+ * Keeps track of the loaded [LazyTagsList]s, so that at most [budget] bytes
+ * of tags are resident at once. When the budget is exceeded, the lists loaded
+ * earliest are evicted. The list being loaded is never evicted, even if it
+ * doesn't fit into the budget on its own.
+ *
+ * All operations are thread-safe.
+ */
+class ResidentTagsCache(val budget: Long) {
+
+    private val queue = ArrayDeque<Pair<LazyTagsList, Long>>()
+    private var residentBytes = 0L
+
+    init {
+        require(budget >= 0) { "budget should be non-negative, got: $budget" }
+    }
+
+    internal fun load(list: LazyTagsList): TagsList {
+        synchronized(list) {
+            val loaded = list.resident
+            if (loaded != null) {
+                return loaded
+            }
+            val tags = list.loader()
+            list.resident = tags
+            admit(list, tags.bytes())
+            return tags
+        }
+    }
+
+    @Synchronized
+    private fun admit(list: LazyTagsList, bytes: Long) {
+        queue.addLast(list to bytes)
+        residentBytes += bytes
+        while (residentBytes > budget && queue.size > 1) {
+            val (evicted, evictedBytes) = queue.removeFirst()
+            evicted.resident = null
+            residentBytes -= evictedBytes
+        }
+    }
+
+    /**
+     * Returns the approximate number of bytes of the resident tags.
+     */
+    @Synchronized
+    fun residentBytes() = residentBytes
+
+    companion object {
+        /**
+         * A cache which never evicts anything.
+         */
+        fun unbounded() = ResidentTagsCache(Long.MAX_VALUE)
+    }
+}
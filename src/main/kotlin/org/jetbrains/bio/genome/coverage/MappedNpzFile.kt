@@ -0,0 +1,219 @@
+package org.jetbrains.bio.genome.coverage
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.IntBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Provides zero-copy access to the uncompressed integer arrays of an NPZ file.
+ *
+ * NPZ is a ZIP archive of NPY files. [org.jetbrains.bio.npy.NpzFile] stores
+ * the entries without compression, so the array data of each entry occupies
+ * a contiguous region of the archive and can be mapped into memory as is.
+ * Entries which can't be mapped (e.g. compressed ones) are reported as
+ * missing, so the caller is expected to fall back to the heap reader.
+ *
+ * The file is only open during construction, the mapped buffers stay
+ * valid after that and are released by the GC.
+ */
+internal class MappedNpzFile(val path: Path) {
+
+    private val entries: Map<String, IntBuffer>
+
+    init {
+        entries = FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+            readCentralDirectory(channel)
+                    .mapNotNull { (name, localHeaderOffset) ->
+                        mapIntArray(channel, localHeaderOffset)?.let { name to it }
+                    }
+                    .toMap()
+        }
+    }
+
+    /**
+     * Returns a read-only view of the integer array stored under [name]
+     * or null if there is no such entry or it can't be mapped.
+     */
+    operator fun get(name: String): IntBuffer? = entries[name]?.duplicate()
+
+    /**
+     * Returns a list of (entry name without the ".npy" suffix,
+     * local header offset) pairs for all stored entries.
+     */
+    private fun readCentralDirectory(channel: FileChannel): List<Pair<String, Long>> {
+        val size = channel.size()
+        val tailSize = Math.min(size, (EOCD_SIZE + MAX_COMMENT_SIZE).toLong()).toInt()
+        val tail = read(channel, size - tailSize, tailSize)
+        var eocd = tailSize - EOCD_SIZE
+        while (eocd >= 0 && tail.getInt(eocd) != EOCD_SIGNATURE) {
+            eocd--
+        }
+        if (eocd < 0) {
+            throw IOException("$path is not a ZIP archive")
+        }
+
+        var entriesCount = tail.getShort(eocd + 10).toLong() and 0xffff
+        var directorySize = tail.getInt(eocd + 12).toLong() and 0xffffffffL
+        var directoryOffset = tail.getInt(eocd + 16).toLong() and 0xffffffffL
+        val locator = eocd - ZIP64_LOCATOR_SIZE
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+            val zip64 = read(channel, tail.getLong(locator + 8), ZIP64_EOCD_SIZE)
+            check(zip64.getInt(0) == ZIP64_EOCD_SIGNATURE) {
+                "$path has a corrupted ZIP64 end of central directory record"
+            }
+            entriesCount = zip64.getLong(32)
+            directorySize = zip64.getLong(40)
+            directoryOffset = zip64.getLong(48)
+        }
+
+        val directory = read(channel, directoryOffset, Math.toIntExact(directorySize))
+        val result = ArrayList<Pair<String, Long>>()
+        var position = 0
+        for (i in 0 until entriesCount) {
+            check(directory.getInt(position) == CENTRAL_HEADER_SIGNATURE) {
+                "$path has a corrupted ZIP central directory"
+            }
+            val method = directory.getShort(position + 10).toInt()
+            val nameLength = directory.getShort(position + 28).toInt() and 0xffff
+            val extraLength = directory.getShort(position + 30).toInt() and 0xffff
+            val commentLength = directory.getShort(position + 32).toInt() and 0xffff
+            var localHeaderOffset = directory.getInt(position + 42).toLong() and 0xffffffffL
+            val name = ByteArray(nameLength).also {
+                (directory.duplicate().position(position + 46) as ByteBuffer).get(it)
+            }.toString(Charsets.US_ASCII)
+            if (localHeaderOffset == 0xffffffffL) {
+                localHeaderOffset = readZip64Offset(
+                        directory, position + 46 + nameLength, extraLength,
+                        directory.getInt(position + 24) == -1,
+                        directory.getInt(position + 20) == -1
+                )
+            }
+
+            if (method == STORED && name.endsWith(NPY_SUFFIX)) {
+                result.add(name.removeSuffix(NPY_SUFFIX) to localHeaderOffset)
+            }
+
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength
+        }
+
+        return result
+    }
+
+    /**
+     * Extracts the local header offset from the ZIP64 extended information
+     * extra field. The field lists only the values which overflowed in the
+     * central header, in a fixed order.
+     */
+    private fun readZip64Offset(
+            directory: ByteBuffer, extraOffset: Int, extraLength: Int,
+            hasUncompressedSize: Boolean, hasCompressedSize: Boolean
+    ): Long {
+        var position = extraOffset
+        while (position < extraOffset + extraLength) {
+            val id = directory.getShort(position).toInt() and 0xffff
+            val length = directory.getShort(position + 2).toInt() and 0xffff
+            if (id == ZIP64_EXTRA_ID) {
+                var field = position + 4
+                if (hasUncompressedSize) field += 8
+                if (hasCompressedSize) field += 8
+                return directory.getLong(field)
+            }
+            position += 4 + length
+        }
+        throw IOException("$path has a ZIP64 entry without extended information")
+    }
+
+    /**
+     * Maps the data of a 1D int32 NPY array stored at [localHeaderOffset]
+     * or returns null if the entry holds something else.
+     */
+    private fun mapIntArray(channel: FileChannel, localHeaderOffset: Long): IntBuffer? {
+        val localHeader = read(channel, localHeaderOffset, LOCAL_HEADER_SIZE)
+        check(localHeader.getInt(0) == LOCAL_HEADER_SIGNATURE) {
+            "$path has a corrupted ZIP local header at $localHeaderOffset"
+        }
+        val nameLength = localHeader.getShort(26).toInt() and 0xffff
+        val extraLength = localHeader.getShort(28).toInt() and 0xffff
+        val npyOffset = localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength
+
+        val preamble = read(channel, npyOffset, NPY_PREAMBLE_SIZE)
+        for (i in NPY_MAGIC.indices) {
+            if (preamble[i] != NPY_MAGIC[i]) {
+                return null
+            }
+        }
+
+        val major = preamble[6].toInt()
+        val headerOffset = if (major == 1) 10 else 12
+        val headerLength = if (major == 1) {
+            preamble.getShort(8).toInt() and 0xffff
+        } else {
+            preamble.getInt(8)
+        }
+        val header = ByteArray(headerLength).also {
+            read(channel, npyOffset + headerOffset, headerLength).get(it)
+        }.toString(Charsets.US_ASCII)
+
+        val descr = DESCR_PATTERN.find(header)?.groupValues?.get(1) ?: return null
+        val order = when (descr) {
+            "<i4" -> ByteOrder.LITTLE_ENDIAN
+            ">i4" -> ByteOrder.BIG_ENDIAN
+            else -> return null
+        }
+        val shape = SHAPE_PATTERN.find(header)?.groupValues?.get(1) ?: return null
+        val dimensions = shape.split(',').map { it.trim() }.filter { it.isNotEmpty() }
+        if (dimensions.size != 1) {
+            return null
+        }
+        val length = dimensions.single().toLong()
+
+        val dataOffset = npyOffset + headerOffset + headerLength
+        if (length == 0L) {
+            return IntBuffer.allocate(0).asReadOnlyBuffer()
+        }
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, length * Integer.BYTES)
+                .order(order)
+                .asIntBuffer()
+    }
+
+    private fun read(channel: FileChannel, position: Long, length: Int): ByteBuffer {
+        val buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN)
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw IOException("Unexpected end of file $path")
+            }
+        }
+        buffer.flip()
+        return buffer
+    }
+
+    companion object {
+        private const val STORED = 0
+        private const val NPY_SUFFIX = ".npy"
+
+        private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+        private const val LOCAL_HEADER_SIZE = 30
+        private const val CENTRAL_HEADER_SIGNATURE = 0x02014b50
+        private const val CENTRAL_HEADER_SIZE = 46
+        private const val EOCD_SIGNATURE = 0x06054b50
+        private const val EOCD_SIZE = 22
+        private const val MAX_COMMENT_SIZE = 0xffff
+        private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+        private const val ZIP64_LOCATOR_SIZE = 20
+        private const val ZIP64_EOCD_SIGNATURE = 0x06064b50
+        private const val ZIP64_EOCD_SIZE = 56
+        private const val ZIP64_EXTRA_ID = 0x0001
+
+        private val NPY_MAGIC = byteArrayOf(0x93.toByte(), 'N'.toByte(), 'U'.toByte(),
+                                            'M'.toByte(), 'P'.toByte(), 'Y'.toByte())
+        private const val NPY_PREAMBLE_SIZE = 12
+
+        private val DESCR_PATTERN = "'descr':\\s*'([^']*)'".toRegex()
+        private val SHAPE_PATTERN = "'shape':\\s*\\(([^)]*)\\)".toRegex()
+    }
+}
@@ -0,0 +1,143 @@
+package org.jetbrains.bio.genome.coverage
+
+import com.google.common.base.MoreObjects
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.genome.Chromosome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.containers.GenomeMap
+import org.jetbrains.bio.genome.containers.genomeMap
+import org.jetbrains.bio.npy.NpzFile
+import org.jetbrains.bio.viktor.F64Array
+import org.jetbrains.bio.viktor.asF64Array
+import java.io.IOException
+import java.nio.file.Path
+
+/**
+ * Treatment signal normalized by control in consecutive [binSize] bp bins.
+ * Immutable. Saves data in [NpzFile] format.
+ *
+ * The control counts are scaled to the treatment depth, so that for the bins
+ * with the treatment count `t` and the control count `c` the value is
+ * `(t + pseudoCount) / (c * depth(treatment) / depth(control) + pseudoCount)`
+ * for [Method.FOLD_ENRICHMENT] and its binary logarithm for [Method.LOG_RATIO].
+ * The bins follow the [BinnedCoverage] convention.
+ */
+class NormalizedCoverage private constructor(
+        val genomeQuery: GenomeQuery,
+        val binSize: Int,
+        val method: Method,
+        val pseudoCount: Double,
+        private val data: GenomeMap<F64Array>
+) {
+
+    enum class Method {
+        LOG_RATIO,
+        FOLD_ENRICHMENT
+    }
+
+    /**
+     * Returns the normalized values for a given [chromosome].
+     * The array is shared, so it must not be modified.
+     */
+    operator fun get(chromosome: Chromosome): F64Array = data[chromosome]
+
+    @Throws(IOException::class)
+    internal fun save(outputPath: Path) {
+        NpzFile.write(outputPath).use { writer ->
+            writer.write(VERSION_FIELD, intArrayOf(VERSION))
+            writer.write(BinnedCoverage.BIN_SIZE_FIELD, intArrayOf(binSize))
+            writer.write(METHOD_FIELD, intArrayOf(method.ordinal))
+            writer.write(PSEUDO_COUNT_FIELD, doubleArrayOf(pseudoCount))
+            for (chromosome in genomeQuery.get()) {
+                writer.write(chromosome.name, data[chromosome].toDoubleArray())
+            }
+        }
+    }
+
+    override fun toString() = MoreObjects.toStringHelper(this)
+            .addValue(genomeQuery)
+            .add("bin", binSize)
+            .add("method", method)
+            .add("pseudo count", pseudoCount).toString()
+
+    companion object {
+
+        /**
+         * Binary storage format version. Loader will throw an [IllegalStateException]
+         * if it doesn't match.
+         */
+        const val VERSION = 1
+        const val VERSION_FIELD = "version"
+        const val METHOD_FIELD = "method"
+        const val PSEUDO_COUNT_FIELD = "pseudo_count"
+
+        /**
+         * Computes the normalized signal in one sweep over the tags of both
+         * coverages per chromosome, chromosomes are processed in parallel.
+         */
+        fun of(
+                treatment: Coverage,
+                control: Coverage,
+                binSize: Int,
+                method: Method = Method.LOG_RATIO,
+                pseudoCount: Double = 1.0
+        ): NormalizedCoverage {
+            require(binSize > 0) { "bin size should be positive, got: $binSize" }
+            require(pseudoCount > 0) { "pseudo count should be positive, got: $pseudoCount" }
+            val genomeQuery = treatment.genomeQuery
+            require(control.genomeQuery == genomeQuery) {
+                "treatment and control have different genome queries"
+            }
+
+            val scale = if (control.depth > 0) treatment.depth.toDouble() / control.depth else 1.0
+            val data = genomeMap(genomeQuery, parallel = true) { chromosome ->
+                val treatmentCounts = BinnedCoverage.binCounts(treatment, chromosome, binSize)
+                val controlCounts = BinnedCoverage.binCounts(control, chromosome, binSize)
+                val values = DoubleArray(treatmentCounts.size) {
+                    (treatmentCounts[it] + pseudoCount) / (controlCounts[it] * scale + pseudoCount)
+                }
+                if (method == Method.LOG_RATIO) {
+                    for (i in values.indices) {
+                        values[i] = Math.log(values[i]) / LN_2
+                    }
+                }
+                values.asF64Array()
+            }
+            return NormalizedCoverage(genomeQuery, binSize, method, pseudoCount, data)
+        }
+
+        private val LN_2 = Math.log(2.0)
+
+        @Throws(IOException::class)
+        internal fun load(inputPath: Path, genomeQuery: GenomeQuery): NormalizedCoverage {
+            return NpzFile.read(inputPath).use { reader ->
+                val version = reader[VERSION_FIELD].asIntArray().single()
+                check(version == VERSION) {
+                    "$inputPath normalized coverage version is $version instead of $VERSION"
+                }
+
+                val binSize = reader[BinnedCoverage.BIN_SIZE_FIELD].asIntArray().single()
+                val method = Method.values()[reader[METHOD_FIELD].asIntArray().single()]
+                val pseudoCount = reader[PSEUDO_COUNT_FIELD].asDoubleArray().single()
+                val data = genomeMap(genomeQuery) { chromosome ->
+                    val values = try {
+                        reader[chromosome.name].asDoubleArray()
+                    } catch (e: IllegalStateException) {
+                        throw IllegalStateException(
+                                "Cache file $inputPath doesn't contain ${chromosome.name}.\n" +
+                                        "If problem persists, delete the cache file $inputPath " +
+                                        "and it will be recreated with correct settings.",
+                                e
+                        )
+                    }
+                    check(values.size == BinnedCoverage.binsCount(chromosome, binSize)) {
+                        "$inputPath has ${values.size} bins for ${chromosome.name} " +
+                                "instead of ${BinnedCoverage.binsCount(chromosome, binSize)}"
+                    }
+                    values.asF64Array()
+                }
+                NormalizedCoverage(genomeQuery, binSize, method, pseudoCount, data)
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.jetbrains.bio.genome.coverage
+
+import java.nio.IntBuffer
+
+/**
+ * An immutable array of non-negative integers bit-packed with a fixed width,
+ * i.e. each value takes as many bits as the [max] one.
+ *
+ * Used for per-tag values with a small range, e.g. fragment lengths.
+ * The packed words are either on heap or memory-mapped, see [read].
+ */
+internal class PackedInts private constructor(
+        val size: Int,
+        private val width: Int,
+        private val words: IntBuffer
+) {
+
+    constructor(values: IntArray) : this(values.size, widthOf(values), IntBuffer.wrap(pack(values)))
+
+    /** Computed on first access, so that mapped values aren't paged in on load. */
+    val max: Int by lazy { (0 until size).fold(0) { acc, i -> Math.max(acc, this[i]) } }
+
+    operator fun get(index: Int): Int {
+        if (width == 0) {
+            return 0
+        }
+        val bit = index.toLong() * width
+        val word = (bit ushr 5).toInt()
+        val shift = (bit and 31).toInt()
+        var value = (words[word].toLong() and 0xffffffffL) ushr shift
+        if (shift + width > Integer.SIZE) {
+            value = value or ((words[word + 1].toLong() and 0xffffffffL) shl (Integer.SIZE - shift))
+        }
+        return (value and ((1L shl width) - 1)).toInt()
+    }
+
+    fun toIntArray() = IntArray(size) { this[it] }
+
+    /**
+     * Serializes the array as is, i.e. without unpacking, see [read].
+     */
+    fun serialize(): IntArray {
+        val result = IntArray(2 + words.limit())
+        result[0] = size
+        result[1] = width
+        words.duplicate().get(result, 2, words.limit())
+        return result
+    }
+
+    /**
+     * Returns the approximate number of bytes occupied by the array.
+     */
+    fun bytes(): Long = Integer.BYTES.toLong() * words.limit()
+
+    companion object {
+        private fun widthOf(values: IntArray) =
+                Integer.SIZE - Integer.numberOfLeadingZeros(values.max() ?: 0)
+
+        private fun wordsCount(size: Int, width: Int) =
+                ((size.toLong() * width + Integer.SIZE - 1) ushr 5).toInt()
+
+        private fun pack(values: IntArray): IntArray {
+            val width = widthOf(values)
+            val words = IntArray(wordsCount(values.size, width))
+            for (i in values.indices) {
+                val value = values[i]
+                require(value >= 0) { "values should be non-negative, got: $value at index $i" }
+                val bit = i.toLong() * width
+                val word = (bit ushr 5).toInt()
+                val shift = (bit and 31).toInt()
+                words[word] = words[word] or (value shl shift)
+                if (shift + width > Integer.SIZE) {
+                    words[word + 1] = words[word + 1] or (value ushr (Integer.SIZE - shift))
+                }
+            }
+            return words
+        }
+
+        /**
+         * Restores the array serialized by [serialize].
+         * Throws [IllegalStateException] if [data] is malformed.
+         */
+        fun read(data: IntArray) = read(IntBuffer.wrap(data))
+
+        /**
+         * Same as above, but doesn't copy the packed words, e.g. for the
+         * buffers mapped by [MappedNpzFile].
+         */
+        fun read(data: IntBuffer): PackedInts {
+            check(data.limit() >= 2) { "packed ints header is missing" }
+            val size = data[0]
+            val width = data[1]
+            check(size >= 0 && width in 0..Integer.SIZE && data.limit() == 2 + wordsCount(size, width)) {
+                "malformed packed ints: size $size, width $width, ${data.limit() - 2} words"
+            }
+            val words = data.duplicate()
+            words.position(2)
+            return PackedInts(size, width, words.slice())
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.jetbrains.bio.genome.coverage
+
+/**
+ * Compressed storage for sorted tag offsets.
+ *
+ * The tags are split into blocks of [BLOCK_SIZE]. The first tag of each
+ * block goes into the skip index [firsts], while all the tags of the block
+ * are bit-packed as differences with the first one, using as many bits as
+ * required by the last tag. For deep libraries a block spans just a few kbp,
+ * so a tag takes 10-16 bits instead of 32.
+ *
+ * Unlike delta encoding, frame-of-reference encoding keeps random access
+ * constant time, so all the [TagsList] operations work as is. Binary searches
+ * look up the skip index first and unpack a single block afterwards, so range
+ * counts only touch the boundary blocks.
+ */
+internal class PackedTagsList private constructor(
+        private val size: Int,
+        private val firsts: IntArray,
+        private val widths: ByteArray,
+        private val words: IntArray
+) : TagsList() {
+
+    /** Index of the first word of each block in [words]. */
+    private val starts = IntArray(firsts.size)
+
+    init {
+        var start = 0
+        for (block in firsts.indices) {
+            starts[block] = start
+            start += wordsCount(blockLength(block), widths[block].toInt())
+        }
+        check(start == words.size) { "expected $start packed words, got ${words.size}" }
+    }
+
+    override fun size() = size
+
+    override fun get(index: Int): Int {
+        val block = index ushr BLOCK_BITS
+        return firsts[block] + unpack(block, index and BLOCK_MASK)
+    }
+
+    override fun binarySearchLeft(target: Int): Int {
+        val block = binarySearchLeft(firsts.size, target) { firsts[it] }
+        if (block == 0) {
+            return 0
+        }
+        // All the tags of the previous blocks are less than the target.
+        val base = (block - 1) shl BLOCK_BITS
+        return base + binarySearchLeft(blockLength(block - 1), target) { this[base + it] }
+    }
+
+    override fun bytes(): Long = Integer.BYTES.toLong() * (firsts.size + starts.size + words.size) + widths.size
+
+    /**
+     * Serializes the list into a single array, see [read].
+     */
+    fun toIntArray(): IntArray {
+        val result = IntArray(2 + firsts.size * 2 + words.size)
+        result[0] = size
+        result[1] = firsts.size
+        System.arraycopy(firsts, 0, result, 2, firsts.size)
+        for (block in widths.indices) {
+            result[2 + firsts.size + block] = widths[block].toInt()
+        }
+        System.arraycopy(words, 0, result, 2 + firsts.size * 2, words.size)
+        return result
+    }
+
+    private fun blockLength(block: Int) = Math.min(BLOCK_SIZE, size - (block shl BLOCK_BITS))
+
+    private fun unpack(block: Int, index: Int): Int {
+        val width = widths[block].toInt()
+        if (width == 0) {
+            return 0
+        }
+        val bit = index * width
+        val word = starts[block] + (bit ushr 5)
+        val shift = bit and 31
+        var value = (words[word].toLong() and INT_MASK) ushr shift
+        if (shift + width > Integer.SIZE) {
+            value = value or ((words[word + 1].toLong() and INT_MASK) shl (Integer.SIZE - shift))
+        }
+        return (value and ((1L shl width) - 1)).toInt()
+    }
+
+    companion object {
+        private const val BLOCK_BITS = 7
+        const val BLOCK_SIZE = 1 shl BLOCK_BITS
+        private const val BLOCK_MASK = BLOCK_SIZE - 1
+        private const val INT_MASK = 0xffffffffL
+
+        private fun wordsCount(length: Int, width: Int) = (length * width + Integer.SIZE - 1) ushr 5
+
+        /**
+         * Packs sorted [tags]. Throws [IllegalArgumentException] if the tags aren't sorted.
+         */
+        fun pack(tags: TagsList): PackedTagsList {
+            if (tags is PackedTagsList) {
+                return tags
+            }
+            val size = tags.size()
+            val blocks = (size + BLOCK_SIZE - 1) ushr BLOCK_BITS
+            val firsts = IntArray(blocks)
+            val widths = ByteArray(blocks)
+            var wordsCount = 0
+            for (block in 0 until blocks) {
+                val from = block shl BLOCK_BITS
+                val to = Math.min(size, from + BLOCK_SIZE)
+                for (i in from + 1 until to) {
+                    require(tags[i - 1] <= tags[i]) { "tags are not sorted at index $i" }
+                }
+                firsts[block] = tags[from]
+                // The difference is treated as unsigned, so it fits even for extreme offsets.
+                widths[block] = (Integer.SIZE - Integer.numberOfLeadingZeros(tags[to - 1] - firsts[block])).toByte()
+                wordsCount += wordsCount(to - from, widths[block].toInt())
+            }
+
+            val words = IntArray(wordsCount)
+            var start = 0
+            for (block in 0 until blocks) {
+                val from = block shl BLOCK_BITS
+                val to = Math.min(size, from + BLOCK_SIZE)
+                val width = widths[block].toInt()
+                for (i in from until to) {
+                    val value = (tags[i] - firsts[block]).toLong() and INT_MASK
+                    val bit = (i - from) * width
+                    val word = start + (bit ushr 5)
+                    val shift = bit and 31
+                    words[word] = words[word] or (value shl shift).toInt()
+                    if (shift + width > Integer.SIZE) {
+                        words[word + 1] = words[word + 1] or (value ushr (Integer.SIZE - shift)).toInt()
+                    }
+                }
+                start += wordsCount(to - from, width)
+            }
+            return PackedTagsList(size, firsts, widths, words)
+        }
+
+        /**
+         * Restores the list serialized by [toIntArray].
+         * Throws [IllegalStateException] if [data] is malformed.
+         */
+        fun read(data: IntArray): PackedTagsList {
+            check(data.size >= 2) { "packed tags header is missing" }
+            val size = data[0]
+            val blocks = data[1]
+            check(size >= 0 && blocks == (size + BLOCK_SIZE - 1) ushr BLOCK_BITS &&
+                    data.size >= 2 + blocks * 2) {
+                "malformed packed tags header: size $size, blocks $blocks"
+            }
+            val firsts = data.copyOfRange(2, 2 + blocks)
+            val widths = ByteArray(blocks) {
+                val width = data[2 + blocks + it]
+                check(width in 0..Integer.SIZE) { "malformed packed tags width $width" }
+                width.toByte()
+            }
+            val words = data.copyOfRange(2 + blocks * 2, data.size)
+            return PackedTagsList(size, firsts, widths, words)
+        }
+    }
+}
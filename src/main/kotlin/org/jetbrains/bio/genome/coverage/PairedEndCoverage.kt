@@ -3,17 +3,22 @@ package org.jetbrains.bio.genome.coverage
 import com.google.common.base.MoreObjects
 import gnu.trove.list.TIntList
 import gnu.trove.list.array.TIntArrayList
-import gnu.trove.set.hash.TIntHashSet
 import kotlinx.support.jdk7.use
 import org.jetbrains.bio.genome.Chromosome
 import org.jetbrains.bio.genome.ChromosomeRange
 import org.jetbrains.bio.genome.GenomeQuery
 import org.jetbrains.bio.genome.Location
+import org.jetbrains.bio.genome.Strand
 import org.jetbrains.bio.genome.containers.GenomeMap
 import org.jetbrains.bio.genome.containers.genomeMap
 import org.jetbrains.bio.npy.NpzFile
+import org.jetbrains.bio.util.await
 import java.io.IOException
 import java.nio.file.Path
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
 
 /**
  * The container stores paired-end coverage information.
@@ -23,23 +28,45 @@ import java.nio.file.Path
  * We can just reduce each read pair to a tag at the middle of the pair's 5' bounds
  * on the plus strand.
  * This coverage will always be perfectly strand-asymmetric, residing on plus strand entirely.
+ *
+ * The fragment length of each pair is recorded as well, which allows to query
+ * the number of fragments overlapping a given range, see [getFragmentPileup].
+ * Cache files created before the lengths were introduced don't have them,
+ * in this case [fragmentLengths] and [insertSizeHistogram] are null.
  */
 class PairedEndCoverage private constructor(
         override val genomeQuery: GenomeQuery,
         val averageInsertSize: Int,
-        internal val data: GenomeMap<TIntList>
+        internal val data: GenomeMap<TagsList>,
+        internal val fragmentLengths: FragmentLengths? = null,
+        /**
+         * The number of fragments of each length, fragments longer
+         * than [MAX_HISTOGRAM_INSERT_SIZE] are counted in the last bin.
+         */
+        val insertSizeHistogram: IntArray? = null
 ): Coverage {
 
     /**
      * Returns the number of tags covered by a given [location].
      */
     override fun getCoverage(location: Location) = location.strand.choose(
-            ifPlus = { getTags(location.toChromosomeRange()).size },
+            ifPlus = { getBothStrandsCoverage(location.toChromosomeRange()) },
             ifMinus = { 0 }
     )
 
     override fun getBothStrandsCoverage(chromosomeRange: ChromosomeRange): Int =
-            getTags(chromosomeRange).size
+            data[chromosomeRange.chromosome].count(chromosomeRange.startOffset, chromosomeRange.endOffset)
+
+    override fun getCoverage(
+            chromosome: Chromosome, strand: Strand,
+            starts: IntArray, ends: IntArray, out: IntArray
+    ) {
+        if (strand == Strand.PLUS) {
+            data[chromosome].count(starts, ends, 0, out)
+        } else {
+            Arrays.fill(out, 0, starts.size, 0)
+        }
+    }
 
     /**
      * Returns a sorted array of tags covered by a given [chromosomeRange].
@@ -47,42 +74,110 @@ class PairedEndCoverage private constructor(
     internal fun getTags(chromosomeRange: ChromosomeRange): IntArray {
         val data = data[chromosomeRange.chromosome]
         val index = data.binarySearchLeft(chromosomeRange.startOffset)
-        var size = 0
-        while (index + size < data.size() &&
-                data[index + size] < chromosomeRange.endOffset) {
-            size++
-        }
+        return data.toArray(index, data.count(chromosomeRange.startOffset, chromosomeRange.endOffset))
+    }
 
-        return data.toArray(index, size)
+    /**
+     * Returns the number of fragments overlapping a given [chromosomeRange],
+     * unlike [getBothStrandsCoverage] which counts the fragment midpoints.
+     *
+     * Only the tags within the maximum fragment length of the range are looked at,
+     * which is bounded, since the lengths are capped, see [Builder.process].
+     * Throws [IllegalStateException] if the fragment lengths weren't recorded.
+     */
+    fun getFragmentPileup(chromosomeRange: ChromosomeRange): Int {
+        val chromosome = chromosomeRange.chromosome
+        val lengths = checkNotNull(fragmentLengths) {
+            "Fragment lengths are not available, the cache file has to be recreated"
+        }[chromosome]
+        val tags = data[chromosome]
+        val startOffset = chromosomeRange.startOffset
+        val endOffset = chromosomeRange.endOffset
+        val from = tags.binarySearchLeft(startOffset - (lengths.max + 1) / 2)
+        val to = tags.binarySearchLeft(endOffset + lengths.max / 2 + 1)
+        var count = 0
+        for (i in from until to) {
+            val length = lengths[i]
+            val fragmentStart = tags[i] - length / 2
+            if (fragmentStart < endOffset && fragmentStart + length > startOffset) {
+                count++
+            }
+        }
+        return count
     }
 
     override val depth = genomeQuery.get().map { chr -> data[chr].size().toLong() }.sum()
 
+    /**
+     * If [packed] is true, the tags are stored compressed, see [PackedTagsList].
+     */
     @Throws(IOException::class)
-    internal fun save(outputPath: Path) {
+    internal fun save(outputPath: Path, packed: Boolean = false) {
         NpzFile.write(outputPath).use { writer ->
             writer.write(Coverage.VERSION_FIELD, intArrayOf(Coverage.VERSION))
             writer.write(Coverage.PAIRED_FIELD, booleanArrayOf(true))
+            writer.write(Coverage.PACKED_FIELD, booleanArrayOf(packed))
             writer.write(PAIRED_VERSION_FIELD, intArrayOf(PAIRED_VERSION))
             writer.write(AVERAGE_INSERT_SIZE_FIELD, intArrayOf(averageInsertSize))
 
             for (chromosome in genomeQuery.get()) {
                 val key = chromosome.name
-                writer.write(key, data[chromosome].toArray())
+                writer.write(key, data[chromosome], packed)
+                if (fragmentLengths != null) {
+                    writer.write(key + LENGTHS_SUFFIX, fragmentLengths[chromosome].serialize())
+                }
+            }
+            if (insertSizeHistogram != null) {
+                writer.write(INSERT_SIZE_HISTOGRAM_FIELD, insertSizeHistogram)
             }
         }
     }
 
+    /**
+     * Returns a downsampled copy of the coverage, see [downsample].
+     * The fragment lengths of the kept tags are preserved.
+     */
+    internal fun sample(fraction: Double, seed: Long): PairedEndCoverage {
+        val indices = genomeMap(genomeQuery, parallel = true) { chromosome ->
+            sampleTags(data[chromosome], chromosome, Strand.PLUS, fraction, seed)
+        }
+        val sampledLengths = fragmentLengths?.let { lengths ->
+            genomeMap(genomeQuery) { chromosome ->
+                val chromosomeIndices = indices[chromosome]
+                TIntArrayList(IntArray(chromosomeIndices.size()) { lengths[chromosome][chromosomeIndices[it]] })
+            }
+        }
+        return PairedEndCoverage(
+                genomeQuery, averageInsertSize,
+                data = genomeMap(genomeQuery) { chromosome ->
+                    val tags = data[chromosome]
+                    val chromosomeIndices = indices[chromosome]
+                    TIntArrayList(IntArray(chromosomeIndices.size()) { tags[chromosomeIndices[it]] }).asTagsList()
+                },
+                fragmentLengths = sampledLengths?.let { lengths ->
+                    FragmentLengths.of(genomeMap(genomeQuery) { PackedInts(lengths[it].toArray()) })
+                },
+                insertSizeHistogram = sampledLengths?.let { lengths ->
+                    insertSizeHistogram(genomeQuery.get().map { lengths[it] })
+                }
+        )
+    }
+
     override fun toString() = MoreObjects.toStringHelper(this)
             .addValue(genomeQuery).toString()
 
+    /**
+     * [process] may be called concurrently for different chromosomes,
+     * e.g. by the parallel mode of [org.jetbrains.bio.genome.format.processPairedReads].
+     */
     class Builder(
             val genomeQuery: GenomeQuery,
-            val data: GenomeMap<TIntList> = genomeMap(genomeQuery) { TIntArrayList() }
+            val data: GenomeMap<TIntList> = genomeMap(genomeQuery) { TagsArrayList() }
     ) {
 
-        private var readPairsCount = 0L
-        private var totalInsertLength = 0L
+        private val lengths = genomeMap(genomeQuery) { TagsArrayList() }
+        private val readPairsCount = LongAdder()
+        private val totalInsertLength = LongAdder()
 
         /**
          * We expect this method to be called for only one read of each read pair: the one
@@ -92,6 +187,10 @@ class PairedEndCoverage private constructor(
          * [chromosome] is the mapping chromosome.
          * [pos] and [pnext] are POS and PNEXT, the standard SAM fields.
          * [length] is the length of the read.
+         *
+         * The recorded fragment length is capped at [MAX_HISTOGRAM_INSERT_SIZE], so that
+         * a single discordant or chimeric pair doesn't widen the [getFragmentPileup]
+         * window and the packed lengths of the whole chromosome.
          */
         fun process(
                 chromosome: Chromosome,
@@ -99,8 +198,9 @@ class PairedEndCoverage private constructor(
         ): Builder {
             val insertSize = pos + length - pnext
             data[chromosome].add(pnext + insertSize / 2)
-            readPairsCount++
-            totalInsertLength += insertSize
+            lengths[chromosome].add(Math.min(Math.max(0, insertSize), MAX_HISTOGRAM_INSERT_SIZE))
+            readPairsCount.increment()
+            totalInsertLength.add(insertSize.toLong())
             return this
         }
 
@@ -109,64 +209,194 @@ class PairedEndCoverage private constructor(
          * [unique] controls whether duplicate tags should be preserved ([unique] == false)
          * or squished into one tag ([unique] == true).
          * Only tags at the exact same offset are considered duplicate.
+         *
+         * The tag lists are sorted in parallel and de-duplicated in place.
+         * The fragment lengths are only kept if all the tags were added
+         * with [process], for duplicate tags the shortest length is kept.
          */
         fun build(unique: Boolean): PairedEndCoverage {
-            for (chromosome in data.genomeQuery.get()) {
-                if (unique) {
-                    // XXX we can do linear time de-duplication on
-                    //     the sorted sequence.
-                    val tags = data[chromosome]
-                    data[chromosome] = TIntArrayList(TIntHashSet(tags))
+            val withLengths = genomeQuery.get().all { lengths[it].size() == data[it].size() }
+            data.genomeQuery.get().map { chromosome ->
+                Callable {
+                    if (withLengths) {
+                        sortPairs(chromosome, unique)
+                    } else {
+                        data[chromosome] = data[chromosome].sortTags(unique)
+                    }
                 }
-                data[chromosome].sort()
-            }
+            }.await(parallel = true)
 
+            val readPairsCount = readPairsCount.sum()
             val averageInsertSize = if (readPairsCount != 0L) {
-                (totalInsertLength / readPairsCount).toInt()
+                (totalInsertLength.sum() / readPairsCount).toInt()
             } else {
                 0
             }
             return PairedEndCoverage(
                     genomeQuery,
                     averageInsertSize = averageInsertSize,
-                    data = data
+                    data = genomeMap(genomeQuery) { data[it].asTagsList() },
+                    fragmentLengths = if (withLengths) {
+                        FragmentLengths.of(genomeMap(genomeQuery) { PackedInts(lengths[it].toArray()) })
+                    } else {
+                        null
+                    },
+                    insertSizeHistogram = if (withLengths) {
+                        insertSizeHistogram(genomeQuery.get().map { lengths[it] })
+                    } else {
+                        null
+                    }
             )
         }
+
+        /**
+         * Sorts the tags of a given [chromosome] along with the fragment lengths.
+         */
+        private fun sortPairs(chromosome: Chromosome, unique: Boolean) {
+            val tags = data[chromosome] as? TagsArrayList ?: TagsArrayList(data[chromosome])
+            val tagLengths = lengths[chromosome]
+            tags.radixSort(tagLengths)
+            if (unique) {
+                tags.removeDuplicates(tagLengths)
+            }
+            tags.trimToSize()
+            tagLengths.trimToSize()
+            data[chromosome] = tags
+        }
     }
 
     companion object {
 
-        const val PAIRED_VERSION = 2
+        /** Version 3 stores the fragment lengths packed, see [PackedInts.serialize]. */
+        const val PAIRED_VERSION = 3
+        /** Older versions are still loaded, though without the fragment lengths. */
+        private const val MIN_PAIRED_VERSION = 2
         const val PAIRED_VERSION_FIELD = "paired_version"
         const val AVERAGE_INSERT_SIZE_FIELD = "average_insert_size"
+        const val INSERT_SIZE_HISTOGRAM_FIELD = "insert_size_histogram"
+        private const val LENGTHS_SUFFIX = "/lengths"
+
+        /**
+         * Fragments longer than this are counted in the last histogram bin
+         * and their lengths are recorded as this long.
+         */
+        const val MAX_HISTOGRAM_INSERT_SIZE = 10000
+
+        private fun insertSizeHistogram(lengths: List<TIntList>): IntArray {
+            val maxLength = lengths.filterNot { it.isEmpty }.map { it.max() }.max() ?: 0
+            val histogram = IntArray(Math.min(maxLength, MAX_HISTOGRAM_INSERT_SIZE) + 1)
+            for (chromosomeLengths in lengths) {
+                chromosomeLengths.forEach { length ->
+                    histogram[Math.min(length, MAX_HISTOGRAM_INSERT_SIZE)]++
+                    true
+                }
+            }
+            return histogram
+        }
 
         fun builder(genomeQuery: GenomeQuery) = Builder(genomeQuery)
 
+        private fun readLengths(
+                tagsReader: TagsReader, path: Path, chromosome: Chromosome, tags: TagsList
+        ): PackedInts {
+            val lengths = tagsReader.readInts(chromosome.name + LENGTHS_SUFFIX)
+            check(lengths.size == tags.size()) {
+                "$path has ${lengths.size} fragment lengths for ${chromosome.name} instead of ${tags.size()}"
+            }
+            return lengths
+        }
+
+        /**
+         * Pools the tags of the [coverages], see [org.jetbrains.bio.genome.coverage.pool].
+         *
+         * The fragment lengths are merged along with the tags if all the [coverages]
+         * have them, for duplicate tags the shortest length is kept, same as in [Builder].
+         * The average insert size of the pool is the depth-weighted mean.
+         */
+        internal fun pool(coverages: List<PairedEndCoverage>, unique: Boolean): PairedEndCoverage {
+            val genomeQuery = coverages.first().genomeQuery
+            val withLengths = coverages.all { it.fragmentLengths != null }
+            val pooled = genomeMap(genomeQuery, parallel = true) { chromosome ->
+                val lists = coverages.map { it.data[chromosome] }
+                val lengths = if (withLengths) coverages.map { it.fragmentLengths!![chromosome] } else null
+                val sizes = IntArray(lists.size) { lists[it].size() }
+                val pooledTags = TagsArrayList(sizes.sum())
+                val pooledLengths = TIntArrayList(if (withLengths) sizes.sum() else 0)
+                mergeSorted(sizes, { list, index ->
+                    val tag = lists[list][index].toLong() shl Integer.SIZE
+                    if (lengths != null) tag or lengths[list][index].toLong() else tag
+                }) { list, index ->
+                    val tag = lists[list][index]
+                    if (!unique || pooledTags.isEmpty || pooledTags[pooledTags.size() - 1] != tag) {
+                        pooledTags.add(tag)
+                        if (lengths != null) {
+                            pooledLengths.add(lengths[list][index])
+                        }
+                    }
+                }
+                pooledTags to pooledLengths
+            }
+
+            val depth = coverages.map { it.depth }.sum()
+            val averageInsertSize = if (depth > 0) {
+                Math.round(coverages.map { it.averageInsertSize * it.depth.toDouble() }.sum() / depth).toInt()
+            } else {
+                0
+            }
+            return PairedEndCoverage(
+                    genomeQuery,
+                    averageInsertSize = averageInsertSize,
+                    data = genomeMap(genomeQuery) { pooled[it].first.asTagsList() },
+                    fragmentLengths = if (withLengths) {
+                        FragmentLengths.of(genomeMap(genomeQuery) { PackedInts(pooled[it].second.toArray()) })
+                    } else {
+                        null
+                    },
+                    insertSizeHistogram = if (withLengths) {
+                        insertSizeHistogram(genomeQuery.get().map { pooled[it].second })
+                    } else {
+                        null
+                    }
+            )
+        }
+
+        /**
+         * If [mapped] is true, the tags are memory-mapped from the cache
+         * file instead of being copied onto heap, see [MappedNpzFile].
+         * If [packed] is true, the tags are compressed, see [PackedTagsList].
+         * If [cache] is not null, the tags are loaded lazily, see [Coverage.load].
+         * The fragment lengths are always packed, see [PackedInts]. These are mapped
+         * along with the tags or, if [cache] is not null, loaded lazily as well,
+         * though kept once loaded, since they are a fraction of the tags size.
+         */
         internal fun load(
                 npzReader: NpzFile.Reader,
-                genomeQuery: GenomeQuery
+                genomeQuery: GenomeQuery,
+                mapped: Boolean = false,
+                packed: Boolean = false,
+                cache: ResidentTagsCache? = null
         ): PairedEndCoverage {
             check(npzReader[Coverage.PAIRED_FIELD].asBooleanArray().single()) {
                 "${npzReader.path} attempting to read paired-end coverage from single-end cache file"
             }
-            try {
-                val version = npzReader[PAIRED_VERSION_FIELD].asIntArray().single()
-                check(version == PAIRED_VERSION) {
-                    "${npzReader.path} paired-end coverage version is $version " +
-                            "instead of $PAIRED_VERSION"
-                }
+            val version = try {
+                npzReader[PAIRED_VERSION_FIELD].asIntArray().single()
             } catch (e: IllegalStateException) {
                 throw IllegalStateException(
                         "${npzReader.path} paired-end coverage version is missing",
                         e
                 )
             }
+            check(version in MIN_PAIRED_VERSION..PAIRED_VERSION) {
+                "${npzReader.path} paired-end coverage version is $version " +
+                        "instead of $MIN_PAIRED_VERSION..$PAIRED_VERSION"
+            }
             val averageInsertSize = npzReader[AVERAGE_INSERT_SIZE_FIELD].asIntArray().single()
-            val data: GenomeMap<TIntList> = genomeMap(genomeQuery) { TIntArrayList() }
+            val tagsReader = TagsReader(npzReader, mapped, packed, cache)
+            val data: GenomeMap<TagsList> = genomeMap(genomeQuery) { TIntArrayList().asTagsList() }
             for (chromosome in genomeQuery.get()) {
                 try {
-                    val npyArray = npzReader[chromosome.name]
-                    data[chromosome] = TIntArrayList.wrap(npyArray.asIntArray())
+                    data[chromosome] = tagsReader[chromosome.name]
                 } catch (e: IllegalStateException) {
                     throw IllegalStateException(
                             "Cache file ${npzReader.path} doesn't contain ${chromosome.name}.\n" +
@@ -178,8 +408,51 @@ class PairedEndCoverage private constructor(
                     )
                 }
             }
-            return PairedEndCoverage(genomeQuery, averageInsertSize, data = data)
+            val insertSizeHistogram = if (version < PAIRED_VERSION) {
+                // Older cache files don't have the packed fragment lengths.
+                null
+            } else {
+                try {
+                    npzReader[INSERT_SIZE_HISTOGRAM_FIELD].asIntArray()
+                } catch (e: IllegalStateException) {
+                    // The coverage was built without the fragment lengths.
+                    null
+                }
+            }
+            val path = npzReader.path
+            val fragmentLengths = when {
+                insertSizeHistogram == null -> null
+                cache == null || mapped -> {
+                    val lengths = genomeMap(genomeQuery) { readLengths(tagsReader, path, it, data[it]) }
+                    FragmentLengths.of(lengths)
+                }
+                else -> FragmentLengths { chromosome ->
+                    NpzFile.read(path).use { reader ->
+                        readLengths(TagsReader(reader, false), path, chromosome, data[chromosome])
+                    }
+                }
+            }
+            return PairedEndCoverage(
+                    genomeQuery, averageInsertSize,
+                    data = data, fragmentLengths = fragmentLengths, insertSizeHistogram = insertSizeHistogram
+            )
         }
     }
 
 }
+
+/**
+ * The fragment lengths of a [PairedEndCoverage], in the same order as the tags.
+ * The lengths of a chromosome are [load]ed on first access.
+ */
+internal class FragmentLengths(private val load: (Chromosome) -> PackedInts) {
+
+    private val lengths = ConcurrentHashMap<String, PackedInts>()
+
+    operator fun get(chromosome: Chromosome): PackedInts =
+            lengths.computeIfAbsent(chromosome.name) { load(chromosome) }
+
+    companion object {
+        fun of(lengths: GenomeMap<PackedInts>) = FragmentLengths { lengths[it] }
+    }
+}
@@ -0,0 +1,90 @@
+package org.jetbrains.bio.genome.coverage
+
+/**
+ * Pools the tags of several coverages, e.g. biological replicates, into one.
+ *
+ * The sorted tag lists of the [coverages] are merged in a single k-way pass
+ * per chromosome and strand, chromosomes are processed in parallel, so pooling
+ * doesn't have to re-read the original alignments. If [unique] is true,
+ * the tags at the same offset are squished into one tag across all the
+ * coverages, otherwise all the tags are preserved.
+ *
+ * All the coverages should be either single-end or paired-end and share
+ * the same genome query, see [SingleEndCoverage.pool] and [PairedEndCoverage.pool].
+ */
+fun pool(coverages: List<Coverage>, unique: Boolean = false): Coverage {
+    require(coverages.isNotEmpty()) { "no coverages given" }
+    val genomeQuery = coverages.first().genomeQuery
+    require(coverages.all { it.genomeQuery == genomeQuery }) {
+        "coverages have different genome queries"
+    }
+    return when {
+        coverages.all { it is SingleEndCoverage } ->
+            SingleEndCoverage.pool(coverages.map { it as SingleEndCoverage }, unique)
+        coverages.all { it is PairedEndCoverage } ->
+            PairedEndCoverage.pool(coverages.map { it as PairedEndCoverage }, unique)
+        else -> throw IllegalArgumentException(
+                "Can't pool ${coverages.map { it::class.java.simpleName }.distinct().joinToString()}"
+        )
+    }
+}
+
+/**
+ * Merges k sorted sequences with the given [sizes] using a binary heap.
+ *
+ * The elements are ordered by [key], which is called with the sequence index
+ * and the element index, the ties are resolved in favour of the earlier sequence.
+ * [consumer] is called for each element in the merged order.
+ */
+internal fun mergeSorted(
+        sizes: IntArray,
+        key: (Int, Int) -> Long,
+        consumer: (Int, Int) -> Unit
+) {
+    val heap = IntArray(sizes.size)
+    val heads = LongArray(sizes.size)
+    val positions = IntArray(sizes.size)
+    var heapSize = 0
+    for (sequence in sizes.indices) {
+        if (sizes[sequence] > 0) {
+            heads[sequence] = key(sequence, 0)
+            heap[heapSize++] = sequence
+        }
+    }
+    for (i in heapSize / 2 - 1 downTo 0) {
+        siftDown(heap, heapSize, heads, i)
+    }
+
+    while (heapSize > 0) {
+        val sequence = heap[0]
+        consumer(sequence, positions[sequence])
+        val next = ++positions[sequence]
+        if (next < sizes[sequence]) {
+            heads[sequence] = key(sequence, next)
+        } else {
+            heap[0] = heap[--heapSize]
+        }
+        siftDown(heap, heapSize, heads, 0)
+    }
+}
+
+private fun siftDown(heap: IntArray, heapSize: Int, heads: LongArray, start: Int) {
+    var i = start
+    while (true) {
+        val left = 2 * i + 1
+        if (left >= heapSize) {
+            return
+        }
+        val right = left + 1
+        val child = if (right < heapSize && less(heads, heap[right], heap[left])) right else left
+        if (!less(heads, heap[child], heap[i])) {
+            return
+        }
+        val tmp = heap[i]
+        heap[i] = heap[child]
+        heap[child] = tmp
+        i = child
+    }
+}
+
+private fun less(heads: LongArray, a: Int, b: Int) = heads[a] < heads[b] || (heads[a] == heads[b] && a < b)
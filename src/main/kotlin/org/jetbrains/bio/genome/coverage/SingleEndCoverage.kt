@@ -3,16 +3,21 @@ package org.jetbrains.bio.genome.coverage
 import com.google.common.base.MoreObjects
 import gnu.trove.list.TIntList
 import gnu.trove.list.array.TIntArrayList
-import gnu.trove.set.hash.TIntHashSet
 import kotlinx.support.jdk7.use
+import org.jetbrains.bio.genome.Chromosome
 import org.jetbrains.bio.genome.GenomeQuery
 import org.jetbrains.bio.genome.Location
 import org.jetbrains.bio.genome.Strand
 import org.jetbrains.bio.genome.containers.GenomeStrandMap
 import org.jetbrains.bio.genome.containers.genomeStrandMap
+import org.jetbrains.bio.genome.format.ReadsBatch
 import org.jetbrains.bio.npy.NpzFile
+import org.jetbrains.bio.util.await
 import java.io.IOException
 import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.atomic.LongAdder
+import java.util.stream.Collectors
 import kotlin.math.sqrt
 
 /**
@@ -31,10 +36,19 @@ class SingleEndCoverage private constructor(
         override val genomeQuery: GenomeQuery,
         val detectedFragment: Int,
         val actualFragment: Int = detectedFragment,
-        internal val data: GenomeStrandMap<TIntList>
+        internal val data: GenomeStrandMap<TagsList>
 ): Coverage {
 
-    override fun getCoverage(location: Location) = getTags(location).size
+    override fun getCoverage(location: Location): Int {
+        val startOffset = location.startOffset + shift(location.strand)
+        val endOffset = location.endOffset + shift(location.strand)
+        return data[location.chromosome, location.strand].count(startOffset, endOffset)
+    }
+
+    override fun getCoverage(
+            chromosome: Chromosome, strand: Strand,
+            starts: IntArray, ends: IntArray, out: IntArray
+    ) = data[chromosome, strand].count(starts, ends, shift(strand), out)
 
     override val depth = genomeQuery.get().flatMap { chr ->
         Strand.values().map { strand ->
@@ -49,33 +63,36 @@ class SingleEndCoverage private constructor(
         val data = data[location.chromosome, location.strand]
         /* we don't really care if the offsets are outside of chromosome range,
            since this won't lead to incorrect results */
-        val locationShift = location.strand.choose(
-                (-actualFragment) / 2,
-                actualFragment / 2
-        )
-        val startOffset = location.startOffset + locationShift
-        val endOffset = location.endOffset + locationShift
+        val startOffset = location.startOffset + shift(location.strand)
+        val endOffset = location.endOffset + shift(location.strand)
         val index = data.binarySearchLeft(startOffset)
-        var size = 0
-        while (index + size < data.size() &&
-                data[index + size] < endOffset) {
-            size++
-        }
-
-        return data.toArray(index, size)
+        return data.toArray(index, data.count(startOffset, endOffset))
     }
 
+    /**
+     * Tags are shifted by half of the fragment towards the fragment center,
+     * we shift the query instead.
+     */
+    internal fun shift(strand: Strand) = strand.choose(
+            (-actualFragment) / 2,
+            actualFragment / 2
+    )
+
+    /**
+     * If [packed] is true, the tags are stored compressed, see [PackedTagsList].
+     */
     @Throws(IOException::class)
-    internal fun save(outputPath: Path) {
+    internal fun save(outputPath: Path, packed: Boolean = false) {
         NpzFile.write(outputPath).use { writer ->
             writer.write(Coverage.VERSION_FIELD, intArrayOf(Coverage.VERSION))
             writer.write(Coverage.PAIRED_FIELD, booleanArrayOf(false))
+            writer.write(Coverage.PACKED_FIELD, booleanArrayOf(packed))
             writer.write(FRAGMENT_FIELD, intArrayOf(detectedFragment))
 
             for (chromosome in genomeQuery.get()) {
                 for (strand in Strand.values()) {
                     val key = chromosome.name + '/' + strand
-                    writer.write(key, data[chromosome, strand].toArray())
+                    writer.write(key, data[chromosome, strand], packed)
                 }
             }
         }
@@ -84,6 +101,18 @@ class SingleEndCoverage private constructor(
     override fun toString() = MoreObjects.toStringHelper(this)
             .addValue(genomeQuery).toString()
 
+    /**
+     * Returns a downsampled copy of the coverage, see [downsample].
+     */
+    internal fun sample(fraction: Double, seed: Long): SingleEndCoverage {
+        val sampled = genomeStrandMap(genomeQuery, parallel = true) { chromosome, strand ->
+            val tags = data[chromosome, strand]
+            val indices = sampleTags(tags, chromosome, strand, fraction, seed)
+            TIntArrayList(IntArray(indices.size()) { tags[indices[it]] }).asTagsList()
+        }
+        return SingleEndCoverage(genomeQuery, detectedFragment, actualFragment, sampled)
+    }
+
     /**
      * Sets fragment size to specified value or reverts to a detected one if "null" is provided.
      * Returns a copy of the immutable [SingleEndCoverage] object.
@@ -100,22 +129,72 @@ class SingleEndCoverage private constructor(
      */
     private data class CrossCorrelation(val fragment: Int, var pearsonTransform: Double = 0.0)
 
+    /**
+     * Same as [Companion.detectFragmentSize], but consumes the data one chromosome at a time,
+     * so that the whole genome doesn't have to be resident in memory. Chromosomes
+     * must be provided in the [GenomeQuery] order for the result to be identical.
+     */
+    internal class FragmentSizeDetector(
+            private val averageReadLength: Double,
+            private val subsampling: Double = 1.0
+    ) {
+
+        private val fragments = if (averageReadLength.isNaN()) {
+            IntRange.EMPTY
+        } else {
+            averageReadLength.toInt()..MAX_FRAGMENT_SIZE
+        }
+
+        private val ccs = fragments.map { CrossCorrelation(it) }
+
+        fun update(chromosome: Chromosome, positive: TIntList, negative: TIntList) {
+            if (ccs.isNotEmpty()) {
+                val matchedTags = matchedTagsHistogram(positive, negative, fragments, subsampling)
+                ccs.updatePearsonTransform(chromosome, positive, negative, matchedTags)
+            }
+        }
+
+        val fragment: Int get() = when {
+            averageReadLength.isNaN() -> 0
+            ccs.isEmpty() -> averageReadLength.toInt()
+            else -> ccs.maxBy { it.pearsonTransform }!!.fragment
+        }
+    }
+
+    /**
+     * [process] may be called concurrently for different chromosomes,
+     * e.g. by the parallel mode of [org.jetbrains.bio.genome.format.processReads].
+     */
     class Builder(val genomeQuery: GenomeQuery) {
 
         val data: GenomeStrandMap<TIntList> = genomeStrandMap(genomeQuery) {
-            _, _ -> TIntArrayList()
+            _, _ -> TagsArrayList()
         }
 
-        private var readLengthSum = 0L
-        private var readCount = 0L
+        private val readLengthSum = LongAdder()
+        private val readCount = LongAdder()
 
         /**
          * Add a tag to the coverage being built. Only the 5' end of [read] is relevant.
          */
         fun process(read: Location): Builder {
             data[read.chromosome, read.strand].add(read.get5Bound())
-            readLengthSum += read.length()
-            readCount++
+            readLengthSum.add(read.length().toLong())
+            readCount.increment()
+            return this
+        }
+
+        /**
+         * Same as [process] for each read of the [batch], but doesn't allocate anything.
+         */
+        fun process(batch: ReadsBatch): Builder {
+            var lengthSum = 0L
+            for (i in 0 until batch.size) {
+                data[batch.chromosome(i), batch.strand(i)].add(batch.get5Bound(i))
+                lengthSum += batch.ends[i] - batch.starts[i]
+            }
+            readLengthSum.add(lengthSum)
+            readCount.add(batch.size.toLong())
             return this
         }
 
@@ -126,26 +205,30 @@ class SingleEndCoverage private constructor(
          * Only tags at the exact same offset on the exact same strand
          * are considered duplicate.
          * [detectedFragment] is imputed at this point.
+         *
+         * The tag lists are sorted in parallel and de-duplicated in place.
+         * [fragmentSubsampling] allows to speed up the fragment size estimation
+         * for very deep libraries, see [detectFragmentSize].
          */
-        fun build(unique: Boolean): SingleEndCoverage {
-            for (chromosome in data.genomeQuery.get()) {
-                for (strand in Strand.values()) {
-                    if (unique) {
-                        // XXX we can do linear time de-duplication on
-                        //     the sorted sequence.
-                        val tags = data[chromosome, strand]
-                        data[chromosome, strand] = TIntArrayList(TIntHashSet(tags))
+        fun build(unique: Boolean, fragmentSubsampling: Double = 1.0): SingleEndCoverage {
+            data.genomeQuery.get().flatMap { chromosome ->
+                Strand.values().map { strand ->
+                    Callable {
+                        data[chromosome, strand] = data[chromosome, strand].sortTags(unique)
                     }
-                    data[chromosome, strand].sort()
                 }
-            }
+            }.await(parallel = true)
 
             val detectedFragment = detectFragmentSize(
                     data,
-                    readLengthSum * 1.0 / readCount
+                    readLengthSum.sum() * 1.0 / readCount.sum(),
+                    fragmentSubsampling
             )
 
-            return SingleEndCoverage(genomeQuery, detectedFragment, data = data)
+            return SingleEndCoverage(
+                    genomeQuery, detectedFragment,
+                    data = genomeStrandMap(genomeQuery) { chr, strand -> data[chr, strand].asTagsList() }
+            )
         }
     }
 
@@ -158,27 +241,73 @@ class SingleEndCoverage private constructor(
          * judging by the figures in the article.
          * Also, "chipseq" R package uses 500 as the default upper bound.
          */
-        private const val MAX_FRAGMENT_SIZE = 500
+        const val MAX_FRAGMENT_SIZE = 500
 
         fun builder(genomeQuery: GenomeQuery) = Builder(genomeQuery)
 
+        /**
+         * Returns a builder which keeps at most [heapBudget] bytes of tags on heap,
+         * see [SpillingSingleEndCoverageBuilder].
+         */
+        fun spillingBuilder(genomeQuery: GenomeQuery, heapBudget: Long, spillDirectory: Path? = null) =
+                SpillingSingleEndCoverageBuilder(genomeQuery, heapBudget, spillDirectory)
+
+        /**
+         * Pools the tags of the [coverages], see [org.jetbrains.bio.genome.coverage.pool].
+         *
+         * The read lengths aren't stored, so the fragment size can't be re-estimated.
+         * Instead, the detected fragment size of the pool is the depth-weighted mean
+         * of the detected fragment sizes of the [coverages].
+         */
+        internal fun pool(coverages: List<SingleEndCoverage>, unique: Boolean): SingleEndCoverage {
+            val genomeQuery = coverages.first().genomeQuery
+            val data = genomeStrandMap(genomeQuery, parallel = true) { chromosome, strand ->
+                val lists = coverages.map { it.data[chromosome, strand] }
+                val sizes = IntArray(lists.size) { lists[it].size() }
+                val pooled = TagsArrayList(sizes.sum())
+                mergeSorted(sizes, { list, index -> lists[list][index].toLong() }) { list, index ->
+                    val tag = lists[list][index]
+                    if (!unique || pooled.isEmpty || pooled[pooled.size() - 1] != tag) {
+                        pooled.add(tag)
+                    }
+                }
+                pooled.asTagsList()
+            }
+            val depth = coverages.map { it.depth }.sum()
+            val detectedFragment = if (depth > 0) {
+                Math.round(coverages.map { it.detectedFragment * it.depth.toDouble() }.sum() / depth).toInt()
+            } else {
+                coverages.first().detectedFragment
+            }
+            return SingleEndCoverage(genomeQuery, detectedFragment, data = data)
+        }
+
+        /**
+         * If [mapped] is true, the tags are memory-mapped from the cache
+         * file instead of being copied onto heap, see [MappedNpzFile].
+         * If [packed] is true, the tags are compressed, see [PackedTagsList].
+         * If [cache] is not null, the tags are loaded lazily, see [Coverage.load].
+         */
         internal fun load(
                 npzReader: NpzFile.Reader,
-                genomeQuery: GenomeQuery
+                genomeQuery: GenomeQuery,
+                mapped: Boolean = false,
+                packed: Boolean = false,
+                cache: ResidentTagsCache? = null
         ): SingleEndCoverage {
             check(!npzReader[Coverage.PAIRED_FIELD].asBooleanArray().single()) {
                 "${npzReader.path} attempting to read single-end coverage from paired-end cache file"
             }
             val detectedFragment = npzReader[FRAGMENT_FIELD].asIntArray().single()
-            val data: GenomeStrandMap<TIntList> = genomeStrandMap(genomeQuery) { _, _ ->
-                TIntArrayList()
+            val tagsReader = TagsReader(npzReader, mapped, packed, cache)
+            val data: GenomeStrandMap<TagsList> = genomeStrandMap(genomeQuery) { _, _ ->
+                TIntArrayList().asTagsList()
             }
             for (chromosome in genomeQuery.get()) {
                 for (strand in Strand.values()) {
                     val key = chromosome.name + '/' + strand
                     try {
-                        val npyArray = npzReader[key]
-                        data[chromosome, strand] = TIntArrayList.wrap(npyArray.asIntArray())
+                        data[chromosome, strand] = tagsReader[key]
                     } catch (e: IllegalStateException) {
                         throw IllegalStateException(
                                 "Cache file ${npzReader.path} doesn't contain $key.\n" +
@@ -210,11 +339,35 @@ class SingleEndCoverage private constructor(
         /**
          * Compute Pearson correlation transform (see below) for a given range
          * of candidate fragment sizes.
+         *
+         * The histograms are computed for all chromosomes in parallel, but summed up
+         * in the [GenomeQuery] order, so that the result doesn't depend on scheduling.
          */
         private fun computePearsonCorrelationTransform(
-                fragments: List<Int>,
-                data: GenomeStrandMap<TIntList>
+                fragments: IntRange,
+                data: GenomeStrandMap<TIntList>,
+                subsampling: Double
         ): List<CrossCorrelation> {
+            val ccs = fragments.map { CrossCorrelation(it) }
+            val chromosomes = data.genomeQuery.get()
+            val histograms = chromosomes.parallelStream().map { chr ->
+                matchedTagsHistogram(data[chr, Strand.PLUS], data[chr, Strand.MINUS], fragments, subsampling)
+            }.collect(Collectors.toList())
+            chromosomes.forEachIndexed { i, chr ->
+                ccs.updatePearsonTransform(chr, data[chr, Strand.PLUS], data[chr, Strand.MINUS], histograms[i])
+            }
+            return ccs
+        }
+
+        /**
+         * Adds the summands of a given chromosome to the Pearson correlation transform
+         * of each candidate fragment size. [matchedTags] is the histogram computed
+         * by [matchedTagsHistogram].
+         */
+        private fun List<CrossCorrelation>.updatePearsonTransform(
+                chr: Chromosome, positive: TIntList, negative: TIntList,
+                matchedTags: IntArray
+        ) {
             /*
                 Using the approach from Kharchenko et. al, 2008
                     https://www.ncbi.nlm.nih.gov/pmc/articles/PMC2597701/
@@ -247,64 +400,76 @@ class SingleEndCoverage private constructor(
                     arg max ∑ ∑xi*yi * (∑xi + ∑yi) Lc / √(∑xi * (Lc-∑xi) * ∑yi * (Lc-∑yi))
                 We denote the value under arg max as "Pearson correlation transform".
             */
-            val ccs = fragments.map { CrossCorrelation(it) }
-            for (chr in data.genomeQuery.get()) {
-                val positive = data[chr, Strand.PLUS]
-                val positiveSize = positive.size()
-                val negative = data[chr, Strand.MINUS]
-                val negativeSize = negative.size()
-                if (positiveSize == 0 || negativeSize == 0) continue
-                val chrLength = chr.length.toDouble()
-                ccs.parallelStream().forEach { cc ->
-                    cc.updatePearsonTransform(positive, negative, chrLength)
-                }
+            val positiveSize = positive.size()
+            val negativeSize = negative.size()
+            if (positiveSize == 0 || negativeSize == 0) return
+            val chrLength = chr.length.toDouble()
+            val coefficient = (positiveSize + negativeSize) * chrLength /
+                    sqrt(
+                            positiveSize * (chrLength - positiveSize) *
+                                    negativeSize * (chrLength - negativeSize)
+                    )
+            forEachIndexed { i, cc ->
+                cc.pearsonTransform += matchedTags[i] * coefficient
             }
-            return ccs
         }
 
         /**
-         * Calculates a Pearson correlation transform summand for a given chromosome.
-         * See [computePearsonCorrelationTransform] comments
-         * for the definition of the transform and its calculation details.
+         * Computes the number of matched tags ∑xi*yi (see [updatePearsonTransform])
+         * for all candidate [fragments] at once: the i-th element of the result is
+         * the number of distinct positive tags `p`, such that `p + fragments.first + i`
+         * is a negative tag. Only the negative tags within [fragments] distance from
+         * each positive tag are looked at, so a single merge pass is enough.
+         *
+         * If [subsampling] is less than 1, only the corresponding fraction of distinct
+         * positive tags is considered. The tags are chosen by a hash of their offsets,
+         * so the result is deterministic.
          */
-        private fun CrossCorrelation.updatePearsonTransform(
+        private fun matchedTagsHistogram(
                 positive: TIntList, negative: TIntList,
-                chrLength: Double
-        ) {
+                fragments: IntRange,
+                subsampling: Double
+        ): IntArray {
+            val histogram = IntArray(fragments.last - fragments.first + 1)
             val positiveSize = positive.size()
             val negativeSize = negative.size()
-            var matchedTags = 0
-            var positiveTags = 0
-            var negativeTags = 0
+            val threshold = (subsampling * (1L shl 32)).toLong()
+            var windowStart = 0
             var positiveIndex = 0
-            var negativeIndex = 0
-            while (positiveIndex < positiveSize && negativeIndex < negativeSize) {
-                val t1 = positive[positiveIndex] + fragment
-                val t2 = negative[negativeIndex]
-                when {
-                    t1 < t2 -> {
-                        positiveIndex = nextIndex(positive, positiveSize, positiveIndex)
-                        positiveTags++
-                    }
-                    t1 > t2 -> {
-                        negativeIndex = nextIndex(negative, negativeSize, negativeIndex)
-                        negativeTags++
+            while (positiveIndex < positiveSize && windowStart < negativeSize) {
+                val tag = positive[positiveIndex]
+                if (subsampling >= 1 || (mix(tag).toLong() and 0xffffffffL) < threshold) {
+                    // The first negative tag in the window is also the first one of its run,
+                    // so the window can be traversed over distinct tags only.
+                    while (windowStart < negativeSize && negative[windowStart] < tag + fragments.first) {
+                        windowStart++
                     }
-                    t1 == t2 -> {
-                        matchedTags += 1
-                        positiveTags++
-                        negativeTags++
-                        positiveIndex = nextIndex(positive, positiveSize, positiveIndex)
+                    var negativeIndex = windowStart
+                    while (negativeIndex < negativeSize) {
+                        val distance = negative[negativeIndex] - tag
+                        if (distance > fragments.last) {
+                            break
+                        }
+                        histogram[distance - fragments.first]++
                         negativeIndex = nextIndex(negative, negativeSize, negativeIndex)
                     }
                 }
+                positiveIndex = nextIndex(positive, positiveSize, positiveIndex)
             }
-            val coefficient = (positiveSize + negativeSize) * chrLength /
-                    sqrt(
-                            positiveSize * (chrLength - positiveSize) *
-                                    negativeSize * (chrLength - negativeSize)
-                    )
-            pearsonTransform += matchedTags * coefficient
+            return histogram
+        }
+
+        /**
+         * MurmurHash3 finalizer, used to subsample the tags deterministically.
+         */
+        private fun mix(value: Int): Int {
+            var h = value
+            h = h xor (h ushr 16)
+            h *= -0x7a143595
+            h = h xor (h ushr 13)
+            h *= -0x3d4d51cb
+            h = h xor (h ushr 16)
+            return h
         }
 
         /**
@@ -313,12 +478,16 @@ class SingleEndCoverage private constructor(
          * We ignore candidate fragment sizes less than [averageReadLength], following
          * the advice of Ramachandran et al., 2013:
          *      https://academic.oup.com/bioinformatics/article/29/4/444/200320
+         * [subsampling] allows to speed up the estimation for very deep libraries,
+         * see [matchedTagsHistogram].
          * Marked internal for testing.
          */
         internal fun detectFragmentSize(
                 data: GenomeStrandMap<TIntList>,
-                averageReadLength: Double
+                averageReadLength: Double,
+                subsampling: Double = 1.0
         ): Int {
+            require(subsampling > 0) { "subsampling should be positive, got: $subsampling" }
             if (averageReadLength.isNaN()) {
                 // empty data, return a placeholder value
                 return 0
@@ -328,7 +497,7 @@ class SingleEndCoverage private constructor(
             if (candidateRange.isEmpty()) {
                 return averageReadLength.toInt()
             }
-            val ccs = computePearsonCorrelationTransform(candidateRange.toList(), data)
+            val ccs = computePearsonCorrelationTransform(candidateRange, data, subsampling)
             return ccs.maxBy { it.pearsonTransform }!!.fragment
         }
     }
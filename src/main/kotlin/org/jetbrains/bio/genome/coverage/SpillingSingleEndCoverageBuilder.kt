@@ -0,0 +1,274 @@
+package org.jetbrains.bio.genome.coverage
+
+import gnu.trove.list.TIntList
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.genome.Chromosome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.Location
+import org.jetbrains.bio.genome.Strand
+import org.jetbrains.bio.genome.containers.GenomeStrandMap
+import org.jetbrains.bio.genome.containers.genomeStrandMap
+import org.jetbrains.bio.genome.format.ReadsBatch
+import org.jetbrains.bio.npy.NpzFile
+import org.jetbrains.bio.util.deleteIfExists
+import org.slf4j.LoggerFactory
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.*
+
+/**
+ * A [SingleEndCoverage] builder which keeps at most [heapBudget] bytes of tags
+ * on heap. Whenever the budget is exhausted, the buffered tags are sorted and
+ * flushed to a temporary file in [spillDirectory] as a set of sorted runs,
+ * one per chromosome and strand.
+ *
+ * [save] performs a streaming k-way merge of the runs one chromosome at a time,
+ * so the peak memory is bounded by the budget plus the tags of the largest
+ * chromosome. The resulting cache file is identical (as far as [Coverage.load]
+ * is concerned) to the one produced by [SingleEndCoverage.Builder].
+ */
+class SpillingSingleEndCoverageBuilder(
+        val genomeQuery: GenomeQuery,
+        val heapBudget: Long,
+        private val spillDirectory: Path? = null
+) {
+
+    private var data: GenomeStrandMap<TagsArrayList> = newBuffers()
+    private val runs: GenomeStrandMap<MutableList<Run>> = genomeStrandMap(genomeQuery) { _, _ ->
+        ArrayList<Run>()
+    }
+    private val spills = ArrayList<Path>()
+
+    /**
+     * Buffers grow by doubling, so only half of the budget is used for the tags.
+     */
+    private val maxBufferedTags = Math.max(1L, heapBudget / Integer.BYTES / 2)
+    private var bufferedTags = 0L
+
+    private var readLengthSum = 0L
+    private var readCount = 0L
+
+    init {
+        require(heapBudget > 0) { "heap budget should be positive, got: $heapBudget" }
+    }
+
+    /**
+     * Add a tag to the coverage being built. Only the 5' end of [read] is relevant.
+     */
+    @Throws(IOException::class)
+    fun process(read: Location): SpillingSingleEndCoverageBuilder {
+        data[read.chromosome, read.strand].add(read.get5Bound())
+        readLengthSum += read.length()
+        readCount++
+        if (++bufferedTags >= maxBufferedTags) {
+            spill()
+        }
+        return this
+    }
+
+    /**
+     * Same as [process] for each read of the [batch], but doesn't allocate anything.
+     */
+    @Throws(IOException::class)
+    fun process(batch: ReadsBatch): SpillingSingleEndCoverageBuilder {
+        for (i in 0 until batch.size) {
+            data[batch.chromosome(i), batch.strand(i)].add(batch.get5Bound(i))
+            readLengthSum += batch.ends[i] - batch.starts[i]
+            readCount++
+            if (++bufferedTags >= maxBufferedTags) {
+                spill()
+            }
+        }
+        return this
+    }
+
+    /**
+     * Writes the buffered tags to a new temporary file as sorted runs.
+     */
+    private fun spill() {
+        val spillPath = if (spillDirectory == null) {
+            Files.createTempFile("coverage", ".spill")
+        } else {
+            Files.createTempFile(spillDirectory, "coverage", ".spill")
+        }
+        spillPath.toFile().deleteOnExit()
+        spills.add(spillPath)
+        LOG.debug("Spilling $bufferedTags tags to $spillPath")
+
+        DataOutputStream(BufferedOutputStream(Files.newOutputStream(spillPath), SPILL_BUFFER_SIZE)).use { output ->
+            var offset = 0L
+            for (chromosome in genomeQuery.get()) {
+                for (strand in Strand.values()) {
+                    val tags = data[chromosome, strand]
+                    if (tags.isEmpty) {
+                        continue
+                    }
+                    tags.radixSort()
+                    for (i in 0 until tags.size()) {
+                        output.writeInt(tags[i])
+                    }
+                    runs[chromosome, strand].add(Run(spillPath, offset, tags.size()))
+                    offset += tags.size().toLong() * Integer.BYTES
+                }
+            }
+        }
+
+        data = newBuffers()
+        bufferedTags = 0
+    }
+
+    /**
+     * Merges the sorted runs and saves the coverage to [outputPath], see
+     * [SingleEndCoverage.Builder.build] for the meaning of [unique] and
+     * [fragmentSubsampling]. The temporary files are deleted afterwards.
+     */
+    @Throws(IOException::class)
+    fun save(unique: Boolean, outputPath: Path, fragmentSubsampling: Double = 1.0) {
+        try {
+            val channels = spills.map {
+                it to FileChannel.open(it, StandardOpenOption.READ)
+            }.toMap()
+            try {
+                val detector = SingleEndCoverage.FragmentSizeDetector(
+                        readLengthSum * 1.0 / readCount, fragmentSubsampling
+                )
+                NpzFile.write(outputPath).use { writer ->
+                    writer.write(Coverage.VERSION_FIELD, intArrayOf(Coverage.VERSION))
+                    writer.write(Coverage.PAIRED_FIELD, booleanArrayOf(false))
+
+                    for (chromosome in genomeQuery.get()) {
+                        val positive = merge(chromosome, Strand.PLUS, unique, channels)
+                        val negative = merge(chromosome, Strand.MINUS, unique, channels)
+                        detector.update(chromosome, positive, negative)
+                        writer.write(chromosome.name + '/' + Strand.PLUS, positive.toArray())
+                        writer.write(chromosome.name + '/' + Strand.MINUS, negative.toArray())
+                    }
+
+                    writer.write(SingleEndCoverage.FRAGMENT_FIELD, intArrayOf(detector.fragment))
+                }
+            } finally {
+                channels.values.forEach { it.close() }
+            }
+        } finally {
+            spills.forEach { it.deleteIfExists() }
+            spills.clear()
+        }
+    }
+
+    /**
+     * Merges the on-disk runs and the in-memory buffer for a given
+     * [chromosome] and [strand] into a single sorted list.
+     */
+    private fun merge(
+            chromosome: Chromosome, strand: Strand, unique: Boolean,
+            channels: Map<Path, FileChannel>
+    ): TIntList {
+        val buffer = data[chromosome, strand]
+        buffer.radixSort()
+        val cursors = runs[chromosome, strand].map { RunCursor(channels[it.path]!!, it) } +
+                BufferCursor(buffer)
+        val size = cursors.map { it.size.toLong() }.sum()
+        check(size <= Int.MAX_VALUE) { "Too many tags for ${chromosome.name} $strand: $size" }
+
+        val result = TagsArrayList(size.toInt())
+        val queue = PriorityQueue<TagsCursor>(Math.max(1, cursors.size), Comparator { a, b ->
+            Integer.compare(a.value, b.value)
+        })
+        cursors.filterTo(queue) { it.advance() }
+        while (queue.isNotEmpty()) {
+            val cursor = queue.poll()
+            val value = cursor.value
+            if (!unique || result.isEmpty || result[result.size() - 1] != value) {
+                result.add(value)
+            }
+            if (cursor.advance()) {
+                queue.add(cursor)
+            }
+        }
+
+        // Release the buffer early, it won't be needed anymore.
+        data[chromosome, strand] = TagsArrayList()
+        return result
+    }
+
+    private fun newBuffers() = genomeStrandMap(genomeQuery) { _, _ -> TagsArrayList() }
+
+    private class Run(val path: Path, val offset: Long, val size: Int)
+
+    private abstract class TagsCursor(val size: Int) {
+        /** The current tag, valid after [advance] returned true. */
+        var value = 0
+            protected set
+
+        /** Moves to the next tag, returns false if there are none left. */
+        abstract fun advance(): Boolean
+    }
+
+    private class BufferCursor(private val tags: TIntList) : TagsCursor(tags.size()) {
+        private var index = 0
+
+        override fun advance(): Boolean {
+            if (index == size) {
+                return false
+            }
+            value = tags[index++]
+            return true
+        }
+    }
+
+    private class RunCursor(
+            private val channel: FileChannel,
+            run: Run
+    ) : TagsCursor(run.size) {
+        private val buffer = ByteBuffer.allocate(RUN_BUFFER_SIZE).apply { limit(0) }
+        private var position = run.offset
+        private var remaining = run.size
+
+        override fun advance(): Boolean {
+            if (remaining == 0) {
+                return false
+            }
+            if (!buffer.hasRemaining()) {
+                buffer.clear()
+                buffer.limit(Math.min(RUN_BUFFER_SIZE.toLong(), remaining.toLong() * Integer.BYTES).toInt())
+                while (buffer.hasRemaining()) {
+                    val read = channel.read(buffer, position)
+                    if (read < 0) {
+                        throw IOException("Unexpected end of spill file")
+                    }
+                    position += read
+                }
+                buffer.flip()
+            }
+            value = buffer.int
+            remaining--
+            return true
+        }
+    }
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(SpillingSingleEndCoverageBuilder::class.java)
+
+        /**
+         * System property which enables the spilling builder in
+         * [org.jetbrains.bio.genome.query.ReadsQuery]. The value is
+         * the heap budget in megabytes.
+         */
+        const val HEAP_BUDGET_PROPERTY = "coverage.heap.budget"
+
+        private const val SPILL_BUFFER_SIZE = 1 shl 16
+        private const val RUN_BUFFER_SIZE = 1 shl 16
+
+        /**
+         * Returns the heap budget in bytes configured by [HEAP_BUDGET_PROPERTY]
+         * or null if the spilling builder shouldn't be used.
+         */
+        fun heapBudget(): Long? = System.getProperty(HEAP_BUDGET_PROPERTY)?.toLong()?.let { it shl 20 }
+    }
+}
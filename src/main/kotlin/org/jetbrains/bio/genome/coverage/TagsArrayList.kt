@@ -0,0 +1,169 @@
+package org.jetbrains.bio.genome.coverage
+
+import gnu.trove.TIntCollection
+import gnu.trove.list.TIntList
+import gnu.trove.list.array.TIntArrayList
+import java.util.*
+
+/**
+ * A [TIntArrayList] used by the coverage builders to accumulate tag offsets.
+ *
+ * Unlike the parent class, it supports sorting with a primitive LSD radix
+ * sort and linear-time de-duplication of the sorted list, both in place.
+ * Both can carry a satellite list along, e.g. the fragment lengths.
+ */
+internal class TagsArrayList : TIntArrayList {
+
+    constructor() : super()
+
+    constructor(capacity: Int) : super(capacity)
+
+    constructor(values: TIntCollection) : super(values)
+
+    fun radixSort() = radixSort(_data, _pos)
+
+    /**
+     * Sorts the list and applies the same permutation to [satellite],
+     * so that its values stay aligned with the tags.
+     */
+    fun radixSort(satellite: TagsArrayList) {
+        require(satellite._pos == _pos) {
+            "satellite has ${satellite._pos} values instead of $_pos"
+        }
+        radixSort(_data, _pos, satellite._data)
+    }
+
+    /**
+     * Squishes the runs of equal tags into single tags. Expects
+     * the list to be sorted. Requires a single pass over the list.
+     */
+    fun removeDuplicates() {
+        if (_pos == 0) {
+            return
+        }
+        var size = 1
+        for (i in 1 until _pos) {
+            if (_data[i] != _data[size - 1]) {
+                _data[size++] = _data[i]
+            }
+        }
+        _pos = size
+    }
+
+    /**
+     * Same as [removeDuplicates], but also squishes the [satellite] values,
+     * keeping the smallest one from each run of equal tags.
+     */
+    fun removeDuplicates(satellite: TagsArrayList) {
+        require(satellite._pos == _pos) {
+            "satellite has ${satellite._pos} values instead of $_pos"
+        }
+        if (_pos == 0) {
+            return
+        }
+        var size = 1
+        for (i in 1 until _pos) {
+            if (_data[i] != _data[size - 1]) {
+                _data[size] = _data[i]
+                satellite._data[size++] = satellite._data[i]
+            } else if (satellite._data[i] < satellite._data[size - 1]) {
+                satellite._data[size - 1] = satellite._data[i]
+            }
+        }
+        _pos = size
+        satellite._pos = size
+    }
+}
+
+/**
+ * Sorts the tags and, if [unique] is true, removes the duplicate ones.
+ * The list is modified in place if it's a [TagsArrayList], otherwise
+ * a sorted copy is returned.
+ */
+internal fun TIntList.sortTags(unique: Boolean): TIntList {
+    val tags = this as? TagsArrayList ?: TagsArrayList(this)
+    tags.radixSort()
+    if (unique) {
+        tags.removeDuplicates()
+    }
+    tags.trimToSize()
+    return tags
+}
+
+private const val RADIX_BITS = 11
+private const val RADIX_MASK = (1 shl RADIX_BITS) - 1
+
+/**
+ * Lists shorter than this are sorted with [Arrays.sort], unless
+ * they carry satellite values.
+ */
+private const val RADIX_SORT_THRESHOLD = 1 shl 10
+
+/**
+ * Sorts the first [size] elements of [data] with an LSD radix sort.
+ *
+ * Uses [RADIX_BITS]-bit digits, so at most three passes are required.
+ * Passes where all the values share the same digit are skipped, which
+ * is typically the case for the high digits of short chromosomes.
+ *
+ * If [satellite] is given, its first [size] elements are permuted along
+ * with [data]. The sort is stable, so equal values keep their order.
+ */
+internal fun radixSort(data: IntArray, size: Int, satellite: IntArray? = null) {
+    if (size < RADIX_SORT_THRESHOLD && satellite == null) {
+        Arrays.sort(data, 0, size)
+        return
+    }
+
+    var from = data
+    var to = IntArray(size)
+    var satelliteFrom = satellite
+    var satelliteTo = if (satellite != null) IntArray(size) else null
+    val counts = IntArray(RADIX_MASK + 2)
+    var shift = 0
+    while (shift < Integer.SIZE) {
+        // The last digit contains the sign bit, which has to be flipped
+        // for negative values to precede the positive ones.
+        val flip = if (shift + RADIX_BITS >= Integer.SIZE) Int.MIN_VALUE else 0
+        Arrays.fill(counts, 0)
+        for (i in 0 until size) {
+            counts[(((from[i] xor flip) ushr shift) and RADIX_MASK) + 1]++
+        }
+
+        if (counts.none { it == size }) {
+            for (d in 1 until counts.size) {
+                counts[d] += counts[d - 1]
+            }
+            if (satelliteFrom == null || satelliteTo == null) {
+                for (i in 0 until size) {
+                    val value = from[i]
+                    to[counts[((value xor flip) ushr shift) and RADIX_MASK]++] = value
+                }
+            } else {
+                for (i in 0 until size) {
+                    val value = from[i]
+                    val index = counts[((value xor flip) ushr shift) and RADIX_MASK]++
+                    to[index] = value
+                    satelliteTo[index] = satelliteFrom[i]
+                }
+
+                val tmp = satelliteFrom
+                satelliteFrom = satelliteTo
+                satelliteTo = tmp
+            }
+
+            val tmp = from
+            from = to
+            to = tmp
+        }
+
+        shift += RADIX_BITS
+    }
+
+    if (from !== data) {
+        System.arraycopy(from, 0, data, 0, size)
+    }
+    if (satellite != null && satelliteFrom !== satellite) {
+        System.arraycopy(satelliteFrom!!, 0, satellite, 0, size)
+    }
+}
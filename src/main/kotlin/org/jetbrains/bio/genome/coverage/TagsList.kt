@@ -0,0 +1,270 @@
+package org.jetbrains.bio.genome.coverage
+
+import gnu.trove.list.TIntList
+import gnu.trove.list.array.TIntArrayList
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.npy.NpzFile
+import java.nio.IntBuffer
+
+/**
+ * A read-only sorted list of tag offsets.
+ *
+ * Coverage queries only need random access to the offsets, so the
+ * latter can live either on heap ([HeapTagsList]), directly in
+ * a memory-mapped cache file ([MappedTagsList]) or in a compressed
+ * form ([PackedTagsList]).
+ *
+ * Two lists are equal if they contain the same offsets in the same
+ * order, regardless of the storage.
+ */
+internal abstract class TagsList {
+
+    abstract fun size(): Int
+
+    abstract operator fun get(index: Int): Int
+
+    /**
+     * Returns the approximate number of bytes occupied by the list.
+     */
+    open fun bytes(): Long = Integer.BYTES.toLong() * size()
+
+    /**
+     * Returns a copy of [length] tags starting from [offset].
+     */
+    open fun toArray(offset: Int = 0, length: Int = size()): IntArray {
+        return IntArray(length) { this[offset + it] }
+    }
+
+    /**
+     * Returns the insertion index of [target], see [TIntList.binarySearchLeft].
+     */
+    open fun binarySearchLeft(target: Int) = binarySearchLeft(size(), target) { this[it] }
+
+    /**
+     * Returns the number of tags in [[startOffset], [endOffset]).
+     * Uses two binary searches and allocates nothing.
+     */
+    fun count(startOffset: Int, endOffset: Int): Int {
+        if (startOffset >= endOffset) {
+            return 0
+        }
+        return binarySearchLeft(endOffset) - binarySearchLeft(startOffset)
+    }
+
+    /**
+     * Counts the tags in each of the windows [[starts] + [shift], [ends] + [shift])
+     * and stores the results into [out].
+     *
+     * The windows must be sorted, i.e. both [starts] and [ends] must be
+     * non-decreasing. A single pair of cursors is moved through the list
+     * instead of searching each window independently, the cursors gallop
+     * so that sparse windows over a dense list are handled efficiently too.
+     */
+    fun count(starts: IntArray, ends: IntArray, shift: Int, out: IntArray) {
+        require(starts.size == ends.size && out.size >= starts.size) {
+            "window arrays sizes differ: ${starts.size}, ${ends.size}, ${out.size}"
+        }
+        var startIndex = 0
+        var endIndex = 0
+        for (i in starts.indices) {
+            require(i == 0 || (starts[i - 1] <= starts[i] && ends[i - 1] <= ends[i])) {
+                "windows are not sorted at index $i"
+            }
+            startIndex = gallopLeft(starts[i] + shift, startIndex)
+            endIndex = gallopLeft(ends[i] + shift, Math.max(startIndex, endIndex))
+            out[i] = endIndex - startIndex
+        }
+    }
+
+    /**
+     * Adds the tags to [out], which holds the counts for consecutive bins
+     * of [binSize] bp covering [0, [length]). Tag `t` is counted in a bin
+     * iff the window of the bin shifted by [shift] contains `t`, i.e. the
+     * result is the same as for [count] called for each bin. Tags outside
+     * of the bins are ignored. Requires a single pass over the list.
+     */
+    fun bin(binSize: Int, shift: Int, length: Int, out: IntArray) {
+        for (i in 0 until size()) {
+            val offset = this[i] - shift
+            if (offset in 0 until length) {
+                out[offset / binSize]++
+            }
+        }
+    }
+
+    /**
+     * Returns the first index not less than [from] such that the tag at
+     * this index is greater than or equal to [target]. Assumes that all
+     * tags before [from] are less than [target].
+     */
+    private fun gallopLeft(target: Int, from: Int): Int {
+        val size = size()
+        var lo = from
+        var step = 1
+        while (lo + step < size && this[lo + step - 1] < target) {
+            lo += step
+            step = step shl 1
+        }
+        val hi = Math.min(size, lo + step)
+        return lo + binarySearchLeft(hi - lo, target) { this[lo + it] }
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is TagsList) return false
+
+        val size = size()
+        if (size != other.size()) return false
+        for (i in 0 until size) {
+            if (this[i] != other[i]) return false
+        }
+
+        return true
+    }
+
+    override fun hashCode(): Int {
+        var result = 1
+        for (i in 0 until size()) {
+            result = 31 * result + this[i]
+        }
+        return result
+    }
+
+    override fun toString() = "${javaClass.simpleName}[size=${size()}]"
+}
+
+/**
+ * Heap storage, a thin wrapper around a sorted [TIntList].
+ */
+internal class HeapTagsList(private val data: TIntList) : TagsList() {
+
+    override fun size() = data.size()
+
+    override fun get(index: Int) = data[index]
+
+    override fun toArray(offset: Int, length: Int): IntArray = data.toArray(offset, length)
+}
+
+/**
+ * Memory-mapped storage. [buffer] is expected to be a read-only view
+ * of a mapped file region, so the offsets are never copied to heap
+ * and the OS page cache is shared between processes reading the
+ * same file.
+ */
+internal class MappedTagsList(private val buffer: IntBuffer) : TagsList() {
+
+    override fun size() = buffer.limit()
+
+    override fun get(index: Int) = buffer[index]
+
+    override fun toArray(offset: Int, length: Int): IntArray {
+        val result = IntArray(length)
+        // Absolute bulk get is Java 9+, so use a private view instead.
+        val view = buffer.duplicate()
+        view.position(offset)
+        view.get(result)
+        return result
+    }
+}
+
+internal fun TIntList.asTagsList(): TagsList = HeapTagsList(this)
+
+/**
+ * Reads sorted tag lists from a coverage cache file.
+ *
+ * If [mapped] is true, the lists are memory-mapped directly from
+ * the file whenever possible, otherwise they are copied onto heap.
+ * If [packed] is true, the lists are compressed, see [PackedTagsList].
+ * Files written with packed tags are always loaded compressed.
+ *
+ * If [cache] is not null, the lists which aren't mapped are loaded
+ * lazily on first access, see [LazyTagsList].
+ */
+internal class TagsReader(
+        private val npzReader: NpzFile.Reader,
+        private val mapped: Boolean,
+        private val packed: Boolean = false,
+        private val cache: ResidentTagsCache? = null
+) {
+
+    private val packedFile = try {
+        npzReader[Coverage.PACKED_FIELD].asBooleanArray().single()
+    } catch (e: IllegalStateException) {
+        // Older cache files don't have the field.
+        false
+    }
+
+    private val mappedFile = if (mapped && !packedFile) MappedNpzFile(npzReader.path) else null
+
+    /**
+     * Throws [IllegalStateException] if the file doesn't contain [key].
+     */
+    operator fun get(key: String): TagsList {
+        if (cache != null && mappedFile == null) {
+            return LazyTagsList(size(key), cache) {
+                NpzFile.read(npzReader.path).use { TagsReader(it, false, packed)[key] }
+            }
+        }
+        if (packedFile) {
+            return PackedTagsList.read(npzReader[key].asIntArray())
+        }
+        val buffer = mappedFile?.get(key)
+        val tags = if (buffer != null) {
+            MappedTagsList(buffer)
+        } else {
+            TIntArrayList.wrap(npzReader[key].asIntArray()).asTagsList()
+        }
+        return if (packed) PackedTagsList.pack(tags) else tags
+    }
+
+    /**
+     * Reads the [PackedInts] stored under [key], e.g. the fragment lengths.
+     * These are always packed, so they are mapped regardless of [packedFile].
+     * Throws [IllegalStateException] if the file doesn't contain [key].
+     */
+    fun readInts(key: String): PackedInts {
+        val buffer = if (mapped) mappedEntries[key] else null
+        return if (buffer != null) {
+            PackedInts.read(buffer)
+        } else {
+            PackedInts.read(npzReader[key].asIntArray())
+        }
+    }
+
+    /**
+     * Entry sizes of the file, taken from the NPY headers.
+     */
+    private val sizes: Map<String, Int> by lazy {
+        npzReader.introspect().map { it.name to it.shape.single() }.toMap()
+    }
+
+    private val mappedEntries by lazy { mappedFile ?: MappedNpzFile(npzReader.path) }
+
+    /**
+     * Returns the number of tags stored under [key] without reading them.
+     */
+    private fun size(key: String): Int {
+        if (packedFile) {
+            // The size is the first element of a packed entry.
+            val buffer = mappedEntries[key]
+            return if (buffer != null && buffer.limit() > 0) {
+                buffer[0]
+            } else {
+                PackedTagsList.read(npzReader[key].asIntArray()).size()
+            }
+        }
+        return checkNotNull(sizes[key]) { "${npzReader.path} doesn't contain $key" }
+    }
+}
+
+/**
+ * Writes [tags] into a coverage cache file either as is or compressed,
+ * see [TagsReader].
+ */
+internal fun NpzFile.Writer.write(key: String, tags: TagsList, packed: Boolean) {
+    if (packed) {
+        write(key, PackedTagsList.pack(tags).toIntArray())
+    } else {
+        write(key, tags.toArray())
+    }
+}
@@ -1,25 +1,34 @@
 package org.jetbrains.bio.genome.format
 
+import gnu.trove.list.array.TIntArrayList
+import htsjdk.samtools.QueryInterval
+import htsjdk.samtools.SAMFileHeader
+import htsjdk.samtools.SAMFileWriterFactory
 import htsjdk.samtools.SAMRecord
+import htsjdk.samtools.SamReader
 import htsjdk.samtools.SamReaderFactory
 import htsjdk.samtools.ValidationStringency
 import kotlinx.support.jdk7.use
 import org.jetbrains.bio.genome.*
+import org.jetbrains.bio.genome.containers.LocationsMergingList
 import org.jetbrains.bio.util.*
-import picard.sam.markduplicates.MarkDuplicates
 import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Attempts to detect whether the file contains paired-end reads
  * by looking at the first valid read.
  * Currently only BAM and CRAM files are supported for paired-end processing.
+ *
+ * CRAM files are decoded against the 2bit sequence of [genome] if given,
+ * see [openSam].
  */
-fun isPaired(path: Path): Boolean {
+fun isPaired(path: Path, genome: Genome? = null): Boolean {
     return when (path.extension) {
         "bam", "cram" ->
-            SamReaderFactory.make()
-                    .validationStringency(ValidationStringency.SILENT)
-                    .open(path.toFile()).use {
+            openSam(path, genome).use {
                         it.forEach { record ->
                             if (record.invalid()) {
                                 return@forEach
@@ -35,44 +44,94 @@ fun isPaired(path: Path): Boolean {
 /**
  * Extract all (valid) reads from BAM or BED[.gz] and feed them to [consumer].
  * Reads that don't belong to the provided [genomeQuery] are ignored.
+ *
+ * If [parallel] is true and an index is available for the BAM or CRAM file,
+ * each chromosome is read by its own reader in parallel and chromosomes outside
+ * of [genomeQuery] aren't decoded at all. In this case [consumer] is called
+ * concurrently, but never concurrently for the same chromosome.
+ * Otherwise the file is scanned sequentially.
+ *
+ * If [deduplicate] is true, the duplicate reads in a coordinate-sorted BAM or
+ * CRAM file are removed on the fly, see [DuplicatesFilter]. BED files aren't
+ * supported in this case.
+ *
+ * If [targets] are given, only the reads overlapping them on either strand are
+ * passed to [consumer]. Only the BGZF blocks holding such reads are fetched,
+ * which requires an index for the BAM or CRAM file, see [forEachRecordSink].
+ *
+ * See [processReadsBatches] for an allocation-free alternative.
+ */
+fun processReads(
+        genomeQuery: GenomeQuery, path: Path,
+        parallel: Boolean = false,
+        deduplicate: Boolean = false,
+        targets: LocationsMergingList? = null,
+        consumer: (Location) -> Unit
+) {
+    processReadsBatches(genomeQuery, path, parallel, deduplicate = deduplicate, targets = targets) { batch ->
+        for (i in 0 until batch.size) {
+            consumer(batch.toLocation(i))
+        }
+    }
+}
+
+/**
+ * Same as [processReads], but feeds the reads to [consumer] in batches of at most
+ * [batchSize] reads in columnar form, so that no objects are allocated per read,
+ * see [ReadsBatch].
+ *
+ * In the [parallel] mode each reader has its own batch, so [consumer] is called
+ * concurrently, but the reads of the same chromosome are never in batches being
+ * processed concurrently.
  */
-fun processReads(genomeQuery: GenomeQuery, path: Path, consumer: (Location) -> Unit) {
+fun processReadsBatches(
+        genomeQuery: GenomeQuery, path: Path,
+        parallel: Boolean = false,
+        batchSize: Int = ReadsBatch.DEFAULT_CAPACITY,
+        deduplicate: Boolean = false,
+        targets: LocationsMergingList? = null,
+        consumer: (ReadsBatch) -> Unit
+) {
     val progress = Progress { title = "Loading reads ${path.name}" }.unbounded()
     try {
         when (path.extension) {
             //     vvv this is silly, yes.
             "bed", "gz", "zip" -> {
+                check(!deduplicate) { "Duplicates removal is only supported for BAM and CRAM, got: $path" }
+                check(targets == null) { "Targeted reading is only supported for BAM and CRAM, got: $path" }
                 val format = BedFormat.auto(path)
-                format.parse(path) {
-                    it.forEach { entry ->
-                        val chromosome = genomeQuery[entry.chrom]
-                        if (chromosome != null) {
-                            val e = entry.unpackRegularFields(format)
-                            val strand = e.strand.toStrand()
-                            progress.report()
-                            consumer(Location(
-                                e.start, Math.max(e.start + 1, e.end), chromosome, strand
-                            ))
+                val batch = ReadsBatch(genomeQuery, batchSize)
+                // Batch chromosome indices by the scanner chromosome index.
+                val chromosomeIndices = TIntArrayList()
+                BedScanner(path.inputStream(), format, path.toAbsolutePath().toString()).use { scanner ->
+                    while (scanner.next()) {
+                        while (chromosomeIndices.size() < scanner.chromosomesCount) {
+                            val chromosome = genomeQuery[scanner.chromosomeName(chromosomeIndices.size())]
+                            chromosomeIndices.add(if (chromosome != null) batch.indexOf(chromosome) else -1)
+                        }
+                        val chromosomeIndex = chromosomeIndices[scanner.chromosomeIndex]
+                        if (chromosomeIndex >= 0) {
+                            batch.add(
+                                    chromosomeIndex, scanner.start, Math.max(scanner.start + 1, scanner.end),
+                                    scanner.strand == '-', ReadsBatch.UNKNOWN_MAPQ
+                            )
+                            if (batch.isFull) {
+                                progress.report(batch.size.toLong())
+                                consumer(batch)
+                                batch.clear()
+                            }
                         }
                     }
                 }
+                if (batch.size > 0) {
+                    progress.report(batch.size.toLong())
+                    consumer(batch)
+                }
             }
 
             "bam", "cram" -> {
-                //XXX: [for future] Previous version was processing file in parallel by chromosome
-                // it required indexed bam file + provide noticeable speedup (in case of methylome parsing)
-                // Parsing result is normally cached to *.npz file, so it isn't a bottle neck at the moment.
-                SamReaderFactory.make().validationStringency(ValidationStringency.SILENT).open(path.toFile()).use {
-                    it.forEach { record ->
-                        if (record.invalid()) {
-                            return@forEach
-                        }
-                        val location = record.toLocation(genomeQuery)
-                        progress.report()
-                        if (location != null) {
-                            consumer(location)
-                        }
-                    }
+                forEachRecordSink(genomeQuery, path, parallel, deduplicate, targets) { header ->
+                    BatchSink(genomeQuery, header, batchSize, progress, consumer)
                 }
             }
             else -> error("unsupported file type: $path")
@@ -94,57 +153,59 @@ fun processReads(genomeQuery: GenomeQuery, path: Path, consumer: (Location) -> U
  *
  * Returns the number of valid unpaired reads encountered. If it's not zero,
  * something very wrong has happened.
+ *
+ * See [processReads] for the meaning of [parallel], [deduplicate] and [targets].
  */
 fun processPairedReads(
-        genomeQuery: GenomeQuery, path: Path, consumer: (Chromosome, Int, Int, Int) -> Unit
+        genomeQuery: GenomeQuery, path: Path,
+        parallel: Boolean = false,
+        deduplicate: Boolean = false,
+        targets: LocationsMergingList? = null,
+        consumer: (Chromosome, Int, Int, Int) -> Unit
 ): Int {
     val progress = Progress { title = "Loading paired-end reads ${path.name}" }.unbounded()
     try {
-        var unpairedCount = 0
+        val unpairedCount = AtomicInteger()
         when (path.extension) {
             "bam", "cram" -> {
-                SamReaderFactory.make()
-                        .validationStringency(ValidationStringency.SILENT)
-                        .open(path.toFile()).use { iterationReader ->
-                            iterationReader.forEach { record ->
-                                if (record.invalid()) {
-                                    return@forEach
-                                }
-                                progress.report()
-                                if (!record.readPairedFlag) {
-                                    /* this really, really shouldn't happen,
-                                    * but it's nice to have a safety net */
-                                    unpairedCount++
-                                    return@forEach
-                                }
-                                if (record.mateUnmappedFlag) {
-                                    // we skip partially mapped pairs
-                                    return@forEach
-                                }
-                                if (!record.readNegativeStrandFlag || record.mateNegativeStrandFlag
-                                        || record.referenceName != record.mateReferenceName) {
-                                    // We only process negative strand reads.
-                                    // We skip same-strand pairs because we can't easily
-                                    // infer insert size for them.
-                                    // We also skip pairs mapped to different chromosomes.
-                                    return@forEach
-                                }
-
-                                val pos = record.alignmentStart
-                                val pnext = record.mateAlignmentStart
-                                val length = record.readLength
-                                val chromosome = genomeQuery[record.referenceName]
-                                if (pnext != 0 && length != 0 && chromosome != null) {
-                                    consumer(
-                                        chromosome, pos, pnext, length
-                                    )
-                                }
-                            }
-                        }
+                forEachRecord(genomeQuery, path, parallel, deduplicate, targets) { record ->
+                    if (record.invalid()) {
+                        return@forEachRecord
+                    }
+                    progress.report()
+                    if (!record.readPairedFlag) {
+                        /* this really, really shouldn't happen,
+                        * but it's nice to have a safety net */
+                        unpairedCount.incrementAndGet()
+                        return@forEachRecord
+                    }
+                    if (record.mateUnmappedFlag) {
+                        // we skip partially mapped pairs
+                        return@forEachRecord
+                    }
+                    if (!record.readNegativeStrandFlag || record.mateNegativeStrandFlag
+                            || record.referenceName != record.mateReferenceName) {
+                        // We only process negative strand reads.
+                        // We skip same-strand pairs because we can't easily
+                        // infer insert size for them.
+                        // We also skip pairs mapped to different chromosomes.
+                        return@forEachRecord
+                    }
+
+                    val pos = record.alignmentStart
+                    val pnext = record.mateAlignmentStart
+                    val length = record.readLength
+                    val chromosome = genomeQuery[record.referenceName]
+                    if (pnext != 0 && length != 0 && chromosome != null) {
+                        consumer(
+                            chromosome, pos, pnext, length
+                        )
+                    }
+                }
             }
             else -> error("unsupported file type: $path")
         }
-        return unpairedCount
+        return unpairedCount.get()
     } catch (e: IllegalStateException) {
         val message = Logs.getMessage(e, includeStackTrace = true)
         error("Error when processing paired-end reads: $message")
@@ -153,17 +214,262 @@ fun processPairedReads(
     }
 }
 
+/**
+ * Feeds all records of a BAM or CRAM file to [consumer].
+ *
+ * If [parallel] is true and the file is indexed, the references are queried
+ * in parallel, one reader per chromosome, and only those references which
+ * belong to [genomeQuery] are decoded. Otherwise the file is scanned
+ * sequentially by a single reader, for BAM files the blocks are inflated
+ * by a pool of threads ahead of the reader, see [forEachBamRecord].
+ *
+ * If [deduplicate] is true, the duplicates are removed before the records
+ * reach [consumer], see [DuplicatesFilter].
+ *
+ * If [targets] are given, the file must be indexed, and only the records
+ * overlapping the targets on either strand are read. The targets are turned
+ * into the merged query intervals of each reference, see [queryIntervals],
+ * and the index chunks of the intervals are merged by htsjdk, so that each
+ * BGZF block is fetched at most once.
+ */
+private fun forEachRecord(
+        genomeQuery: GenomeQuery, path: Path, parallel: Boolean,
+        deduplicate: Boolean,
+        targets: LocationsMergingList?,
+        consumer: (SAMRecord) -> Unit
+) = forEachRecordSink(genomeQuery, path, parallel, deduplicate, targets) {
+    object : RecordSink {
+        override fun accept(record: SAMRecord) = consumer(record)
+    }
+}
+
+/**
+ * Same as [forEachRecord], but each reader feeds the records to its own sink
+ * created by [newSink], which is flushed once the reader is done.
+ */
+internal fun forEachRecordSink(
+        genomeQuery: GenomeQuery, path: Path, parallel: Boolean,
+        deduplicate: Boolean,
+        targets: LocationsMergingList? = null,
+        newSink: (SAMFileHeader) -> RecordSink
+) {
+    if (deduplicate) {
+        return forEachRecordSink(genomeQuery, path, parallel, false, targets) { header ->
+            check(header.sortOrder == SAMFileHeader.SortOrder.coordinate) {
+                "Duplicates removal requires a coordinate-sorted file, got: $path"
+            }
+            DeduplicatingSink(newSink(header))
+        }
+    }
+    if (targets != null) {
+        val references = checkNotNull(indexedReferences(genomeQuery, path)) {
+            "Targeted reading requires an indexed file, got: $path"
+        }
+        val groups = if (parallel) references.values.toList() else listOf(references.values.flatten())
+        if (groups.isNotEmpty()) {
+            groups.map { names ->
+                Callable {
+                    openSam(path, genomeQuery.genome).use { reader ->
+                        val sink = newSink(reader.fileHeader)
+                        val intervals = queryIntervals(genomeQuery, reader.fileHeader, names, targets)
+                        if (intervals.isNotEmpty()) {
+                            reader.queryOverlapping(intervals).use { iterator ->
+                                iterator.forEach { sink.accept(it) }
+                            }
+                        }
+                        sink.flush()
+                    }
+                }
+            }.await(parallel)
+        }
+        return
+    }
+
+    val references = if (parallel) indexedReferences(genomeQuery, path) else null
+    if (references == null) {
+        if (path.extension == "bam" && parallelismLevel() > 1) {
+            val header = openSam(path).use { it.fileHeader }
+            val sink = newSink(header)
+            forEachBamRecord(path, header, parallelismLevel()) { sink.accept(it) }
+            sink.flush()
+        } else {
+            openSam(path, genomeQuery.genome).use { reader ->
+                val sink = newSink(reader.fileHeader)
+                reader.forEach { sink.accept(it) }
+                sink.flush()
+            }
+        }
+        return
+    }
+
+    // 'htsjdk' doesn't allow concurrent queries on 'BAMFileReader'
+    // thus we have to re-create 'SamReader' for each chromosome.
+    val executor = Executors.newWorkStealingPool(parallelismLevel())
+    executor.awaitAll(references.values.map { names ->
+        Callable {
+            openSam(path, genomeQuery.genome).use { reader ->
+                val sink = newSink(reader.fileHeader)
+                for (name in names) {
+                    reader.query(name, 0, 0, false).use { iterator ->
+                        iterator.forEach { sink.accept(it) }
+                    }
+                }
+                sink.flush()
+            }
+        }
+    })
+    check(executor.shutdownNow().isEmpty())
+}
+
+internal interface RecordSink {
+    fun accept(record: SAMRecord)
+
+    fun flush() {}
+}
+
+/**
+ * Passes the records surviving the [DuplicatesFilter] to [sink].
+ */
+private class DeduplicatingSink(private val sink: RecordSink) : RecordSink {
+
+    private val filter = DuplicatesFilter { sink.accept(it) }
+
+    override fun accept(record: SAMRecord) = filter.accept(record)
+
+    override fun flush() {
+        filter.flush()
+        sink.flush()
+    }
+}
+
+/**
+ * Collects the valid records into a [ReadsBatch] and passes it
+ * to [consumer] whenever it's full.
+ */
+private class BatchSink(
+        genomeQuery: GenomeQuery,
+        header: SAMFileHeader,
+        batchSize: Int,
+        private val progress: Progress,
+        private val consumer: (ReadsBatch) -> Unit
+) : RecordSink {
+
+    private val batch = ReadsBatch(genomeQuery, batchSize)
+
+    /** Maps the BAM reference indices to the batch chromosome indices. */
+    private val chromosomeIndices = header.sequenceDictionary.sequences.map { sequence ->
+        genomeQuery[sequence.sequenceName]?.let { batch.indexOf(it) } ?: -1
+    }.toIntArray()
+
+    private var processed = 0L
+
+    override fun accept(record: SAMRecord) {
+        if (record.invalid()) {
+            return
+        }
+        processed++
+        val chromosomeIndex = chromosomeIndices[record.referenceIndex]
+        if (chromosomeIndex < 0) {
+            return
+        }
+        // 1 based, end inclusive
+        batch.add(
+                chromosomeIndex, record.alignmentStart - 1, record.alignmentEnd,
+                record.readNegativeStrandFlag, record.mappingQuality
+        )
+        if (batch.isFull) {
+            flush()
+        }
+    }
+
+    override fun flush() {
+        progress.report(processed)
+        processed = 0
+        if (batch.size > 0) {
+            consumer(batch)
+            batch.clear()
+        }
+    }
+}
+
+/**
+ * Returns the BAM references grouped by the chromosome they correspond to,
+ * or null if the file isn't indexed.
+ */
+private fun indexedReferences(genomeQuery: GenomeQuery, path: Path): Map<Chromosome, List<String>>? {
+    return openSam(path).use { reader ->
+        if (!reader.hasIndex()) {
+            null
+        } else {
+            reader.fileHeader.sequenceDictionary.sequences
+                    .map { it.sequenceName }
+                    .filter { genomeQuery[it] != null }
+                    .groupBy { genomeQuery[it]!! }
+        }
+    }
+}
+
+/**
+ * Returns the sorted disjoint 1-based query intervals covering the [targets]
+ * on both strands of the given [references]. Overlapping and adjacent targets
+ * are merged, see [QueryInterval.optimizeIntervals].
+ */
+private fun queryIntervals(
+        genomeQuery: GenomeQuery,
+        header: SAMFileHeader,
+        references: List<String>,
+        targets: LocationsMergingList
+): Array<QueryInterval> {
+    val intervals = ArrayList<QueryInterval>()
+    for (name in references) {
+        val chromosome = genomeQuery[name] ?: continue
+        val referenceIndex = header.getSequenceIndex(name)
+        for (strand in Strand.values()) {
+            for (location in targets[chromosome, strand]) {
+                intervals.add(QueryInterval(referenceIndex, location.startOffset + 1, location.endOffset))
+            }
+        }
+    }
+    return QueryInterval.optimizeIntervals(intervals.toTypedArray())
+}
+
+/**
+ * Opens a BAM or CRAM file. CRAM files are decoded against the 2bit sequence
+ * of [genome], if given, so that no FASTA reference is needed, see
+ * [TwoBitReferenceSource].
+ */
+private fun openSam(path: Path, genome: Genome? = null): SamReader {
+    val factory = SamReaderFactory.make().validationStringency(ValidationStringency.SILENT)
+    if (genome != null && path.extension == "cram") {
+        factory.referenceSource(TwoBitReferenceSource(genome.twoBitPath()))
+    }
+    return factory.open(path.toFile())
+}
+
+/**
+ * Writes the reads of a coordinate-sorted BAM file without the duplicates
+ * next to it, see [DuplicatesFilter], and returns the path to the result.
+ *
+ * Consider [processReads] with `deduplicate = true` to avoid the
+ * intermediate file altogether.
+ */
 fun removeDuplicates(path: Path): Path {
     check(path.extension == "bam") {
         "Only BAM supported, got: $path"
     }
     val uniqueReads = path.toString().replace(".bam", "_unique.bam").toPath()
     uniqueReads.checkOrRecalculate("Unique reads") { output ->
-        MarkDuplicates.main(arrayOf(
-                "REMOVE_DUPLICATES=true",
-                "INPUT=$path",
-                "OUTPUT=${output.path}",
-                "M=${path.toString().replace(".bam", "_metrics.txt")}"))
+        openSam(path).use { reader ->
+            val header = reader.fileHeader
+            check(header.sortOrder == SAMFileHeader.SortOrder.coordinate) {
+                "Duplicates removal requires a coordinate-sorted file, got: $path"
+            }
+            SAMFileWriterFactory().makeBAMWriter(header, true, output.path.toFile()).use { writer ->
+                val filter = DuplicatesFilter { writer.addAlignment(it) }
+                reader.forEach { filter.accept(it) }
+                filter.flush()
+            }
+        }
     }
     return uniqueReads
 }
@@ -176,12 +482,3 @@ private fun SAMRecord.invalid(): Boolean = readUnmappedFlag
         || duplicateReadFlag
         || mappingQuality == 0 // BWA multi-alignment evidence
         || alignmentStart == 0
-
-private fun SAMRecord.toLocation(genomeQuery: GenomeQuery): Location? =
-        // 1 based, end inclusive
-        genomeQuery[referenceName]?.let { chromosome ->
-            Location(
-                alignmentStart - 1, alignmentEnd,
-                chromosome,
-                if (readNegativeStrandFlag) Strand.MINUS else Strand.PLUS
-            ) }
\ No newline at end of file
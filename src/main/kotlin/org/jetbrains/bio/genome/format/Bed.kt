@@ -149,16 +149,10 @@ data class BedFormat(
 
         fun detectDelimiter(path: Path) = detectDelimiter(path.toUri())
 
-        fun detectDelimiter(source: URI) = source.reader().use { reader ->
-            val csvFile = source.hasExt("csv")
-            val maxAttempts = 1000
-            var currentAttempt = 0
-
-            var delimiter: Char? = null
-            while (delimiter == null && currentAttempt < maxAttempts) {
-                currentAttempt++
-                val line = reader.readLine() ?: break
+        fun detectDelimiter(source: URI) = detectDelimiter(readPrefix(source), source.hasExt("csv"))
 
+        private fun detectDelimiter(lines: List<String>, csvFile: Boolean): Char {
+            for (line in lines) {
                 if (!NON_DATA_LINE_PATTERN.matches(line)) {
                     val delimiterCandidate = when {
                         // normally *.csv files with \t are actually tab separated and
@@ -166,12 +160,33 @@ data class BedFormat(
                         csvFile && !line.contains('\t') -> ','
                         else -> '\t'
                     }
-                    delimiter = detectDelimiterFromLine(line, delimiterCandidate)
+                    return detectDelimiterFromLine(line, delimiterCandidate)
+                }
+            }
+            return if (csvFile) ',' else '\t'
+        }
+
+        /**
+         * Reads the first lines of [source], which are enough to detect both the
+         * delimiter and the format, so that the source is only opened once.
+         * The track and comment lines don't count towards [MAX_PREFIX_DATA_LINES],
+         * so that the prefix contains data lines regardless of the header length.
+         */
+        private fun readPrefix(source: URI) = source.reader().use { reader ->
+            val lines = ArrayList<String>()
+            var dataLines = 0
+            while (dataLines < MAX_PREFIX_DATA_LINES) {
+                val line = reader.readLine() ?: break
+                lines.add(line)
+                if (!NON_DATA_LINE_PATTERN.matches(line)) {
+                    dataLines++
                 }
             }
-            delimiter ?: (if (csvFile) ',' else '\t')
+            lines
         }
 
+        private const val MAX_PREFIX_DATA_LINES = 1000
+
         internal fun detectDelimiter(text: String, defaultDelimiter: Char): Char {
             for (line in text.lineSequence()) {
                 if (NON_DATA_LINE_PATTERN.matches(line)) {
@@ -202,43 +217,41 @@ data class BedFormat(
 
         fun auto(path: Path) = auto(path.toUri())
         fun auto(text: String, source: String?, defaultDelimiter: Char = '\t') = auto(
-                text.byteInputStream(), detectDelimiter(text, defaultDelimiter), source
+                text.lineSequence(), detectDelimiter(text, defaultDelimiter), source
         )
-        fun auto(source: URI) = source.stream().use { stream ->
-            auto(stream, detectDelimiter(source), source.presentablePath())
+        fun auto(source: URI): BedFormat {
+            val prefix = readPrefix(source)
+            return auto(prefix.asSequence(), detectDelimiter(prefix, source.hasExt("csv")), source.presentablePath())
         }
 
-        private fun auto(stream: InputStream, delimiter: Char, source: String?) =
-                stream.bufferedReader().use { reader ->
-                    var format = from("bed3", delimiter)
-                    var headerCandidateMet = false
-                    while (true) {
-                        val line = reader.readLine() ?: break
-
-                        if (NON_DATA_LINE_PATTERN.matches(line)) {
-                            continue
-                        }
+        private fun auto(lines: Sequence<String>, delimiter: Char, source: String?): BedFormat {
+            var format = from("bed3", delimiter)
+            var headerCandidateMet = false
+            for (line in lines) {
+                if (NON_DATA_LINE_PATTERN.matches(line)) {
+                    continue
+                }
 
-                        // Try to parse 1st line, if failed it could be header
-                        // with 'start' 'end' fields instead of integer offsets,
-                        // so try again with 2nd line, if fails again => throw an
-                        // error
-                        format = try {
-                            detectFormatFromLine(delimiter, line, source)
-                        } catch (e: IllegalArgumentException) {
-                            if (!headerCandidateMet) {
-                                headerCandidateMet = true
-                                // try again with next line
-                                continue
-                            } else {
-                                // give up
-                                throw e
-                            }
-                        }
-                        break
+                // Try to parse 1st line, if failed it could be header
+                // with 'start' 'end' fields instead of integer offsets,
+                // so try again with 2nd line, if fails again => throw an
+                // error
+                format = try {
+                    detectFormatFromLine(delimiter, line, source)
+                } catch (e: IllegalArgumentException) {
+                    if (!headerCandidateMet) {
+                        headerCandidateMet = true
+                        // try again with next line
+                        continue
+                    } else {
+                        // give up
+                        throw e
                     }
-                    format
                 }
+                break
+            }
+            return format
+        }
 
         private fun detectFormatFromLine(delimiter: Char, line: String, source: String?): BedFormat {
             val chunks = Splitter.on(delimiter).trimResults().omitEmptyStrings().split(line).toList()
@@ -0,0 +1,305 @@
+package org.jetbrains.bio.genome.format
+
+import gnu.trove.list.array.TIntArrayList
+import gnu.trove.list.array.TLongArrayList
+import htsjdk.samtools.util.BlockCompressedInputStream
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.util.await
+import org.jetbrains.bio.util.inputStream
+import org.jetbrains.bio.util.parallelismLevel
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Callable
+
+/**
+ * Scans the BED file at [path] in up to [chunks] parts concurrently and returns
+ * the results of [consumer] for each part in the file order.
+ *
+ * The file is split into chunks of at least [minChunkSize] bytes aligned to line
+ * boundaries: plain files at arbitrary byte offsets, BGZF-compressed files, e.g.
+ * produced by `bgzip`, at the block boundaries. Other compressed files can't be
+ * split and are scanned as a single chunk. Each line is scanned exactly once, by
+ * the chunk its first byte belongs to.
+ *
+ * [consumer] is called concurrently with a separate [BedScanner] per chunk,
+ * the scanners are closed afterwards.
+ */
+@Throws(IOException::class)
+internal fun <T> scanBedChunks(
+        path: Path,
+        format: BedFormat,
+        chunks: Int = parallelismLevel(),
+        minChunkSize: Long = MIN_CHUNK_SIZE,
+        consumer: (BedScanner) -> T
+): List<T> {
+    require(chunks > 0) { "chunks number should be positive, got: $chunks" }
+    require(minChunkSize > 0) { "chunk size should be positive, got: $minChunkSize" }
+    val source = path.toAbsolutePath().toString()
+    val name = path.fileName.toString().toLowerCase()
+    val streams = when {
+        name.endsWith(".gz") -> splitBgzf(path, chunks, minChunkSize)
+        name.endsWith(".zip") -> null
+        else -> splitPlain(path, chunks, minChunkSize)
+    } ?: listOf({ path.inputStream() })
+
+    if (streams.size == 1) {
+        return listOf(BedScanner(streams.single()(), format, source).use(consumer))
+    }
+    val results = arrayOfNulls<Any>(streams.size)
+    streams.mapIndexed { i, open ->
+        Callable {
+            results[i] = BedScanner(open(), format, source).use(consumer)
+        }
+    }.await(parallel = true)
+    @Suppress("UNCHECKED_CAST")
+    return results.toList() as List<T>
+}
+
+/**
+ * Chunks smaller than this aren't worth a separate task.
+ */
+private const val MIN_CHUNK_SIZE = 8L shl 20
+
+private const val CHUNK_BUFFER_SIZE = 1 shl 16
+
+/**
+ * Returns the number of chunks to split [size] bytes into,
+ * so that each one is at least [minChunkSize] bytes.
+ */
+private fun chunksCount(size: Long, chunks: Int, minChunkSize: Long) =
+        Math.max(1L, Math.min(chunks.toLong(), size / minChunkSize)).toInt()
+
+private fun splitPlain(path: Path, chunks: Int, minChunkSize: Long): List<() -> InputStream> {
+    val size = Files.size(path)
+    val count = chunksCount(size, chunks, minChunkSize)
+    // Uncompressed offsets of the chunks, the last one is the file size.
+    val bounds = LongArray(count + 1) { size / count * it }
+    bounds[count] = size
+    return (0 until count).map { i ->
+        {
+            // Every chunk except the first one starts at the last byte of the
+            // previous chunk, see [LineChunkInputStream].
+            val from = if (i == 0) 0L else bounds[i] - 1
+            val channel = FileChannel.open(path, StandardOpenOption.READ)
+            channel.position(from)
+            LineChunkInputStream(
+                    Channels.newInputStream(channel).buffered(CHUNK_BUFFER_SIZE),
+                    skipFirstLine = i > 0,
+                    lastOffset = if (i == count - 1) Long.MAX_VALUE else bounds[i + 1] - 1 - from)
+        }
+    }
+}
+
+/**
+ * Returns null if [path] isn't a BGZF file, e.g. it was compressed by
+ * the regular `gzip`.
+ */
+private fun splitBgzf(path: Path, chunks: Int, minChunkSize: Long): List<() -> InputStream>? {
+    val blocks = BgzfBlocks.read(path) ?: return null
+    val count = chunksCount(blocks.uncompressedSize, chunks, minChunkSize)
+
+    // Uncompressed offsets of the chunks, each one is a block start.
+    val bounds = TLongArrayList(count + 1)
+    bounds.add(0)
+    var block = 0
+    for (i in 1 until count) {
+        val target = blocks.uncompressedSize / count * i
+        while (block < blocks.size && blocks.uncompressedOffset(block) < target) {
+            block++
+        }
+        val offset = if (block < blocks.size) blocks.uncompressedOffset(block) else blocks.uncompressedSize
+        if (offset > bounds[bounds.size() - 1] && offset < blocks.uncompressedSize) {
+            bounds.add(offset)
+        }
+    }
+    bounds.add(blocks.uncompressedSize)
+
+    val actualCount = bounds.size() - 1
+    return (0 until actualCount).map { i ->
+        {
+            val from = if (i == 0) 0L else bounds[i] - 1
+            val stream = BlockCompressedInputStream(path.toFile())
+            if (i > 0) {
+                stream.seek(blocks.virtualOffset(from))
+            }
+            LineChunkInputStream(
+                    stream,
+                    skipFirstLine = i > 0,
+                    lastOffset = if (i == actualCount - 1) Long.MAX_VALUE else bounds[i + 1] - 1 - from)
+        }
+    }
+}
+
+/**
+ * Compressed and uncompressed offsets of the BGZF blocks of a file,
+ * only the headers and the footers of the blocks are read.
+ */
+private class BgzfBlocks(
+        private val offsets: TLongArrayList,
+        private val uncompressedOffsets: TLongArrayList,
+        private val sizes: TIntArrayList,
+        val uncompressedSize: Long
+) {
+    val size: Int get() = offsets.size()
+
+    fun uncompressedOffset(block: Int) = uncompressedOffsets[block]
+
+    /**
+     * Returns the BGZF virtual offset of a given uncompressed [offset],
+     * see [BlockCompressedInputStream.seek].
+     */
+    fun virtualOffset(offset: Long): Long {
+        var index = uncompressedOffsets.binarySearch(offset)
+        if (index < 0) {
+            index = -index - 2
+        }
+        // Empty blocks share the offset with the following one.
+        while (sizes[index] == 0) {
+            index++
+        }
+        return (offsets[index] shl 16) or (offset - uncompressedOffsets[index])
+    }
+
+    companion object {
+        private const val HEADER_LENGTH = 18
+        private const val FOOTER_LENGTH = 4
+
+        /**
+         * Returns null if the file doesn't consist of valid BGZF blocks.
+         */
+        fun read(path: Path): BgzfBlocks? {
+            val offsets = TLongArrayList()
+            val uncompressedOffsets = TLongArrayList()
+            val sizes = TIntArrayList()
+            var uncompressedSize = 0L
+            FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+                val header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+                val footer = ByteBuffer.allocate(FOOTER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+                val length = channel.size()
+                var offset = 0L
+                while (offset < length) {
+                    if (!readFully(channel, header, offset) || !isBgzfHeader(header)) {
+                        return null
+                    }
+                    val blockSize = (header.getShort(16).toInt() and 0xffff) + 1
+                    if (!readFully(channel, footer, offset + blockSize - FOOTER_LENGTH)) {
+                        return null
+                    }
+                    val size = footer.getInt(0)
+                    offsets.add(offset)
+                    uncompressedOffsets.add(uncompressedSize)
+                    sizes.add(size)
+                    uncompressedSize += size
+                    offset += blockSize
+                }
+            }
+            return if (offsets.isEmpty) null else BgzfBlocks(offsets, uncompressedOffsets, sizes, uncompressedSize)
+        }
+
+        private fun readFully(channel: FileChannel, buffer: ByteBuffer, position: Long): Boolean {
+            buffer.clear()
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    return false
+                }
+            }
+            return true
+        }
+
+        /**
+         * The header written by `bgzip` and htsjdk: gzip with a single
+         * extra subfield 'BC' holding the block size.
+         */
+        private fun isBgzfHeader(header: ByteBuffer) =
+                header.get(0) == 31.toByte() && header.get(1) == 139.toByte() &&
+                        header.get(2) == 8.toByte() && header.get(3) == 4.toByte() &&
+                        header.getShort(10).toInt() == 6 &&
+                        header.get(12) == 'B'.toByte() && header.get(13) == 'C'.toByte() &&
+                        header.getShort(14).toInt() == 2
+    }
+}
+
+/**
+ * Serves the lines starting within a single chunk of an uncompressed stream.
+ *
+ * Unless this is the first chunk, i.e. [skipFirstLine] is false, [input] should
+ * be positioned at the last byte of the previous chunk, and everything up to and
+ * including the first newline is skipped. The stream ends right after the first
+ * newline at or after [lastOffset], relative to the initial position of [input],
+ * where [lastOffset] is the last byte of this chunk. Hence the neighbouring
+ * chunks agree on the line which separates them.
+ */
+internal class LineChunkInputStream(
+        private val input: InputStream,
+        private var skipFirstLine: Boolean,
+        private val lastOffset: Long
+) : InputStream() {
+
+    private var position = 0L
+    private var finished = false
+    private val single = ByteArray(1)
+
+    override fun read(): Int {
+        return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xff
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) {
+            return 0
+        }
+        if (skipFirstLine) {
+            skipFirstLine = false
+            skipLine()
+        }
+        if (finished) {
+            return -1
+        }
+        val count = input.read(b, off, len)
+        if (count < 0) {
+            finished = true
+            return -1
+        }
+        val from = lastOffset - position
+        if (from < count) {
+            for (i in Math.max(0L, from).toInt() until count) {
+                if (b[off + i] == NEWLINE) {
+                    position += i + 1
+                    finished = true
+                    return i + 1
+                }
+            }
+        }
+        position += count
+        return count
+    }
+
+    override fun close() = input.close()
+
+    private fun skipLine() {
+        while (true) {
+            val b = input.read()
+            if (b < 0) {
+                finished = true
+                return
+            }
+            position++
+            if (b.toByte() == NEWLINE) {
+                // The line separating the chunks is past this chunk,
+                // so it has nothing to scan.
+                finished = position - 1 >= lastOffset
+                return
+            }
+        }
+    }
+
+    companion object {
+        private const val NEWLINE = '\n'.toByte()
+    }
+}
@@ -0,0 +1,366 @@
+package org.jetbrains.bio.genome.format
+
+import com.google.common.io.Closeables
+import org.jetbrains.bio.big.BedEntry
+import org.jetbrains.bio.genome.format.BedParser.Companion.Stringency.LENIENT
+import org.jetbrains.bio.genome.format.BedParser.Companion.Stringency.STRICT
+import org.slf4j.LoggerFactory
+import java.io.InputStream
+
+/**
+ * Reads the regular fields of BED records directly from the bytes of [input]
+ * without allocating anything per record.
+ *
+ * Unlike [BedParser], which produces a [BedEntry] per line, the scanner decodes
+ * the current record into primitive properties: [chromosomeIndex], [start], [end],
+ * [score] and [strand]. The chromosome names are interned, so that each distinct
+ * name is decoded into a [String] only once, see [chromosomeName]. The fields
+ * following the end offset are only materialised on demand, see [rest].
+ *
+ * The fields are separated by the [format] delimiter, trimmed, and the empty
+ * ones are omitted, same as in [BedParser]. The score and the strand are only
+ * decoded if the [format] contains them and the line has enough fields,
+ * otherwise they are 0 and '.' respectively.
+ *
+ * Typical usage:
+ *      BedScanner(input, format).use { scanner ->
+ *          while (scanner.next()) {
+ *              consume(scanner.chromosomeIndex, scanner.start, scanner.end)
+ *          }
+ *      }
+ *
+ * @property stringency same as in [BedParser].
+ * @property linesFailedToParse same as in [BedParser].
+ */
+class BedScanner(
+        private val input: InputStream,
+        val format: BedFormat,
+        private val source: String = "unknown source"
+) : AutoCloseable {
+
+    var stringency = LENIENT
+
+    var linesFailedToParse: Int = 0
+        private set
+
+    var chromosomeIndex = -1
+        private set
+    var start = 0
+        private set
+    var end = 0
+        private set
+    var score = 0
+        private set
+    var strand = '.'
+        private set
+
+    /** The number of distinct chromosome names met so far. */
+    val chromosomesCount: Int get() = names.size
+
+    /** The chromosome name of the current record. */
+    val chromosome: String get() = names[chromosomeIndex]
+
+    private val delimiter = format.delimiter.toByte()
+    private val decodeScore = BedField.SCORE in format
+    private val decodeStrand = BedField.STRAND in format
+
+    private var buffer = ByteArray(BUFFER_SIZE)
+    private var limit = 0
+    private var position = 0
+    private var eof = false
+
+    private var lineStart = 0
+    private var lineEnd = 0
+    private var restStart = -1
+    private val fieldStarts = IntArray(BedField.STRAND.field.index + 1)
+    private val fieldEnds = IntArray(BedField.STRAND.field.index + 1)
+
+    private val names = ChromosomeNames()
+
+    /**
+     * Advances to the next record. Returns false if there are no more records.
+     * Depending on [stringency], either throws [BedFormatException] or skips
+     * the lines which can't be parsed.
+     */
+    fun next(): Boolean {
+        while (nextLine()) {
+            if (isNonDataLine()) {
+                continue
+            }
+            try {
+                parseLine()
+                return true
+            } catch (e: IllegalArgumentException) {
+                val message = "$source: failed to parse BED line:\n${line()}"
+                when (stringency) {
+                    STRICT -> throw BedFormatException(message, e)
+                    LENIENT -> {
+                        linesFailedToParse++
+                        LOG.debug(message, e)
+                    }
+                }
+            }
+        }
+        return false
+    }
+
+    /**
+     * Returns the name of the chromosome with a given [index].
+     */
+    fun chromosomeName(index: Int) = names[index]
+
+    /**
+     * Returns the fields following the end offset of the current record,
+     * same as [BedEntry.rest].
+     */
+    fun rest(): String = if (restStart < 0) "" else String(buffer, restStart, lineEnd - restStart, Charsets.UTF_8)
+
+    /**
+     * Returns the current line as is.
+     */
+    fun line() = String(buffer, lineStart, lineEnd - lineStart, Charsets.UTF_8)
+
+    fun toBedEntry() = BedEntry(chromosome, start, end, rest())
+
+    override fun close() {
+        @Suppress("UnstableApiUsage")
+        Closeables.closeQuietly(input)
+    }
+
+    /**
+     * Finds the next line in the buffer, reading more bytes if necessary.
+     * Sets [lineStart] and [lineEnd], trailing whitespace is excluded.
+     */
+    private fun nextLine(): Boolean {
+        var newline = indexOfNewline(position)
+        while (newline < 0 && !eof) {
+            val scanned = limit - position
+            fillBuffer()
+            newline = indexOfNewline(position + scanned)
+        }
+        if (newline < 0) {
+            if (position == limit) {
+                return false
+            }
+            newline = limit
+        }
+        lineStart = position
+        lineEnd = newline
+        position = Math.min(limit, newline + 1)
+        while (lineEnd > lineStart && isWhitespace(buffer[lineEnd - 1])) {
+            lineEnd--
+        }
+        return true
+    }
+
+    private fun indexOfNewline(from: Int): Int {
+        for (i in from until limit) {
+            if (buffer[i] == NEWLINE) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    /**
+     * Moves the unread bytes to the beginning of the buffer, growing it
+     * if a single line doesn't fit, and reads more bytes from [input].
+     */
+    private fun fillBuffer() {
+        val remaining = limit - position
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining)
+            position = 0
+            limit = remaining
+        }
+        if (limit == buffer.size) {
+            buffer = buffer.copyOf(buffer.size * 2)
+        }
+        val read = input.read(buffer, limit, buffer.size - limit)
+        if (read < 0) {
+            eof = true
+        } else {
+            limit += read
+        }
+    }
+
+    private fun isNonDataLine() = startsWith(COMMENT) || startsWith(TRACK) || startsWith(BROWSER)
+
+    private fun startsWith(prefix: ByteArray): Boolean {
+        if (lineEnd - lineStart < prefix.size) {
+            return false
+        }
+        for (i in prefix.indices) {
+            if (buffer[lineStart + i] != prefix[i]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun parseLine() {
+        // Split the line into the trimmed non-empty fields,
+        // everything after the end offset is the rest.
+        var fields = 0
+        restStart = -1
+        var i = lineStart
+        while (i < lineEnd) {
+            var fieldEnd = i
+            while (fieldEnd < lineEnd && buffer[fieldEnd] != delimiter) {
+                fieldEnd++
+            }
+            var from = i
+            var to = fieldEnd
+            while (from < to && isWhitespace(buffer[from])) {
+                from++
+            }
+            while (to > from && isWhitespace(buffer[to - 1])) {
+                to--
+            }
+            if (from < to) {
+                if (fields == REGULAR_FIELDS) {
+                    restStart = from
+                }
+                if (fields < fieldStarts.size) {
+                    fieldStarts[fields] = from
+                    fieldEnds[fields] = to
+                    fields++
+                } else {
+                    break
+                }
+            }
+            i = fieldEnd + 1
+        }
+
+        require(fields >= REGULAR_FIELDS) { "expected at least $REGULAR_FIELDS fields, got $fields" }
+        start = parseInt(fieldStarts[1], fieldEnds[1])
+        end = parseInt(fieldStarts[2], fieldEnds[2])
+        score = if (decodeScore && fields > SCORE) parseScore(fieldStarts[SCORE], fieldEnds[SCORE]) else 0
+        strand = if (decodeStrand && fields > STRAND) parseStrand(fieldStarts[STRAND], fieldEnds[STRAND]) else '.'
+        chromosomeIndex = names.intern(buffer, fieldStarts[0], fieldEnds[0])
+    }
+
+    private fun parseInt(from: Int, to: Int): Int {
+        var i = from
+        val negative = buffer[i] == MINUS
+        if (negative || buffer[i] == PLUS) {
+            i++
+        }
+        require(i < to) { "number expected" }
+        var value = 0L
+        while (i < to) {
+            val digit = buffer[i] - ZERO
+            require(digit in 0..9) { "number expected, got: ${String(buffer, from, to - from, Charsets.UTF_8)}" }
+            value = value * 10 + digit
+            require(value <= Int.MAX_VALUE.toLong() + 1) { "number is too large" }
+            i++
+        }
+        val result = if (negative) -value else value
+        require(result <= Int.MAX_VALUE) { "number is too large" }
+        return result.toInt()
+    }
+
+    private fun parseScore(from: Int, to: Int) =
+            if (to - from == 1 && buffer[from] == DOT) 0 else parseInt(from, to)
+
+    private fun parseStrand(from: Int, to: Int): Char {
+        require(to - from == 1) { "strand expected" }
+        val ch = buffer[from].toChar()
+        require(ch == '+' || ch == '-' || ch == '.') { "expected one of \"+-.\", but got: $ch" }
+        return ch
+    }
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(BedScanner::class.java)
+
+        private const val BUFFER_SIZE = 1 shl 16
+
+        /** Chromosome, start and end. */
+        private const val REGULAR_FIELDS = 3
+        private const val SCORE = 4
+        private const val STRAND = 5
+
+        private const val NEWLINE = '\n'.toByte()
+        private const val MINUS = '-'.toByte()
+        private const val PLUS = '+'.toByte()
+        private const val ZERO = '0'.toByte()
+        private const val DOT = '.'.toByte()
+
+        private val COMMENT = "#".toByteArray()
+        private val TRACK = "track".toByteArray()
+        private val BROWSER = "browser".toByteArray()
+
+        private fun isWhitespace(b: Byte) = b == ' '.toByte() || b == '\t'.toByte() || b == '\r'.toByte()
+    }
+}
+
+/**
+ * Interns the chromosome names given as byte ranges, so that a [String]
+ * is only created once per distinct name. Uses open addressing.
+ */
+private class ChromosomeNames {
+
+    private val names = ArrayList<String>()
+    private val bytes = ArrayList<ByteArray>()
+    private val hashes = ArrayList<Int>()
+    private var slots = IntArray(16) { -1 }
+
+    val size: Int get() = names.size
+
+    operator fun get(index: Int) = names[index]
+
+    fun intern(buffer: ByteArray, from: Int, to: Int): Int {
+        var hash = 0
+        for (i in from until to) {
+            hash = 31 * hash + buffer[i]
+        }
+        val mask = slots.size - 1
+        var slot = mix(hash) and mask
+        while (true) {
+            val index = slots[slot]
+            if (index < 0) {
+                break
+            }
+            if (hashes[index] == hash && matches(bytes[index], buffer, from, to)) {
+                return index
+            }
+            slot = (slot + 1) and mask
+        }
+
+        val index = names.size
+        names.add(String(buffer, from, to - from, Charsets.UTF_8))
+        bytes.add(buffer.copyOfRange(from, to))
+        hashes.add(hash)
+        slots[slot] = index
+        if (names.size * 2 > slots.size) {
+            rehash()
+        }
+        return index
+    }
+
+    private fun rehash() {
+        slots = IntArray(slots.size * 2) { -1 }
+        val mask = slots.size - 1
+        for (index in names.indices) {
+            var slot = mix(hashes[index]) and mask
+            while (slots[slot] >= 0) {
+                slot = (slot + 1) and mask
+            }
+            slots[slot] = index
+        }
+    }
+
+    private fun matches(name: ByteArray, buffer: ByteArray, from: Int, to: Int): Boolean {
+        if (name.size != to - from) {
+            return false
+        }
+        for (i in name.indices) {
+            if (name[i] != buffer[from + i]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun mix(hash: Int) = hash xor (hash ushr 16)
+}
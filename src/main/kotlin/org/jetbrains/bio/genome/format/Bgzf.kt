@@ -0,0 +1,308 @@
+package org.jetbrains.bio.genome.format
+
+import htsjdk.samtools.BAMRecordCodec
+import htsjdk.samtools.SAMFileHeader
+import htsjdk.samtools.SAMRecord
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.util.parallelismLevel
+import java.io.BufferedInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.zip.CRC32
+import java.util.zip.DataFormatException
+import java.util.zip.Inflater
+
+/**
+ * Decompresses a BGZF stream, e.g. a BAM file, on a pool of worker threads.
+ *
+ * The compressed blocks are read by the calling thread and inflated by the
+ * [executor] ahead of the reader. At most [aheadBlocks] inflated blocks are
+ * kept pending, so the memory usage is bounded by `aheadBlocks * 64KB`.
+ * The blocks are served in the original order, so the stream is a drop-in
+ * replacement for the sequential [htsjdk.samtools.util.BlockCompressedInputStream]
+ * wherever random access isn't needed.
+ *
+ * The stream doesn't own the [executor], only the underlying [input].
+ */
+internal class ParallelBgzfInputStream(
+        private val input: InputStream,
+        private val executor: ExecutorService,
+        private val aheadBlocks: Int
+) : InputStream() {
+
+    private val pending = ArrayDeque<Future<ByteArray>>()
+    private var block = EMPTY_BLOCK
+    private var position = 0
+    private var exhausted = false
+
+    init {
+        require(aheadBlocks > 0) { "ahead blocks count should be positive, got: $aheadBlocks" }
+    }
+
+    override fun read(): Int {
+        if (!nextBlock()) {
+            return -1
+        }
+        return block[position++].toInt() and 0xff
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) {
+            return 0
+        }
+        if (!nextBlock()) {
+            return -1
+        }
+        val count = Math.min(len, block.size - position)
+        System.arraycopy(block, position, b, off, count)
+        position += count
+        return count
+    }
+
+    override fun available() = block.size - position
+
+    override fun close() {
+        pending.forEach { it.cancel(true) }
+        pending.clear()
+        input.close()
+    }
+
+    /**
+     * Makes sure there are bytes left in the current block,
+     * returns false at the end of the stream.
+     */
+    private fun nextBlock(): Boolean {
+        while (position == block.size) {
+            fill()
+            val future = pending.pollFirst() ?: return false
+            block = try {
+                future.get()
+            } catch (e: ExecutionException) {
+                val cause = e.cause
+                throw cause as? IOException ?: IOException(cause)
+            }
+            position = 0
+        }
+        return true
+    }
+
+    private fun fill() {
+        while (!exhausted && pending.size < aheadBlocks) {
+            val compressed = readBlock()
+            if (compressed == null) {
+                exhausted = true
+            } else {
+                pending.addLast(executor.submit(Callable { inflate(compressed) }))
+            }
+        }
+    }
+
+    /**
+     * Reads the next BGZF block and returns its part following the header,
+     * i.e. the compressed data, CRC32 and the uncompressed size.
+     * Returns null at the end of the stream.
+     */
+    private fun readBlock(): ByteArray? {
+        val header = ByteArray(BLOCK_HEADER_LENGTH)
+        val read = readFully(header, 0, header.size)
+        if (read == 0) {
+            return null
+        }
+        if (read < header.size) {
+            throw EOFException("Truncated BGZF block header")
+        }
+        if (header[0] != GZIP_ID1 || header[1] != GZIP_ID2 ||
+                header[2] != GZIP_CM_DEFLATE || header[3] != GZIP_FLG_EXTRA) {
+            throw IOException("Invalid BGZF block header")
+        }
+
+        val extraLength = unpackShort(header, 10)
+        val extra = ByteArray(extraLength)
+        if (readFully(extra, 0, extraLength) < extraLength) {
+            throw EOFException("Truncated BGZF block header")
+        }
+        var blockSize = -1
+        var i = 0
+        while (i + 4 <= extraLength) {
+            val subfieldLength = unpackShort(extra, i + 2)
+            if (extra[i] == BGZF_SI1 && extra[i + 1] == BGZF_SI2 && subfieldLength == 2) {
+                blockSize = unpackShort(extra, i + 4) + 1
+            }
+            i += 4 + subfieldLength
+        }
+        if (blockSize < 0) {
+            throw IOException("BGZF block size field is missing")
+        }
+
+        val remaining = blockSize - BLOCK_HEADER_LENGTH - extraLength
+        if (remaining < BLOCK_FOOTER_LENGTH) {
+            throw IOException("Invalid BGZF block size: $blockSize")
+        }
+        val data = ByteArray(remaining)
+        if (readFully(data, 0, remaining) < remaining) {
+            throw EOFException("Truncated BGZF block")
+        }
+        return data
+    }
+
+    private fun readFully(b: ByteArray, off: Int, len: Int): Int {
+        var total = 0
+        while (total < len) {
+            val count = input.read(b, off + total, len - total)
+            if (count < 0) {
+                break
+            }
+            total += count
+        }
+        return total
+    }
+
+    companion object {
+        private val EMPTY_BLOCK = ByteArray(0)
+
+        private const val BLOCK_HEADER_LENGTH = 12
+        private const val BLOCK_FOOTER_LENGTH = 8
+
+        private const val GZIP_ID1 = 31.toByte()
+        private const val GZIP_ID2 = 139.toByte()
+        private const val GZIP_CM_DEFLATE = 8.toByte()
+        private const val GZIP_FLG_EXTRA = 4.toByte()
+        private const val BGZF_SI1 = 66.toByte()
+        private const val BGZF_SI2 = 67.toByte()
+
+        private val INFLATERS = ThreadLocal.withInitial { Inflater(true) }
+
+        /**
+         * Inflates the [data] returned by [readBlock] and checks the CRC32.
+         */
+        private fun inflate(data: ByteArray): ByteArray {
+            val compressedLength = data.size - BLOCK_FOOTER_LENGTH
+            val expectedCrc = unpackInt(data, compressedLength).toLong() and 0xffffffffL
+            val uncompressed = ByteArray(unpackInt(data, compressedLength + 4))
+            val inflater = INFLATERS.get()
+            inflater.reset()
+            inflater.setInput(data, 0, compressedLength)
+            val inflated = try {
+                inflater.inflate(uncompressed)
+            } catch (e: DataFormatException) {
+                throw IOException("Corrupted BGZF block", e)
+            }
+            if (inflated != uncompressed.size) {
+                throw IOException("BGZF block inflated to $inflated bytes instead of ${uncompressed.size}")
+            }
+            val crc = CRC32()
+            crc.update(uncompressed, 0, uncompressed.size)
+            if (crc.value != expectedCrc) {
+                throw IOException("BGZF block CRC32 mismatch")
+            }
+            return uncompressed
+        }
+
+        private fun unpackShort(b: ByteArray, offset: Int) =
+                (b[offset].toInt() and 0xff) or ((b[offset + 1].toInt() and 0xff) shl 8)
+
+        private fun unpackInt(b: ByteArray, offset: Int) =
+                unpackShort(b, offset) or (unpackShort(b, offset + 2) shl 16)
+    }
+}
+
+/**
+ * Feeds all records of a BAM file to [consumer] in the file order.
+ *
+ * The BGZF blocks are inflated by [threads] worker threads ahead of the record
+ * decoder, see [ParallelBgzfInputStream], the records are decoded by the calling
+ * thread, so [consumer] is never called concurrently.
+ */
+internal fun forEachBamRecord(
+        path: Path,
+        header: SAMFileHeader,
+        threads: Int = parallelismLevel(),
+        consumer: (SAMRecord) -> Unit
+) {
+    val executor = Executors.newFixedThreadPool(threads)
+    try {
+        val input = BufferedInputStream(Files.newInputStream(path), INPUT_BUFFER_SIZE)
+        ParallelBgzfInputStream(input, executor, threads * BLOCKS_PER_THREAD).use { stream ->
+            skipBamHeader(stream)
+            val codec = BAMRecordCodec(header)
+            codec.setInputStream(stream)
+            while (true) {
+                val record = codec.decode() ?: break
+                consumer(record)
+            }
+        }
+    } finally {
+        executor.shutdownNow()
+    }
+}
+
+/**
+ * Each worker thread has this many blocks in flight,
+ * so that the workers are busy while the decoder catches up.
+ */
+private const val BLOCKS_PER_THREAD = 4
+
+private const val INPUT_BUFFER_SIZE = 1 shl 20
+
+/**
+ * Skips the magic, the header text and the reference sequences, the header
+ * itself is parsed by htsjdk beforehand.
+ */
+private fun skipBamHeader(stream: InputStream) {
+    val buffer = ByteArray(4)
+    fun readInt(): Int {
+        readFully(stream, buffer, 4)
+        return (buffer[0].toInt() and 0xff) or
+                ((buffer[1].toInt() and 0xff) shl 8) or
+                ((buffer[2].toInt() and 0xff) shl 16) or
+                ((buffer[3].toInt() and 0xff) shl 24)
+    }
+
+    readFully(stream, buffer, 4)
+    if (!Arrays.equals(buffer, BAM_MAGIC)) {
+        throw IOException("Invalid BAM magic")
+    }
+    skipFully(stream, readInt().toLong())
+    val referencesCount = readInt()
+    repeat(referencesCount) {
+        // Name and its length, followed by the reference length.
+        skipFully(stream, readInt().toLong() + 4)
+    }
+}
+
+private val BAM_MAGIC = byteArrayOf('B'.toByte(), 'A'.toByte(), 'M'.toByte(), 1)
+
+private fun readFully(stream: InputStream, b: ByteArray, len: Int) {
+    var total = 0
+    while (total < len) {
+        val count = stream.read(b, total, len - total)
+        if (count < 0) {
+            throw EOFException("Truncated BAM header")
+        }
+        total += count
+    }
+}
+
+private fun skipFully(stream: InputStream, len: Long) {
+    var remaining = len
+    while (remaining > 0) {
+        val skipped = stream.skip(remaining)
+        if (skipped <= 0) {
+            if (stream.read() < 0) {
+                throw EOFException("Truncated BAM header")
+            }
+            remaining--
+        } else {
+            remaining -= skipped
+        }
+    }
+}
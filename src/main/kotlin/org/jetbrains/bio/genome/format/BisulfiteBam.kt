@@ -5,7 +5,6 @@ import gnu.trove.list.array.TByteArrayList
 import gnu.trove.list.array.TCharArrayList
 import htsjdk.samtools.*
 import htsjdk.samtools.SAMFileHeader.SortOrder
-import htsjdk.samtools.cram.ref.ReferenceSource
 import kotlinx.support.jdk7.use
 import org.jetbrains.bio.genome.Chromosome
 import org.jetbrains.bio.genome.GenomeQuery
@@ -20,7 +19,6 @@ import org.jetbrains.bio.util.awaitAll
 import org.jetbrains.bio.util.name
 import org.jetbrains.bio.util.parallelismLevel
 import org.slf4j.LoggerFactory
-import java.io.File
 import java.nio.file.Path
 import java.util.*
 import java.util.concurrent.Callable
@@ -104,8 +102,7 @@ object BisulfiteBamParser {
         // 'htsjdk' doesn't allow concurrent queries on 'BAMFileReader'
         // thus we have to re-create 'SamReader' for each chromosome.
         val samReader = SamReaderFactory.makeDefault()
-                .referenceSource(WrappedReferenceSource(chromosome.name,
-                        chromosome.sequence))
+                .referenceSource(TwoBitReferenceSource(chromosome.genome.twoBitPath()))
                 .open(path.toFile())
 
         check(samReader.hasIndex()) { "$path must have index available" }
@@ -459,49 +456,3 @@ private data class BismarkPilerColumn(override val position: Int) : PilerColumn
 
     override fun isNotEmpty() = !annotations.isEmpty
 }
-
-/**
- * A fake [htsjdk.samtools.cram.ref.ReferenceSource] which stores bytes for a single [Chromosome].
- */
-internal class WrappedReferenceSource(private val name: String,
-                                      sequence: NucleotideSequence) : ReferenceSource(null as File?) {
-
-    // XXX please keep lazy to reduce memory consumption.
-    private val bytes: ByteArray by lazy(LazyThreadSafetyMode.PUBLICATION) {
-        sequence.toString().toByteArray()
-    }
-
-    override fun getReferenceBases(record: SAMSequenceRecord,
-                                   tryNameVariants: Boolean): ByteArray? {
-        if (tryNameVariants) {
-            for (variant in getVariants(record.sequenceName)) {
-                if (variant == name) {
-                    return bytes
-                }
-            }
-        } else {
-            if (record.sequenceName == name) {
-                return bytes
-            }
-        }
-
-        return null
-    }
-
-    private fun getVariants(name: String): List<String> {
-        val variants = ArrayList<String>()
-        when {
-            name == "M" -> variants.add("MT")
-            name == "MT" -> variants.add("M")
-            name.startsWith("chr") -> variants.add(name.substring(3))
-            else -> variants.add("chr$name")
-        }
-
-        if (name == "chrM") {
-            // chrM case:
-            variants.add("MT")
-        }
-
-        return variants
-    }
-}
\ No newline at end of file
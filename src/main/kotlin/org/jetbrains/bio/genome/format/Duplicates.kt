@@ -0,0 +1,192 @@
+package org.jetbrains.bio.genome.format
+
+import htsjdk.samtools.SAMRecord
+import htsjdk.samtools.SAMUtils
+import java.util.*
+
+/**
+ * Removes the duplicate reads from a stream of coordinate-sorted records in
+ * a single pass, the same way as Picard `MarkDuplicates` with
+ * `REMOVE_DUPLICATES=true` does, but without an intermediate BAM file.
+ *
+ * Two reads are duplicates if they have the same unclipped 5' end and strand,
+ * and for the reads with a mapped mate, the same mate reference, mate 5' end
+ * and mate strand. The mate 5' end is taken from the mate CIGAR, i.e. the `MC`
+ * tag, if available, otherwise from the mate alignment start. Same as in
+ * Picard, a single read, or a read with an unmapped mate, is also a duplicate
+ * of a pair with the same 5' end and strand. Of the duplicate single reads
+ * the one with the highest sum of base qualities is kept, of the duplicate
+ * pairs the one with the smallest read name, so that both mates of the same
+ * pair are kept. Unlike Picard, the libraries aren't distinguished.
+ *
+ * The duplicates are only looked up within [window] base pairs of the current
+ * alignment start, which should exceed the read length including the clipped
+ * bases. The records are passed to [consumer] in the original order, once
+ * the window moves past them. The surviving records are passed with the
+ * duplicate flag cleared, while the unmapped, secondary and supplementary
+ * records are passed as is. See [marking] for a filter which keeps the
+ * duplicates and only reports them.
+ */
+internal class DuplicatesFilter private constructor(
+        private val window: Int,
+        private val remove: Boolean,
+        private val consumer: (SAMRecord, Boolean) -> Unit
+) {
+
+    constructor(window: Int = DEFAULT_WINDOW, consumer: (SAMRecord) -> Unit) :
+            this(window, true, { record, _ -> consumer(record) })
+
+    /** Undecided groups by the 5' end and the strand of the current reference. */
+    private val groups = TreeMap<Long, Group>()
+    /** Pending records and their groups in the original order. */
+    private val records = ArrayDeque<SAMRecord>()
+    private val recordGroups = ArrayDeque<Group?>()
+
+    private var referenceIndex = -1
+    private var alignmentStart = 0
+
+    init {
+        require(window > 0) { "window should be positive, got: $window" }
+    }
+
+    fun accept(record: SAMRecord) {
+        if (record.referenceIndex != referenceIndex) {
+            flush()
+            referenceIndex = record.referenceIndex
+        } else {
+            check(record.alignmentStart >= alignmentStart) {
+                "Records are not coordinate sorted: ${record.readName}"
+            }
+        }
+        alignmentStart = record.alignmentStart
+
+        // Groups which no record from now on can join.
+        val horizon = alignmentStart.toLong() - window
+        while (groups.isNotEmpty() && groups.firstKey() shr 1 < horizon) {
+            groups.pollFirstEntry().value.decided = true
+        }
+
+        val group = if (record.readUnmappedFlag || record.isSecondaryOrSupplementary) {
+            null
+        } else {
+            val negative = record.readNegativeStrandFlag
+            val fivePrime = if (negative) record.unclippedEnd else record.unclippedStart
+            val key = (fivePrime.toLong() shl 1) or (if (negative) 1L else 0L)
+            groups.getOrPut(key) { Group() }.apply { add(record) }
+        }
+        records.addLast(record)
+        recordGroups.addLast(group)
+        drain()
+    }
+
+    /**
+     * Passes all the pending records to [consumer], should be called
+     * at the end of the stream.
+     */
+    fun flush() {
+        groups.values.forEach { it.decided = true }
+        groups.clear()
+        drain()
+    }
+
+    private fun drain() {
+        while (records.isNotEmpty()) {
+            val group = recordGroups.peekFirst()
+            if (group != null && !group.decided) {
+                break
+            }
+            val record = records.pollFirst()
+            recordGroups.pollFirst()
+            when {
+                group == null -> consumer(record, false)
+                !remove -> consumer(record, !group.survives(record))
+                group.survives(record) -> {
+                    record.duplicateReadFlag = false
+                    consumer(record, false)
+                }
+            }
+        }
+    }
+
+    /**
+     * The reads sharing the 5' end and the strand.
+     */
+    private class Group {
+        var decided = false
+
+        private var fragment: SAMRecord? = null
+        private var fragmentScore = -1
+        /** The pairs by the mate 5' end, see [mateKey]. */
+        private var pairs: HashMap<Long, SAMRecord>? = null
+
+        fun add(record: SAMRecord) {
+            if (record.readPairedFlag && !record.mateUnmappedFlag) {
+                val pairs = pairs ?: HashMap<Long, SAMRecord>().also { pairs = it }
+                val key = mateKey(record)
+                val best = pairs[key]
+                if (best == null || record.readName < best.readName) {
+                    pairs[key] = record
+                }
+            } else {
+                val score = score(record)
+                if (score > fragmentScore) {
+                    fragment = record
+                    fragmentScore = score
+                }
+            }
+        }
+
+        fun survives(record: SAMRecord): Boolean {
+            val pairs = pairs
+            return when {
+                record.readPairedFlag && !record.mateUnmappedFlag -> pairs!![mateKey(record)] === record
+                else -> pairs == null && fragment === record
+            }
+        }
+
+        companion object {
+            private fun mateKey(record: SAMRecord): Long {
+                val negative = record.mateNegativeStrandFlag
+                var fivePrime = if (negative) {
+                    SAMUtils.getMateUnclippedEnd(record)
+                } else {
+                    SAMUtils.getMateUnclippedStart(record)
+                }
+                if (fivePrime == SAMRecord.NO_ALIGNMENT_START) {
+                    // No mate CIGAR.
+                    fivePrime = record.mateAlignmentStart
+                }
+                return (record.mateReferenceIndex.toLong() shl 34) or
+                        ((fivePrime.toLong() and 0xffffffffL) shl 1) or
+                        (if (negative) 1L else 0L)
+            }
+
+            /**
+             * Same as the default Picard duplicate score,
+             * the sum of the base qualities of at least 15.
+             */
+            private fun score(record: SAMRecord): Int {
+                var score = 0
+                for (quality in record.baseQualities) {
+                    if (quality >= MIN_SCORED_QUALITY) {
+                        score += quality
+                    }
+                }
+                return score
+            }
+
+            private const val MIN_SCORED_QUALITY = 15
+        }
+    }
+
+    companion object {
+        const val DEFAULT_WINDOW = 1000
+
+        /**
+         * Returns a filter which passes all the records to [consumer] along with
+         * whether they are duplicates. The records aren't modified.
+         */
+        fun marking(window: Int = DEFAULT_WINDOW, consumer: (SAMRecord, Boolean) -> Unit) =
+                DuplicatesFilter(window, false, consumer)
+    }
+}
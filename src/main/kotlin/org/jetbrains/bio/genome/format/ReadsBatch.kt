@@ -0,0 +1,76 @@
+package org.jetbrains.bio.genome.format
+
+import org.jetbrains.bio.genome.Chromosome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.Location
+import org.jetbrains.bio.genome.Strand
+
+/**
+ * A chunk of reads in columnar form, see [processReadsBatches].
+ *
+ * Each read is described by the index of its chromosome in [chromosomes],
+ * 0-based start and end offsets, the strand and the mapping quality,
+ * only the first [size] elements of the arrays are valid. The batch is
+ * reused by the reader, so neither the batch nor its arrays should be
+ * retained after the consumer returns.
+ */
+class ReadsBatch internal constructor(val genomeQuery: GenomeQuery, capacity: Int) {
+
+    /** The chromosomes of [genomeQuery], indexed by [chromosomeIndices]. */
+    val chromosomes: List<Chromosome> = genomeQuery.get()
+
+    private val indices = chromosomes.withIndex().associate { (i, chromosome) -> chromosome to i }
+
+    var size = 0
+        private set
+
+    val chromosomeIndices = IntArray(capacity)
+    val starts = IntArray(capacity)
+    val ends = IntArray(capacity)
+    /** True for the reads on the [Strand.MINUS]. */
+    val negativeStrands = BooleanArray(capacity)
+    /** [UNKNOWN_MAPQ] if the mapping quality isn't available, e.g. for BED files. */
+    val mapqs = IntArray(capacity)
+
+    init {
+        require(capacity > 0) { "capacity should be positive, got: $capacity" }
+    }
+
+    val isFull: Boolean get() = size == starts.size
+
+    fun chromosome(index: Int) = chromosomes[chromosomeIndices[index]]
+
+    fun strand(index: Int) = if (negativeStrands[index]) Strand.MINUS else Strand.PLUS
+
+    /**
+     * Returns the 5' end of the read, same as [Location.get5Bound].
+     */
+    fun get5Bound(index: Int) = if (negativeStrands[index]) ends[index] - 1 else starts[index]
+
+    fun toLocation(index: Int) = Location(starts[index], ends[index], chromosome(index), strand(index))
+
+    /**
+     * Returns the index of [chromosome] in [chromosomes] or -1 if it's not there.
+     */
+    internal fun indexOf(chromosome: Chromosome) = indices[chromosome] ?: -1
+
+    internal fun add(chromosomeIndex: Int, start: Int, end: Int, negativeStrand: Boolean, mapq: Int) {
+        chromosomeIndices[size] = chromosomeIndex
+        starts[size] = start
+        ends[size] = end
+        negativeStrands[size] = negativeStrand
+        mapqs[size] = mapq
+        size++
+    }
+
+    internal fun clear() {
+        size = 0
+    }
+
+    companion object {
+        /** Same as in the SAM specification. */
+        const val UNKNOWN_MAPQ = 255
+
+        const val DEFAULT_CAPACITY = 8192
+    }
+}
@@ -0,0 +1,431 @@
+package org.jetbrains.bio.genome.format
+
+import gnu.trove.list.array.TByteArrayList
+import gnu.trove.list.array.TIntArrayList
+import htsjdk.samtools.SAMFileHeader
+import htsjdk.samtools.SAMRecord
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.genome.Chromosome
+import org.jetbrains.bio.genome.Genome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.coverage.PackedInts
+import org.jetbrains.bio.genome.coverage.PackedTagsList
+import org.jetbrains.bio.genome.coverage.asTagsList
+import org.jetbrains.bio.npy.NpzFile
+import org.jetbrains.bio.util.await
+import org.jetbrains.bio.util.extension
+import java.io.IOException
+import java.nio.file.Path
+import java.util.concurrent.Callable
+
+/**
+ * A columnar cache of the reads of a BAM, CRAM or BED file. Once written, the
+ * reads can be re-read without parsing the file again, e.g. to build both the
+ * single-end and the paired-end coverage or to apply a different [ReadsFilter].
+ *
+ * For every mapped primary alignment on a chromosome of the [genome] the table
+ * stores the start, the strand, the aligned length, the read length, the mapping
+ * quality, the duplicate flags and, for the reads with a mapped mate on the same
+ * chromosome, the mate offset, i.e. PNEXT - POS. The duplicates are both taken
+ * from the file and detected by [DuplicatesFilter] if the file is coordinate-sorted.
+ *
+ * The columns are stored per chromosome in [NpzFile] format at [path] and are
+ * loaded one chromosome at a time. The reads of a chromosome are sorted by start,
+ * so the starts are packed same as the coverage tags, see [PackedTagsList], while
+ * the lengths, the difference of the read length and the aligned length, and the
+ * mate offsets are bit-packed, see [PackedInts]. A read typically takes 6-8 bytes.
+ */
+class ReadsTable private constructor(
+        val path: Path,
+        val genome: Genome,
+        /** Whether the source file contains paired-end reads, see [isPaired]. */
+        val paired: Boolean
+) {
+
+    /**
+     * Same as [org.jetbrains.bio.genome.format.processReadsBatches], but reads
+     * the [filter]ed reads from the table. Chromosomes are processed in parallel
+     * if [parallel] is true, [consumer] is never called concurrently for the
+     * same chromosome.
+     */
+    fun processReadsBatches(
+            genomeQuery: GenomeQuery,
+            parallel: Boolean = false,
+            batchSize: Int = ReadsBatch.DEFAULT_CAPACITY,
+            filter: ReadsFilter = ReadsFilter(),
+            consumer: (ReadsBatch) -> Unit
+    ) {
+        checkGenome(genomeQuery)
+        val sharedBatch = if (parallel) null else ReadsBatch(genomeQuery, batchSize)
+        genomeQuery.get().map { chromosome ->
+            Callable {
+                val batch = sharedBatch ?: ReadsBatch(genomeQuery, batchSize)
+                val chromosomeIndex = batch.indexOf(chromosome)
+                val columns = read(chromosome)
+                for (i in 0 until columns.size) {
+                    if (!filter.accepts(columns, i)) {
+                        continue
+                    }
+                    batch.add(
+                            chromosomeIndex, columns.start(i), columns.end(i),
+                            columns.negative(i), columns.mapq(i)
+                    )
+                    if (batch.isFull) {
+                        consumer(batch)
+                        batch.clear()
+                    }
+                }
+                if (batch.size > 0) {
+                    consumer(batch)
+                    batch.clear()
+                }
+            }
+        }.await(parallel)
+    }
+
+    /**
+     * Same as [org.jetbrains.bio.genome.format.processPairedReads], but reads the
+     * [filter]ed pairs from the table. Returns the number of the unpaired reads.
+     */
+    fun processPairedReads(
+            genomeQuery: GenomeQuery,
+            parallel: Boolean = false,
+            filter: ReadsFilter = ReadsFilter(),
+            consumer: (Chromosome, Int, Int, Int) -> Unit
+    ): Int {
+        checkGenome(genomeQuery)
+        val unpairedCounts = IntArray(genomeQuery.get().size)
+        genomeQuery.get().mapIndexed { c, chromosome ->
+            Callable {
+                val columns = read(chromosome)
+                for (i in 0 until columns.size) {
+                    if (!filter.accepts(columns, i)) {
+                        continue
+                    }
+                    val flags = columns.flags[i].toInt()
+                    if (flags and PAIRED == 0) {
+                        unpairedCounts[c]++
+                        continue
+                    }
+                    // Only the negative strand reads of the same-chromosome
+                    // opposite-strand pairs, same as in [processPairedReads].
+                    if (flags and MATE == 0 || flags and NEGATIVE == 0 || flags and MATE_NEGATIVE != 0) {
+                        continue
+                    }
+                    val pos = columns.start(i) + 1
+                    val pnext = pos + columns.mateOffset(i)
+                    val length = columns.readLength(i)
+                    if (pnext != 0 && length != 0) {
+                        consumer(chromosome, pos, pnext, length)
+                    }
+                }
+            }
+        }.await(parallel)
+        return unpairedCounts.sum()
+    }
+
+    private fun checkGenome(genomeQuery: GenomeQuery) = require(genomeQuery.build == genome.build) {
+        "$path contains the reads for ${genome.build}, got: ${genomeQuery.build}"
+    }
+
+    @Throws(IOException::class)
+    private fun read(chromosome: Chromosome) = NpzFile.read(path).use { reader ->
+        val prefix = chromosome.name + '/'
+        Columns(
+                PackedTagsList.read(reader[prefix + STARTS_FIELD].asIntArray()),
+                PackedInts.read(reader[prefix + LENGTHS_FIELD].asIntArray()),
+                PackedInts.read(reader[prefix + READ_LENGTH_DELTAS_FIELD].asIntArray()),
+                reader[prefix + FLAGS_FIELD].asByteArray(),
+                reader[prefix + MAPQS_FIELD].asByteArray(),
+                PackedInts.read(reader[prefix + MATE_OFFSETS_FIELD].asIntArray())
+        )
+    }
+
+    /**
+     * The reads of a single chromosome sorted by start.
+     */
+    internal class Columns(
+            val starts: PackedTagsList,
+            /** The aligned lengths. */
+            val lengths: PackedInts,
+            /** Zigzag-encoded read length minus the aligned length. */
+            val readLengthDeltas: PackedInts,
+            val flags: ByteArray,
+            val mapqs: ByteArray,
+            /** Zigzag-encoded mate offsets. */
+            val mateOffsets: PackedInts
+    ) {
+        val size: Int get() = flags.size
+
+        fun negative(i: Int) = flags[i].toInt() and NEGATIVE != 0
+
+        fun start(i: Int) = starts[i]
+
+        fun end(i: Int) = starts[i] + lengths[i]
+
+        /** The length of the read sequence, same as [SAMRecord.getReadLength]. */
+        fun readLength(i: Int) = lengths[i] + unzigzag(readLengthDeltas[i])
+
+        fun mateOffset(i: Int) = unzigzag(mateOffsets[i])
+
+        fun mapq(i: Int) = mapqs[i].toInt() and 0xff
+    }
+
+    /**
+     * Accumulates the columns of a single chromosome. Once the chromosome is
+     * complete, the columns should be [pack]ed to release the unpacked ones.
+     */
+    private class ColumnsBuilder {
+        private var starts = TIntArrayList()
+        private var lengths = TIntArrayList()
+        private var readLengthDeltas = TIntArrayList()
+        private var flags = TByteArrayList()
+        private var mapqs = TByteArrayList()
+        private var mateOffsets = TIntArrayList()
+
+        private var packed: Columns? = null
+
+        fun add(start: Int, end: Int, readLength: Int, flags: Int, mapq: Int, mateOffset: Int) {
+            if (packed != null) {
+                // The chromosome is revisited, e.g. it has several reference names.
+                unpack()
+            }
+            starts.add(start)
+            lengths.add(end - start)
+            readLengthDeltas.add(zigzag(readLength - (end - start)))
+            this.flags.add(flags.toByte())
+            mapqs.add(mapq.toByte())
+            mateOffsets.add(zigzag(mateOffset))
+        }
+
+        /**
+         * Sorts the reads by start, packs the columns and releases the unpacked ones.
+         */
+        fun pack() {
+            if (packed != null) {
+                return
+            }
+            val size = starts.size()
+            val order = if ((1 until size).any { starts[it - 1] > starts[it] }) {
+                // Sort by start, keeping the file order of the reads with the same start.
+                val keys = LongArray(size) { (starts[it].toLong() shl 32) or it.toLong() }
+                keys.sort()
+                IntArray(size) { keys[it].toInt() }
+            } else {
+                null
+            }
+            fun TIntArrayList.sorted() = if (order == null) toArray() else IntArray(size) { get(order[it]) }
+            fun TByteArrayList.sorted() = if (order == null) toArray() else ByteArray(size) { get(order[it]) }
+
+            packed = Columns(
+                    PackedTagsList.pack(TIntArrayList.wrap(starts.sorted()).asTagsList()),
+                    PackedInts(lengths.sorted()),
+                    PackedInts(readLengthDeltas.sorted()),
+                    flags.sorted(),
+                    mapqs.sorted(),
+                    PackedInts(mateOffsets.sorted())
+            )
+            starts = TIntArrayList(0)
+            lengths = TIntArrayList(0)
+            readLengthDeltas = TIntArrayList(0)
+            flags = TByteArrayList(0)
+            mapqs = TByteArrayList(0)
+            mateOffsets = TIntArrayList(0)
+        }
+
+        private fun unpack() {
+            val columns = packed!!
+            packed = null
+            for (i in 0 until columns.size) {
+                add(
+                        columns.start(i), columns.end(i), columns.readLength(i),
+                        columns.flags[i].toInt(), columns.mapq(i), columns.mateOffset(i)
+                )
+            }
+        }
+
+        fun write(writer: NpzFile.Writer, chromosome: Chromosome) {
+            pack()
+            val columns = packed!!
+            val prefix = chromosome.name + '/'
+            writer.write(prefix + STARTS_FIELD, columns.starts.toIntArray())
+            writer.write(prefix + LENGTHS_FIELD, columns.lengths.serialize())
+            writer.write(prefix + READ_LENGTH_DELTAS_FIELD, columns.readLengthDeltas.serialize())
+            writer.write(prefix + FLAGS_FIELD, columns.flags)
+            writer.write(prefix + MAPQS_FIELD, columns.mapqs)
+            writer.write(prefix + MATE_OFFSETS_FIELD, columns.mateOffsets.serialize())
+        }
+    }
+
+    /**
+     * Adds the records of a single reader to the [columns], marking the
+     * duplicates if the records are coordinate-sorted. For coordinate-sorted
+     * records the columns of a chromosome are packed as soon as the next
+     * chromosome starts, so that at most one chromosome per reader is unpacked.
+     */
+    private class TableSink(
+            genomeQuery: GenomeQuery,
+            header: SAMFileHeader,
+            private val columns: List<ColumnsBuilder>
+    ) : RecordSink {
+
+        /** Maps the BAM reference indices to the chromosome indices. */
+        private val chromosomeIndices = header.sequenceDictionary.sequences.map { sequence ->
+            genomeQuery[sequence.sequenceName]?.let { genomeQuery.get().indexOf(it) } ?: -1
+        }.toIntArray()
+
+        private val sorted = header.sortOrder == SAMFileHeader.SortOrder.coordinate
+
+        /** The chromosomes added by this sink, to be packed on [flush]. */
+        private val added = BooleanArray(columns.size)
+        private var lastChromosomeIndex = -1
+
+        private val duplicates = if (sorted) {
+            DuplicatesFilter.marking { record, duplicate -> add(record, duplicate) }
+        } else {
+            null
+        }
+
+        override fun accept(record: SAMRecord) {
+            if (duplicates != null) {
+                duplicates.accept(record)
+            } else {
+                add(record, false)
+            }
+        }
+
+        override fun flush() {
+            duplicates?.flush()
+            added.indices.filter { added[it] }.forEach { columns[it].pack() }
+        }
+
+        private fun add(record: SAMRecord, duplicate: Boolean) {
+            if (record.readUnmappedFlag || record.isSecondaryOrSupplementary || record.alignmentStart == 0) {
+                return
+            }
+            val chromosomeIndex = chromosomeIndices[record.referenceIndex]
+            if (chromosomeIndex < 0) {
+                return
+            }
+            var flags = 0
+            if (record.readNegativeStrandFlag) flags = flags or NEGATIVE
+            if (record.duplicateReadFlag) flags = flags or MARKED_DUPLICATE
+            if (duplicate) flags = flags or DETECTED_DUPLICATE
+            var mateOffset = 0
+            if (record.readPairedFlag) {
+                flags = flags or PAIRED
+                if (!record.mateUnmappedFlag && record.mateReferenceIndex == record.referenceIndex) {
+                    flags = flags or MATE
+                    mateOffset = record.mateAlignmentStart - record.alignmentStart
+                }
+                if (record.mateNegativeStrandFlag) flags = flags or MATE_NEGATIVE
+            }
+            if (sorted && chromosomeIndex != lastChromosomeIndex && lastChromosomeIndex >= 0) {
+                columns[lastChromosomeIndex].pack()
+            }
+            lastChromosomeIndex = chromosomeIndex
+            added[chromosomeIndex] = true
+            // 1 based, end inclusive
+            columns[chromosomeIndex].add(
+                    record.alignmentStart - 1, record.alignmentEnd, record.readLength,
+                    flags, record.mappingQuality, mateOffset
+            )
+        }
+    }
+
+    companion object {
+        /**
+         * Binary storage format version. Loader will throw an [IllegalStateException]
+         * if it doesn't match.
+         */
+        const val VERSION = 2
+        const val VERSION_FIELD = "version"
+        const val BUILD_FIELD = "build"
+        const val PAIRED_FIELD = "paired"
+
+        private const val STARTS_FIELD = "starts"
+        private const val LENGTHS_FIELD = "lengths"
+        private const val READ_LENGTH_DELTAS_FIELD = "read_length_deltas"
+        private const val FLAGS_FIELD = "flags"
+        private const val MAPQS_FIELD = "mapqs"
+        private const val MATE_OFFSETS_FIELD = "mate_offsets"
+
+        internal const val NEGATIVE = 1
+        internal const val MARKED_DUPLICATE = 2
+        internal const val DETECTED_DUPLICATE = 4
+        internal const val PAIRED = 8
+        /** The mate is mapped to the same chromosome, the mate offset is known. */
+        internal const val MATE = 16
+        internal const val MATE_NEGATIVE = 32
+
+        /** Maps the signed values to the non-negative ones, 0, -1, 1, -2 to 0, 1, 2, 3. */
+        private fun zigzag(value: Int) = (value shl 1) xor (value shr 31)
+
+        private fun unzigzag(value: Int) = (value ushr 1) xor -(value and 1)
+
+        /**
+         * Reads the BAM, CRAM or BED file at [readsPath] once and writes
+         * the table of its reads on [genome] to [outputPath].
+         */
+        @Throws(IOException::class)
+        fun write(genome: Genome, readsPath: Path, outputPath: Path) {
+            val genomeQuery = GenomeQuery(genome)
+            val columns = genomeQuery.get().map { ColumnsBuilder() }
+            when (readsPath.extension) {
+                "bam", "cram" -> forEachRecordSink(genomeQuery, readsPath, true, false) { header ->
+                    TableSink(genomeQuery, header, columns)
+                }
+                else -> processReadsBatches(genomeQuery, readsPath) { batch ->
+                    for (i in 0 until batch.size) {
+                        columns[batch.chromosomeIndices[i]].add(
+                                batch.starts[i], batch.ends[i], batch.ends[i] - batch.starts[i],
+                                if (batch.negativeStrands[i]) NEGATIVE else 0,
+                                batch.mapqs[i], 0
+                        )
+                    }
+                }
+            }
+
+            NpzFile.write(outputPath).use { writer ->
+                writer.write(VERSION_FIELD, intArrayOf(VERSION))
+                writer.write(BUILD_FIELD, arrayOf(genome.build))
+                writer.write(PAIRED_FIELD, booleanArrayOf(isPaired(readsPath, genome)))
+                genomeQuery.get().forEachIndexed { i, chromosome ->
+                    columns[i].write(writer, chromosome)
+                }
+            }
+        }
+
+        @Throws(IOException::class)
+        fun load(path: Path, genome: Genome): ReadsTable = NpzFile.read(path).use { reader ->
+            val version = reader[VERSION_FIELD].asIntArray().single()
+            check(version == VERSION) {
+                "$path reads table version is $version instead of $VERSION"
+            }
+            val build = reader[BUILD_FIELD].asStringArray().single()
+            check(build == genome.build) {
+                "$path contains the reads for $build instead of ${genome.build}"
+            }
+            ReadsTable(path, genome, reader[PAIRED_FIELD].asBooleanArray().single())
+        }
+    }
+}
+
+/**
+ * Selects the reads of a [ReadsTable]. By default the same reads are selected
+ * as by [processReads]: with a positive mapping quality and not marked as
+ * duplicates in the file. If [removeDetectedDuplicates] is true, the duplicates
+ * detected by [DuplicatesFilter] are removed as well.
+ */
+data class ReadsFilter(
+        val minMapq: Int = 1,
+        val keepMarkedDuplicates: Boolean = false,
+        val removeDetectedDuplicates: Boolean = false
+) {
+    internal fun accepts(columns: ReadsTable.Columns, i: Int): Boolean {
+        val flags = columns.flags[i].toInt()
+        return columns.mapq(i) >= minMapq &&
+                (keepMarkedDuplicates || flags and ReadsTable.MARKED_DUPLICATE == 0) &&
+                (!removeDetectedDuplicates || flags and ReadsTable.DETECTED_DUPLICATE == 0)
+    }
+}
@@ -276,7 +276,7 @@ object TwoBitReader {
     /**
      * Reads a mapping from sequence names to offsets in the 2bit file.
      */
-    private fun getIndex(buf: ByteBuffer): TObjectIntMap<String> {
+    internal fun getIndex(buf: ByteBuffer): TObjectIntMap<String> {
         val version = buf.getInt()
         val sequenceCount = buf.getInt()
         val reserved = buf.getInt()
@@ -304,7 +304,7 @@ object TwoBitReader {
     /**
      * Determines the byte order in the 2bit file at `path`.
      */
-    private fun getBuffer(path: Path): ByteBuffer {
+    internal fun getBuffer(path: Path): ByteBuffer {
         return FileChannel.open(path).use { fc ->
             val buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, path.size.bytes)
             buf.order(ByteOrder.nativeOrder())
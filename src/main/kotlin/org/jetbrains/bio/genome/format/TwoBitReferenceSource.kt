@@ -0,0 +1,107 @@
+package org.jetbrains.bio.genome.format
+
+import gnu.trove.map.TObjectIntMap
+import htsjdk.samtools.SAMSequenceRecord
+import htsjdk.samtools.cram.ref.CRAMReferenceSource
+import java.io.IOException
+import java.lang.ref.SoftReference
+import java.nio.ByteBuffer
+import java.nio.file.Path
+import java.util.*
+import kotlin.math.min
+
+/**
+ * A [CRAMReferenceSource] backed by a 2bit file, so that CRAM files can be
+ * decoded without a FASTA reference.
+ *
+ * The 2bit file is memory-mapped once, and the bases of a sequence are unpacked
+ * straight from the mapped buffer on demand, without building a [TwoBitSequence]
+ * or a string first. The bases are upper case, the N-blocks are served as `N`
+ * and the repeat masks are ignored. Only the most recently requested sequence
+ * is kept, since CRAM containers are mostly requested reference by reference.
+ */
+class TwoBitReferenceSource @Throws(IOException::class) constructor(val path: Path) : CRAMReferenceSource {
+
+    private val buffer: ByteBuffer = TwoBitReader.getBuffer(path)
+    /** Sequence offsets in [buffer] by name. */
+    private val index: TObjectIntMap<String> = TwoBitReader.getIndex(buffer)
+
+    private var lastName: String? = null
+    private var lastBases = SoftReference<ByteArray>(null)
+
+    @Synchronized
+    override fun getReferenceBases(record: SAMSequenceRecord, tryNameVariants: Boolean): ByteArray? {
+        val name = record.sequenceName
+        val candidates = if (tryNameVariants) listOf(name) + referenceNameVariants(name) else listOf(name)
+        val found = candidates.firstOrNull { index.containsKey(it) } ?: return null
+        val cached = if (found == lastName) lastBases.get() else null
+        if (cached != null) {
+            return cached
+        }
+        return unpack(index[found]).also {
+            lastName = found
+            lastBases = SoftReference(it)
+        }
+    }
+
+    /**
+     * Unpacks the bases of the sequence record starting at [offset],
+     * see [TwoBitReader.read] for the layout.
+     */
+    private fun unpack(offset: Int): ByteArray {
+        // Duplicates don't inherit the byte order.
+        val view = buffer.duplicate().order(buffer.order())
+        view.position(offset)
+        val length = view.getInt()
+        val nBlockCount = view.getInt()
+        val nBlockStarts = IntArray(nBlockCount) { view.getInt() }
+        val nBlockSizes = IntArray(nBlockCount) { view.getInt() }
+        val maskBlockCount = view.getInt()
+        view.position(view.position() + 2 * maskBlockCount * Integer.BYTES)
+        val reserved = view.getInt()
+        check(reserved == 0) { "invalid reserved value: $reserved" }
+
+        // DNA is packed 4 bases per byte, the first base in the high bits.
+        val bases = ByteArray(length)
+        var i = 0
+        while (i < length) {
+            val pack = view.get().toInt()
+            for (j in 0 until min(BASES_PER_BYTE, length - i)) {
+                bases[i + j] = BASES[pack ushr (6 - 2 * j) and 3]
+            }
+            i += BASES_PER_BYTE
+        }
+        for (b in 0 until nBlockCount) {
+            Arrays.fill(bases, nBlockStarts[b], nBlockStarts[b] + nBlockSizes[b], N)
+        }
+        return bases
+    }
+
+    override fun toString() = "TwoBitReferenceSource($path)"
+
+    companion object {
+        private const val BASES_PER_BYTE = 4
+        /** Same packing as in [TwoBitSequence]: 00 - T, 01 - C, 10 - A, 11 - G. */
+        private val BASES = "TCAG".toByteArray()
+        private const val N = 'N'.toByte()
+    }
+}
+
+/**
+ * Returns the alternative names of a reference sequence, e.g. `1` for `chr1`
+ * or `chrM` for `MT`, same as [htsjdk.samtools.cram.ref.ReferenceSource] tries.
+ */
+internal fun referenceNameVariants(name: String): List<String> {
+    val variants = ArrayList<String>()
+    if (name.startsWith("chr")) {
+        variants.add(name.substring(3))
+    } else {
+        variants.add("chr$name")
+    }
+    when (name) {
+        "M" -> variants.add("MT")
+        "MT" -> variants.addAll(listOf("M", "chrM"))
+        "chrM" -> variants.add("MT")
+    }
+    return variants
+}
@@ -2,13 +2,17 @@ package org.jetbrains.bio.genome.query
 
 import org.jetbrains.bio.experiment.Configuration
 import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.Location
+import org.jetbrains.bio.genome.containers.LocationsMergingList
 import org.jetbrains.bio.genome.coverage.*
+import org.jetbrains.bio.genome.format.ReadsTable
 import org.jetbrains.bio.genome.format.isPaired
 import org.jetbrains.bio.genome.format.processPairedReads
-import org.jetbrains.bio.genome.format.processReads
+import org.jetbrains.bio.genome.format.processReadsBatches
 import org.jetbrains.bio.util.*
 import org.slf4j.LoggerFactory
 import java.nio.file.Path
+import java.util.concurrent.Callable
 
 /**
  * Query of tags coverage created from a BAM or BED/BED.GZ file.
@@ -21,28 +25,77 @@ import java.nio.file.Path
  * If the coverage is paired-end, any value of [fragment] is ignored.
  *
  * [logFragmentSize] controls whether log messages regarding fragment size are generated.
+ *
+ * [mapped] controls whether the cached coverage is memory-mapped instead of being
+ * loaded onto heap. Mapping is recommended when many processes share the same cache.
+ *
+ * [packed] controls whether the coverage is kept compressed in memory, which is
+ * recommended when many libraries are analysed at once, see [Coverage.load].
+ *
+ * Not-null [cache] makes the coverage load the tags of each chromosome lazily,
+ * on first access, keeping at most the cache budget of tags resident across all
+ * the queries sharing the [cache], see [ResidentTagsCache].
+ *
+ * Not-null [targets] restrict the coverage to the reads near the target regions,
+ * e.g. promoters or peaks, which are fetched via the file index without reading
+ * the rest of the file, see [processReads]. The targets are padded by the fixed
+ * [fragment] size, or by [SingleEndCoverage.MAX_FRAGMENT_SIZE] otherwise, so that
+ * the reads just outside a target whose fragments reach into it are counted too.
+ * Within the targets such a coverage matches the full one as long as the fragments
+ * are no longer than the padding, while the depth and the detected fragment size
+ * only reflect the targeted reads. It is cached separately for each target set.
+ *
+ * [cacheReads] controls whether the reads are cached in a [ReadsTable] first, so
+ * that the file is only parsed once for all the coverage variants of it. The table
+ * takes extra disk space and time to write, so it only pays off when the same file
+ * is queried with different settings. An existing table is used regardless.
  */
 class ReadsQuery(
         val genomeQuery: GenomeQuery,
         val path: Path,
         val unique: Boolean = true,
         val fragment: Fragment = AutoFragment,
-        val logFragmentSize: Boolean = true
+        val logFragmentSize: Boolean = true,
+        val mapped: Boolean = false,
+        val packed: Boolean = false,
+        val cache: ResidentTagsCache? = null,
+        val targets: LocationsMergingList? = null,
+        val cacheReads: Boolean = false
 ) : CachingInputQuery<Coverage>() {
 
     override fun getUncached(): Coverage = coverage()
 
     override val description: String
-        get() = "Path: $path, Unique: $unique, Fragment: $fragment"
+        get() = "Path: $path, Unique: $unique, Fragment: $fragment" +
+                (if (targets != null) ", Targets: ${targets.size}" else "")
 
+    /**
+     * The coverage is built from the [readsTable] if [cacheReads] is true or the
+     * table is already written, so that the file is only parsed once for all the
+     * coverage variants, e.g. with a different [unique] or [fragment]. Otherwise
+     * the reads are streamed from the file. The table is never used in the spilling
+     * mode, see [SpillingSingleEndCoverageBuilder], where the heap usage is bounded,
+     * and the targeted mode, where only the reads overlapping [targets] are read.
+     */
     fun coverage(): Coverage {
         val npz = npzPath()
         npz.checkOrRecalculate("Coverage for ${path.name}") { (npzPath) ->
-            val paired = isPaired(path)
+            val heapBudget = SpillingSingleEndCoverageBuilder.heapBudget()
+            val table = if (heapBudget == null && targets == null &&
+                    (cacheReads || readsTablePath().exists)) readsTable() else null
+            val paired = table?.paired ?: isPaired(path, genomeQuery.genome)
             if (paired && fragment is AutoFragment) {
                 PairedEndCoverage.builder(genomeQuery).apply {
-                    val unpaired = processPairedReads(genomeQuery, path) { chr, pos, pnext, len ->
-                        process(chr, pos, pnext, len)
+                    val unpaired = if (table != null) {
+                        table.processPairedReads(genomeQuery, parallel = true) { chr, pos, pnext, len ->
+                            process(chr, pos, pnext, len)
+                        }
+                    } else {
+                        processPairedReads(
+                                genomeQuery, path, parallel = true, targets = paddedTargets
+                        ) { chr, pos, pnext, len ->
+                            process(chr, pos, pnext, len)
+                        }
                     }
                     if (unpaired != 0) {
                         LOG.info(
@@ -54,14 +107,28 @@ class ReadsQuery(
                 if (paired) {
                     LOG.info("Fragment option ($fragment) forces reading paired-end reads as single-end!")
                 }
-                SingleEndCoverage.builder(genomeQuery).apply {
-                    processReads(genomeQuery, path) {
-                        process(it)
-                    }
-                }.build(unique).save(npzPath)
+                if (heapBudget != null) {
+                    SingleEndCoverage.spillingBuilder(genomeQuery, heapBudget, npzPath.parent).apply {
+                        processReadsBatches(genomeQuery, path, targets = paddedTargets) {
+                            process(it)
+                        }
+                    }.save(unique, npzPath)
+                } else if (table == null) {
+                    SingleEndCoverage.builder(genomeQuery).apply {
+                        processReadsBatches(genomeQuery, path, parallel = true, targets = paddedTargets) {
+                            process(it)
+                        }
+                    }.build(unique).save(npzPath)
+                } else {
+                    SingleEndCoverage.builder(genomeQuery).apply {
+                        table.processReadsBatches(genomeQuery, parallel = true) {
+                            process(it)
+                        }
+                    }.build(unique).save(npzPath)
+                }
             }
         }
-        val coverage = Coverage.load(npz, genomeQuery, fragment)
+        val coverage = Coverage.load(npz, genomeQuery, fragment, mapped, packed, cache)
         val libraryDepth = coverage.depth
         if (logFragmentSize) {
             val logMessage = "Library: ${path.name}, Depth: ${"%,d".format(libraryDepth)}, " + when (coverage) {
@@ -97,8 +164,104 @@ class ReadsQuery(
 
     fun npzPath() = Configuration.cachePath /  "coverage_${fileId}${path.sha}.npz"
 
+    /**
+     * Returns the reads of the file on the genome of [genomeQuery], see [ReadsTable].
+     * The table is written once per file and shared by all the queries of it,
+     * regardless of their settings.
+     */
+    fun readsTable(): ReadsTable {
+        val npz = readsTablePath()
+        npz.checkOrRecalculate("Reads of ${path.name}") { (npzPath) ->
+            ReadsTable.write(genomeQuery.genome, path, npzPath)
+        }
+        return ReadsTable.load(npz, genomeQuery.genome)
+    }
+
+    fun readsTablePath() = Configuration.cachePath / "reads_${path.stemGz}_${genomeQuery.build}${path.sha}.npz"
+
+    /**
+     * Returns the coverage binned into consecutive [binSize] bp bins, see [BinnedCoverage].
+     * The result is cached next to the coverage, so repeated calls with the same
+     * [binSize] don't touch the tags at all.
+     */
+    fun binnedCoverage(binSize: Int): BinnedCoverage {
+        val npz = binnedNpzPath(binSize)
+        npz.checkOrRecalculate("Binned coverage for ${path.name}") { (npzPath) ->
+            BinnedCoverage.of(coverage(), binSize).save(npzPath)
+        }
+        return BinnedCoverage.load(npz, genomeQuery)
+    }
+
+    fun binnedNpzPath(binSize: Int) = Configuration.cachePath / "binned_${id}_$binSize${path.sha}.npz"
+
+    /**
+     * Returns the coverage with each tag kept with probability [fraction], see [downsample].
+     * The result is cached, so that the same [fraction] and [seed] always give
+     * the same coverage without re-reading the tags.
+     */
+    fun downsampled(fraction: Double, seed: Long = 0L): Coverage {
+        val npz = downsampledNpzPath(fraction, seed)
+        npz.checkOrRecalculate("Downsampled coverage for ${path.name}") { (npzPath) ->
+            val downsampled = coverage().downsample(fraction, seed)
+            when (downsampled) {
+                is SingleEndCoverage -> downsampled.save(npzPath)
+                is PairedEndCoverage -> downsampled.save(npzPath)
+                else -> throw IllegalArgumentException("Unknown library type: ${downsampled::class.java}")
+            }
+        }
+        return Coverage.load(npz, genomeQuery, fragment, mapped, packed, cache)
+    }
+
+    fun downsampledNpzPath(fraction: Double, seed: Long) =
+            Configuration.cachePath / "coverage_${fileId}_downsampled_${fraction}_$seed${path.sha}.npz"
+
+    /**
+     * Returns the signal of this query normalized by [control], see [NormalizedCoverage].
+     * The result is cached, the cache file is identified by both queries,
+     * the bin size and the normalization settings.
+     */
+    fun normalizedCoverage(
+            control: ReadsQuery,
+            binSize: Int,
+            method: NormalizedCoverage.Method = NormalizedCoverage.Method.LOG_RATIO,
+            pseudoCount: Double = 1.0
+    ): NormalizedCoverage {
+        val npz = normalizedNpzPath(control, binSize, method, pseudoCount)
+        npz.checkOrRecalculate("Normalized coverage for ${path.name} vs ${control.path.name}") { (npzPath) ->
+            NormalizedCoverage.of(coverage(), control.coverage(), binSize, method, pseudoCount).save(npzPath)
+        }
+        return NormalizedCoverage.load(npz, genomeQuery)
+    }
+
+    fun normalizedNpzPath(
+            control: ReadsQuery,
+            binSize: Int,
+            method: NormalizedCoverage.Method,
+            pseudoCount: Double
+    ) = Configuration.cachePath /
+            ("normalized_${id}_vs_${control.id}_${binSize}_${method.name.toLowerCase()}_$pseudoCount" +
+                    "${path.sha}${control.path.sha}.npz")
+
+    private val targetsPadding = (fragment as? FixedFragment)?.size ?: SingleEndCoverage.MAX_FRAGMENT_SIZE
+
+    /**
+     * The [targets] padded by [targetsPadding] and clamped to the chromosomes.
+     */
+    private val paddedTargets = targets?.let { list ->
+        LocationsMergingList.create(genomeQuery, list.toList().map { location ->
+            val chromosome = location.chromosome
+            Location(
+                    Math.max(0, location.startOffset - targetsPadding),
+                    Math.min(chromosome.length, location.endOffset + targetsPadding),
+                    chromosome, location.strand
+            )
+        })
+    }
+
+    // the padding depends on the fragment, which isn't otherwise stored in the file name
     private val idStem = path.stemGz +
-            (if (unique) "_unique" else "")
+            (if (unique) "_unique" else "") +
+            (if (targets != null) "_targets${targetsPadding}_${targets.toList().joinToString(",").sha}" else "")
 
     override val id: String
         get() = idStem + (if (fragment is FixedFragment) "_$fragment" else "")
@@ -110,6 +273,56 @@ class ReadsQuery(
         val LOG = LoggerFactory.getLogger(ReadsQuery::class.java)
 
         private const val MIN_DEPTH_THRESHOLD_PERCENT = 0.1
+
+        /**
+         * Loads the coverages of all the [queries] concurrently and bins them
+         * in one sweep, see [CoverageMatrix]. The columns are labeled with
+         * the query ids, made unique by their indices if necessary.
+         */
+        fun coverageMatrix(queries: List<ReadsQuery>, binSize: Int): CoverageMatrix {
+            require(queries.isNotEmpty()) { "no queries given" }
+            val coverages = arrayOfNulls<Coverage>(queries.size)
+            queries.mapIndexed { i, query ->
+                Callable { coverages[i] = query.get() }
+            }.await(parallel = true)
+
+            val ids = queries.map { it.id }
+            val labels = if (ids.toSet().size == ids.size) {
+                ids
+            } else {
+                ids.mapIndexed { i, id -> "${id}_$i" }
+            }
+            return CoverageMatrix.of(coverages.map { it!! }, binSize, labels)
+        }
+
+        /**
+         * Returns the pooled coverage of the [queries], e.g. biological replicates,
+         * see [pool]. The coverages are loaded concurrently from their caches and
+         * merged without re-reading the alignments. The result is cached as well.
+         */
+        fun pooledCoverage(queries: List<ReadsQuery>, unique: Boolean = true): Coverage {
+            require(queries.isNotEmpty()) { "no queries given" }
+            val genomeQuery = queries.first().genomeQuery
+            val npz = pooledNpzPath(queries, unique)
+            npz.checkOrRecalculate("Pooled coverage for ${queries.joinToString { it.path.name }}") { (npzPath) ->
+                val coverages = arrayOfNulls<Coverage>(queries.size)
+                queries.mapIndexed { i, query ->
+                    Callable { coverages[i] = query.coverage() }
+                }.await(parallel = true)
+                val pooled = pool(coverages.map { it!! }, unique)
+                when (pooled) {
+                    is SingleEndCoverage -> pooled.save(npzPath)
+                    is PairedEndCoverage -> pooled.save(npzPath)
+                    else -> throw IllegalArgumentException("Unknown library type: ${pooled::class.java}")
+                }
+            }
+            val first = queries.first()
+            return Coverage.load(npz, genomeQuery, first.fragment, first.mapped, first.packed, first.cache)
+        }
+
+        fun pooledNpzPath(queries: List<ReadsQuery>, unique: Boolean) = Configuration.cachePath /
+                ("coverage_pooled_${queries.size}" + (if (unique) "_unique" else "") +
+                        "${queries.joinToString("|") { it.npzPath().toString() }.sha}.npz")
     }
 }
 
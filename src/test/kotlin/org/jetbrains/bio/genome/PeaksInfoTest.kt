@@ -0,0 +1,66 @@
+package org.jetbrains.bio.genome
+
+import org.jetbrains.bio.genome.coverage.Coverage
+import org.jetbrains.bio.genome.coverage.PairedEndCoverage
+import org.jetbrains.bio.genome.coverage.SingleEndCoverage
+import org.jetbrains.bio.genome.coverage.putAll
+import org.jetbrains.bio.genome.coverage.withFragment
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class PeaksInfoTest {
+
+    @Test
+    fun testPeaksCountsSingleEnd() {
+        val random = Random(42)
+        val builder = SingleEndCoverage.builder(genomeQuery)
+        repeat(10000) {
+            builder.putAll(
+                    if (random.nextBoolean()) chromosome1 else chromosome2,
+                    if (random.nextBoolean()) Strand.PLUS else Strand.MINUS,
+                    random.nextInt(100000)
+            )
+        }
+        checkPeaksCounts(builder.build(unique = false).withFragment(150), random)
+    }
+
+    @Test
+    fun testPeaksCountsPairedEnd() {
+        val random = Random(42)
+        val builder = PairedEndCoverage.builder(genomeQuery)
+        repeat(10000) {
+            builder.putAll(if (random.nextBoolean()) chromosome1 else chromosome2, random.nextInt(100000))
+        }
+        checkPeaksCounts(builder.build(unique = false), random)
+    }
+
+    @Test
+    fun testPeaksCountsEmpty() {
+        val coverage = SingleEndCoverage.builder(genomeQuery).build(unique = false)
+        assertTrue(PeaksInfo.peaksCounts(emptyList(), coverage).isEmpty())
+    }
+
+    private fun checkPeaksCounts(coverage: Coverage, random: Random) {
+        // Overlapping and nested peaks in random order.
+        val peaks = (0 until 1000).map {
+            val start = random.nextInt(100000)
+            Location(
+                    start, start + random.nextInt(if (it % 10 == 0) 10000 else 500),
+                    if (random.nextBoolean()) chromosome1 else chromosome2
+            )
+        }
+        val counts = PeaksInfo.peaksCounts(peaks, coverage)
+        assertEquals(
+                peaks.map { coverage.getBothStrandsCoverage(it.toChromosomeRange()) },
+                counts.toList()
+        )
+    }
+
+    companion object {
+        internal var genomeQuery: GenomeQuery = GenomeQuery(Genome["to1"])
+        internal var chromosome1: Chromosome = genomeQuery.get()[0]
+        internal var chromosome2: Chromosome = genomeQuery.get()[1]
+    }
+}
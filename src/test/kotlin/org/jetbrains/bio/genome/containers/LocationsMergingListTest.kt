@@ -1,6 +1,11 @@
 package org.jetbrains.bio.genome.containers
 
+import org.jetbrains.bio.Tests.assertIn
 import org.jetbrains.bio.genome.*
+import org.jetbrains.bio.genome.format.BedFormat
+import org.jetbrains.bio.util.Logs
+import org.jetbrains.bio.util.withTempFile
+import org.jetbrains.bio.util.write
 import org.junit.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
@@ -84,6 +89,17 @@ class LocationsMergingListTest {
         assertEquals(2, locationList.intersectBothStrands(Location(90, 310, chromosome, Strand.MINUS)).size)
     }
 
+    @Test fun loadSkipsMalformedStrand() {
+        withTempFile("locations", ".bed") { path ->
+            path.write("chr1\t10\t100\t.\t0\t+\nchr1\t300\t400\t.\t0\t?\n")
+            val (out, _) = Logs.captureLoggingOutput {
+                val locationList = LocationsMergingList.load(GenomeQuery(Genome["to1"]), path, BedFormat.from("bed6"))
+                assertEquals(listOf(Location(10, 100, chromosome)), locationList.toList())
+            }
+            assertIn("skipped 1 BED lines which failed to parse", out)
+        }
+    }
+
     companion object {
         private val chromosome = Chromosome(Genome["to1"], "chr1")
     }
@@ -1,7 +1,9 @@
 package org.jetbrains.bio.genome.containers
 
 import org.jetbrains.bio.genome.Range
+import org.jetbrains.bio.util.withTempFile
 import org.junit.Test
+import java.util.*
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
 import kotlin.test.assertTrue
@@ -281,6 +283,56 @@ class RangesSortedListTest {
         doCheckIntersectedRanges(expected, rl1, rl2, true)
     }
 
+    @Test
+    fun queriesSameAsLinearScan() {
+        val random = Random(42)
+        for (size in listOf(1, 2, 15, 16, 17, 100, 1000)) {
+            val ranges = (0 until size).map {
+                val start = random.nextInt(10000)
+                Range(start, start + 1 + random.nextInt(if (random.nextInt(10) == 0) 5000 else 50))
+            }
+            val rl = ranges.toRangeSortedList()
+            val sorted = rl.toList()
+            repeat(200) {
+                val start = random.nextInt(11000) - 500
+                val end = start + random.nextInt(1000)
+                assertEquals(
+                    sorted.any { it.startOffset < end && it.endOffset > start },
+                    rl.overlapRanges(start, end)
+                )
+                assertEquals(
+                    sorted.any { it.startOffset <= start && it.endOffset >= end },
+                    rl.includesRange(start, end)
+                )
+                assertEquals(
+                    sorted.filter { it.startOffset < end && it.endOffset > start }.map {
+                        Range(maxOf(start, it.startOffset), minOf(end, it.endOffset))
+                    }.filter { it.startOffset < it.endOffset },
+                    rl.intersectRanges(start, end)
+                )
+            }
+        }
+    }
+
+    @Test
+    fun saveIndexed() {
+        val rl = rangeSortedList(
+            Range(0, 40),
+            Range(2, 6),
+            Range(20, 40),
+            Range(30, 70),
+            Range(50, 100)
+        )
+        withTempFile("ranges", ".npz") { path ->
+            rl.saveIndexed(path)
+            val loaded = RangesSortedList.loadIndexed(path)
+            assertEquals(rl.toList(), loaded.toList())
+            assertEquals(rl.intersectRanges(20, 60), loaded.intersectRanges(20, 60))
+            assertTrue(loaded.includesRange(35, 60))
+            assertFalse(loaded.includesRange(35, 80))
+        }
+    }
+
     private fun doCheckIntersectedRanges(
         expected: List<Range>,
         rl1: RangesSortedList,
@@ -0,0 +1,75 @@
+package org.jetbrains.bio.genome.coverage
+
+import org.jetbrains.bio.genome.*
+import org.jetbrains.bio.util.withTempFile
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+
+class BinnedCoverageTest {
+
+    @Test
+    fun testSingleEnd() {
+        val random = Random(42)
+        val builder = SingleEndCoverage.builder(genomeQuery)
+        for (chromosome in genomeQuery.get()) {
+            repeat(1000) {
+                val start = random.nextInt(chromosome.length - 100)
+                val strand = if (random.nextBoolean()) Strand.PLUS else Strand.MINUS
+                builder.process(Location(start, start + 50, chromosome, strand))
+            }
+        }
+        val coverage = builder.build(unique = false).withFragment(150)
+        for (binSize in intArrayOf(50, 200, 1000, 12345)) {
+            assertBinsMatch(coverage, BinnedCoverage.of(coverage, binSize))
+        }
+    }
+
+    @Test
+    fun testPairedEnd() {
+        val random = Random(42)
+        val builder = PairedEndCoverage.builder(genomeQuery)
+        for (chromosome in genomeQuery.get()) {
+            repeat(1000) {
+                val pnext = random.nextInt(chromosome.length - 500)
+                builder.process(chromosome, pnext + 100 + random.nextInt(200), pnext, 50)
+            }
+        }
+        val coverage = builder.build(unique = false)
+        assertBinsMatch(coverage, BinnedCoverage.of(coverage, 200))
+    }
+
+    @Test
+    fun testSerialization() {
+        val coverage = SingleEndCoverage.builder(genomeQuery)
+                .putAll(chromosome1, Strand.PLUS, 5, 13, 23, 1, 111, 7, 4, 5, 50)
+                .putAll(chromosome1, Strand.MINUS, 0, 20, 40, 60)
+                .build(unique = false).withFragment(0)
+        val binned = BinnedCoverage.of(coverage, 10)
+        assertArrayEquals(intArrayOf(6, 1, 2, 0, 1, 1, 1), binned[chromosome1].copyOf(7))
+        withTempFile("binned", ".npz") { path ->
+            binned.save(path)
+            val loaded = BinnedCoverage.load(path, genomeQuery)
+            assertEquals(binned.binSize, loaded.binSize)
+            for (chromosome in genomeQuery.get()) {
+                assertArrayEquals(binned[chromosome], loaded[chromosome])
+            }
+        }
+    }
+
+    private fun assertBinsMatch(coverage: Coverage, binned: BinnedCoverage) {
+        for (chromosome in genomeQuery.get()) {
+            val expected = chromosome.range.slice(binned.binSize).mapToInt {
+                coverage.getBothStrandsCoverage(it.on(chromosome))
+            }.toArray()
+            assertArrayEquals(expected, binned[chromosome])
+            assertEquals(expected.sum().toDouble(), binned.getF64Array(chromosome).sum())
+        }
+    }
+
+    companion object {
+        internal var genomeQuery: GenomeQuery = GenomeQuery(Genome["to1"])
+        internal var chromosome1: Chromosome = genomeQuery.get()[0]
+    }
+}
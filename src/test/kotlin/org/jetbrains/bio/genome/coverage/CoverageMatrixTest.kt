@@ -0,0 +1,73 @@
+package org.jetbrains.bio.genome.coverage
+
+import org.jetbrains.bio.genome.*
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+
+class CoverageMatrixTest {
+
+    @Test
+    fun testSameAsBinned() {
+        val random = Random(42)
+        val coverages = (0 until 3).map { generateCoverage(random) } +
+                PairedEndCoverage.builder(genomeQuery).apply {
+                    for (chromosome in genomeQuery.get()) {
+                        repeat(1000) {
+                            val pnext = random.nextInt(chromosome.length - 500)
+                            process(chromosome, pnext + 100 + random.nextInt(200), pnext, 50)
+                        }
+                    }
+                }.build(unique = false)
+        val matrix = CoverageMatrix.of(coverages, 200, listOf("a", "b", "c", "d"))
+        assertEquals(4, matrix.size)
+        coverages.forEachIndexed { j, coverage ->
+            val binned = BinnedCoverage.of(coverage, 200)
+            for (chromosome in genomeQuery.get()) {
+                assertArrayEquals(binned[chromosome], matrix[chromosome, j])
+            }
+        }
+
+        val values = matrix.getF64Array(chromosome1)
+        assertEquals(BinnedCoverage.binsCount(chromosome1, 200), values.shape[0])
+        assertEquals(4, values.shape[1])
+        val df = matrix.dataFrame(chromosome1)
+        assertEquals(listOf("a", "b", "c", "d"), df.labels.toList())
+        for (i in 0 until df.rowsNumber step 997) {
+            for (j in 0 until 4) {
+                assertEquals(values[i, j], df.getAsInt(i, matrix.labels[j]).toDouble())
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testDuplicateLabels() {
+        val random = Random(42)
+        CoverageMatrix.of(listOf(generateCoverage(random), generateCoverage(random)), 200, listOf("a", "a"))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testDifferentGenomeQueries() {
+        val random = Random(42)
+        val other = SingleEndCoverage.builder(GenomeQuery(Genome["to1"], "chr1")).build(unique = false)
+        CoverageMatrix.of(listOf(generateCoverage(random), other), 200)
+    }
+
+    private fun generateCoverage(random: Random): Coverage {
+        val builder = SingleEndCoverage.builder(genomeQuery)
+        for (chromosome in genomeQuery.get()) {
+            repeat(1000) {
+                val start = random.nextInt(chromosome.length - 100)
+                val strand = if (random.nextBoolean()) Strand.PLUS else Strand.MINUS
+                builder.process(Location(start, start + 50, chromosome, strand))
+            }
+        }
+        return builder.build(unique = false).withFragment(150)
+    }
+
+    companion object {
+        internal var genomeQuery: GenomeQuery = GenomeQuery(Genome["to1"])
+        internal var chromosome1: Chromosome = genomeQuery.get()[0]
+    }
+}
@@ -0,0 +1,123 @@
+package org.jetbrains.bio.genome.coverage
+
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.big.BigWigFile
+import org.jetbrains.bio.genome.*
+import org.jetbrains.bio.util.bufferedReader
+import org.jetbrains.bio.util.withTempFile
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+
+class CoverageTracksTest {
+
+    @Test
+    fun testBigWigRoundTrip() {
+        val coverage = generateCoverage()
+        withTempFile("coverage", ".bw") { path ->
+            coverage.saveBigWig(path, BIN_SIZE)
+            BigWigFile.read(path).use { bwf ->
+                for (chromosome in genomeQuery.get()) {
+                    val values = FloatArray(BinnedCoverage.binsCount(chromosome, BIN_SIZE))
+                    for (section in bwf.query(chromosome.name)) {
+                        for (interval in section.query()) {
+                            for (i in interval.start / BIN_SIZE until (interval.end - 1) / BIN_SIZE + 1) {
+                                values[i] = interval.score
+                            }
+                        }
+                    }
+                    val expected = BinnedCoverage.of(coverage, BIN_SIZE)[chromosome]
+                    assertArrayEquals(expected.map { it.toFloat() }.toFloatArray(), values, 0f)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testBigWigRpm() {
+        val coverage = generateCoverage()
+        withTempFile("coverage", ".bw") { path ->
+            coverage.saveBigWig(path, BIN_SIZE, TrackSignal.FRAGMENTS, rpm = true)
+            BigWigFile.read(path).use { bwf ->
+                val sum = bwf.query(chromosome1.name).flatMap { it.query().toList() }.map {
+                    it.score.toDouble() * ((it.end - 1) / BIN_SIZE - it.start / BIN_SIZE + 1)
+                }.sum()
+                val counts = trackCounts(coverage, chromosome1, BIN_SIZE, TrackSignal.FRAGMENTS)
+                val expected = counts.sum() * 1e6 / coverage.depth
+                assertEquals(expected, sum, expected * 1e-5)
+            }
+        }
+    }
+
+    @Test
+    fun testBedGraph() {
+        val coverage = generateCoverage()
+        withTempFile("coverage", ".bedGraph") { path ->
+            coverage.saveBedGraph(path, BIN_SIZE, TrackSignal.FRAGMENTS)
+            val values = genomeQuery.get().associate {
+                it.name to IntArray(BinnedCoverage.binsCount(it, BIN_SIZE))
+            }
+            path.bufferedReader().useLines { lines ->
+                for (line in lines) {
+                    val (name, start, end, value) = line.split('\t')
+                    for (i in start.toInt() / BIN_SIZE until (end.toInt() - 1) / BIN_SIZE + 1) {
+                        values[name]!![i] = value.toInt()
+                    }
+                }
+            }
+            for (chromosome in genomeQuery.get()) {
+                assertArrayEquals(
+                        trackCounts(coverage, chromosome, BIN_SIZE, TrackSignal.FRAGMENTS),
+                        values[chromosome.name]
+                )
+            }
+        }
+    }
+
+    @Test
+    fun testSingleEndFragments() {
+        val coverage = SingleEndCoverage.builder(genomeQuery)
+                .putAll(chromosome1, Strand.PLUS, 0, 15, 95)
+                .putAll(chromosome1, Strand.MINUS, 29, 40)
+                .build(unique = false).withFragment(10)
+        // Fragments: [0, 10), [15, 25), [95, 105), [20, 30), [31, 41).
+        assertArrayEquals(
+                intArrayOf(1, 1, 2, 1, 1, 0, 0, 0, 0, 1, 1, 0),
+                trackCounts(coverage, chromosome1, 10, TrackSignal.FRAGMENTS).copyOf(12)
+        )
+    }
+
+    @Test
+    fun testPairedEndFragments() {
+        val coverage = PairedEndCoverage.builder(genomeQuery)
+                .process(chromosome1, 64, 0, 36)
+                .process(chromosome1, 214, 150, 36)
+                .build(unique = false)
+        // Fragments: [0, 100), [150, 250).
+        assertArrayEquals(
+                intArrayOf(1, 1, 0, 1, 1, 0, 0, 0),
+                trackCounts(coverage, chromosome1, 50, TrackSignal.FRAGMENTS).copyOf(8)
+        )
+    }
+
+    private fun generateCoverage(): Coverage {
+        val random = Random(42)
+        val builder = SingleEndCoverage.builder(genomeQuery)
+        for (chromosome in genomeQuery.get()) {
+            repeat(1000) {
+                val start = random.nextInt(chromosome.length - 100)
+                val strand = if (random.nextBoolean()) Strand.PLUS else Strand.MINUS
+                builder.process(Location(start, start + 50, chromosome, strand))
+            }
+        }
+        return builder.build(unique = false).withFragment(150)
+    }
+
+    companion object {
+        private const val BIN_SIZE = 200
+
+        internal var genomeQuery: GenomeQuery = GenomeQuery(Genome["to1"])
+        internal var chromosome1: Chromosome = genomeQuery.get()[0]
+    }
+}
@@ -0,0 +1,131 @@
+package org.jetbrains.bio.genome.coverage
+
+import org.jetbrains.bio.genome.*
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+import kotlin.test.assertTrue
+
+class DownsamplingTest {
+
+    @Test
+    fun testReproducible() {
+        val coverage = singleEndCoverage()
+        val first = coverage.downsample(0.3, seed = 42) as SingleEndCoverage
+        val second = coverage.downsample(0.3, seed = 42) as SingleEndCoverage
+        for (chromosome in genomeQuery.get()) {
+            for (strand in Strand.values()) {
+                assertEquals(
+                        first.data[chromosome, strand].toList(),
+                        second.data[chromosome, strand].toList()
+                )
+            }
+        }
+    }
+
+    @Test
+    fun testSeed() {
+        val coverage = singleEndCoverage()
+        val first = coverage.downsample(0.3, seed = 1) as SingleEndCoverage
+        val second = coverage.downsample(0.3, seed = 2) as SingleEndCoverage
+        assertNotEquals(
+                first.data[chromosome1, Strand.PLUS].toList(),
+                second.data[chromosome1, Strand.PLUS].toList()
+        )
+    }
+
+    @Test
+    fun testFraction() {
+        val coverage = singleEndCoverage()
+        val downsampled = coverage.downsample(0.3)
+        assertEquals(0.3 * coverage.depth, downsampled.depth.toDouble(), 0.02 * coverage.depth)
+    }
+
+    @Test
+    fun testSubset() {
+        val coverage = singleEndCoverage()
+        val downsampled = coverage.downsample(0.5) as SingleEndCoverage
+        for (strand in Strand.values()) {
+            val tags = coverage.data[chromosome1, strand].toList()
+            val sampled = downsampled.data[chromosome1, strand].toList()
+            assertEquals(sampled.sorted(), sampled)
+            val remaining = tags.groupingBy { it }.eachCount().toMutableMap()
+            for (tag in sampled) {
+                val count = remaining[tag] ?: 0
+                assertTrue(count > 0, "tag $tag is not in the original coverage")
+                remaining[tag] = count - 1
+            }
+        }
+    }
+
+    @Test
+    fun testBounds() {
+        val coverage = singleEndCoverage()
+        assertEquals(coverage.depth, coverage.downsample(1.0).depth)
+        assertEquals(0, coverage.downsample(0.0).depth)
+    }
+
+    @Test
+    fun testFragmentPreserved() {
+        val coverage = singleEndCoverage().withFragment(150)
+        val downsampled = coverage.downsample(0.5) as SingleEndCoverage
+        assertEquals(coverage.detectedFragment, downsampled.detectedFragment)
+        assertEquals(150, downsampled.actualFragment)
+    }
+
+    @Test
+    fun testDownsampleTo() {
+        val coverage = singleEndCoverage()
+        assertEquals(coverage.depth, coverage.downsampleTo(coverage.depth + 1).depth)
+        val downsampled = coverage.downsampleTo(coverage.depth / 4)
+        assertEquals(coverage.depth / 4.0, downsampled.depth.toDouble(), 0.02 * coverage.depth)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testWrongFraction() {
+        singleEndCoverage().downsample(1.5)
+    }
+
+    @Test
+    fun testPairedEnd() {
+        val random = Random(42)
+        val builder = PairedEndCoverage.builder(genomeQuery)
+        repeat(5000) {
+            val pnext = random.nextInt(100000)
+            val length = 36 + random.nextInt(500)
+            builder.process(chromosome1, pnext + length - 36, pnext, 36)
+        }
+        val coverage = builder.build(unique = false)
+        val downsampled = coverage.downsample(0.5, seed = 42) as PairedEndCoverage
+        assertEquals(coverage.averageInsertSize, downsampled.averageInsertSize)
+
+        val tags = coverage.data[chromosome1]
+        val lengths = coverage.fragmentLengths!![chromosome1]
+        val pairs = (0 until tags.size()).map { tags[it] to lengths[it] }
+        val sampledTags = downsampled.data[chromosome1]
+        val sampledLengths = downsampled.fragmentLengths!![chromosome1]
+        assertEquals(sampledTags.size(), sampledLengths.size)
+        val sampledPairs = (0 until sampledTags.size()).map { sampledTags[it] to sampledLengths[it] }
+        assertTrue(pairs.containsAll(sampledPairs))
+        assertEquals(sampledTags.size(), downsampled.insertSizeHistogram!!.sum())
+    }
+
+    private fun singleEndCoverage(): SingleEndCoverage {
+        val random = Random(42)
+        val builder = SingleEndCoverage.builder(genomeQuery)
+        repeat(10000) {
+            // Plenty of duplicates to check they are sampled independently.
+            builder.putAll(chromosome1, if (random.nextBoolean()) Strand.PLUS else Strand.MINUS,
+                           random.nextInt(5000))
+        }
+        return builder.build(unique = false)
+    }
+
+    private fun TagsList.toList() = (0 until size()).map { this[it] }
+
+    companion object {
+        internal var genomeQuery: GenomeQuery = GenomeQuery(Genome["to1"])
+        internal var chromosome1: Chromosome = genomeQuery.get()[0]
+    }
+}
@@ -0,0 +1,68 @@
+package org.jetbrains.bio.genome.coverage
+
+import org.jetbrains.bio.genome.*
+import org.jetbrains.bio.util.withTempFile
+import org.junit.Test
+import kotlin.test.assertEquals
+
+class NormalizedCoverageTest {
+
+    @Test
+    fun testFoldEnrichment() {
+        val normalized = NormalizedCoverage.of(
+                treatment(), control(), 10, NormalizedCoverage.Method.FOLD_ENRICHMENT, pseudoCount = 1.0
+        )
+        val values = normalized[chromosome1]
+        // Treatment depth is 4, control depth is 2, so control counts are doubled.
+        assertEquals((3 + 1.0) / (1 * 2 + 1.0), values[0], 1e-10)
+        assertEquals((1 + 1.0) / (0 * 2 + 1.0), values[1], 1e-10)
+        assertEquals((0 + 1.0) / (1 * 2 + 1.0), values[2], 1e-10)
+        assertEquals(1.0, values[3], 1e-10)
+    }
+
+    @Test
+    fun testLogRatio() {
+        val fold = NormalizedCoverage.of(
+                treatment(), control(), 10, NormalizedCoverage.Method.FOLD_ENRICHMENT, pseudoCount = 0.5
+        )
+        val logRatio = NormalizedCoverage.of(
+                treatment(), control(), 10, NormalizedCoverage.Method.LOG_RATIO, pseudoCount = 0.5
+        )
+        for (i in 0 until 5) {
+            assertEquals(Math.log(fold[chromosome1][i]) / Math.log(2.0), logRatio[chromosome1][i], 1e-10)
+        }
+    }
+
+    @Test
+    fun testSerialization() {
+        val normalized = NormalizedCoverage.of(treatment(), control(), 10)
+        withTempFile("normalized", ".npz") { path ->
+            normalized.save(path)
+            val loaded = NormalizedCoverage.load(path, genomeQuery)
+            assertEquals(normalized.binSize, loaded.binSize)
+            assertEquals(normalized.method, loaded.method)
+            assertEquals(normalized.pseudoCount, loaded.pseudoCount)
+            for (chromosome in genomeQuery.get()) {
+                assertEquals(normalized[chromosome], loaded[chromosome])
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testZeroPseudoCount() {
+        NormalizedCoverage.of(treatment(), control(), 10, pseudoCount = 0.0)
+    }
+
+    private fun treatment() = SingleEndCoverage.builder(genomeQuery)
+            .putAll(chromosome1, Strand.PLUS, 1, 2, 3, 15)
+            .build(unique = false).withFragment(0)
+
+    private fun control() = SingleEndCoverage.builder(genomeQuery)
+            .putAll(chromosome1, Strand.PLUS, 5, 25)
+            .build(unique = false).withFragment(0)
+
+    companion object {
+        internal var genomeQuery: GenomeQuery = GenomeQuery(Genome["to1"])
+        internal var chromosome1: Chromosome = genomeQuery.get()[0]
+    }
+}
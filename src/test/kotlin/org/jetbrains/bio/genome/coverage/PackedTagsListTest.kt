@@ -0,0 +1,81 @@
+package org.jetbrains.bio.genome.coverage
+
+import gnu.trove.list.array.TIntArrayList
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class PackedTagsListTest {
+
+    @Test
+    fun empty() {
+        val packed = PackedTagsList.pack(TIntArrayList().asTagsList())
+        assertEquals(0, packed.size())
+        assertEquals(0, packed.binarySearchLeft(42))
+        assertEquals(0, packed.count(0, 100))
+    }
+
+    @Test
+    fun sameAsHeap() {
+        val random = Random(42)
+        for (size in intArrayOf(1, 127, 128, 129, 1000, 100000)) {
+            val values = IntArray(size) { random.nextInt(size * 100) }.sortedArray()
+            val heap = TIntArrayList.wrap(values).asTagsList()
+            val packed = PackedTagsList.pack(heap)
+            assertEquals(heap, packed)
+            assertArrayEquals(values, packed.toArray())
+            repeat(1000) {
+                val target = random.nextInt(size * 100 + 2) - 1
+                assertEquals(heap.binarySearchLeft(target), packed.binarySearchLeft(target))
+                val end = target + random.nextInt(1000)
+                assertEquals(heap.count(target, end), packed.count(target, end))
+            }
+        }
+    }
+
+    @Test
+    fun duplicates() {
+        val values = intArrayOf(1, 1, 1, 5, 5, 5, 5, 9)
+        val packed = PackedTagsList.pack(TIntArrayList.wrap(values).asTagsList())
+        assertArrayEquals(values, packed.toArray())
+        assertEquals(3, packed.binarySearchLeft(5))
+        assertEquals(4, packed.count(5, 6))
+    }
+
+    @Test
+    fun extremeValues() {
+        val values = intArrayOf(Int.MIN_VALUE, -1, 0, 1, Int.MAX_VALUE)
+        val packed = PackedTagsList.pack(TIntArrayList.wrap(values).asTagsList())
+        assertArrayEquals(values, packed.toArray())
+        assertEquals(2, packed.binarySearchLeft(0))
+    }
+
+    @Test
+    fun serialization() {
+        val random = Random(42)
+        val values = IntArray(10000) { random.nextInt(1000000) }.sortedArray()
+        val packed = PackedTagsList.pack(TIntArrayList.wrap(values).asTagsList())
+        assertEquals(packed, PackedTagsList.read(packed.toIntArray()))
+    }
+
+    @Test
+    fun compression() {
+        val random = Random(42)
+        // ~1 tag per 100bp, i.e. a rather deep library.
+        val values = IntArray(1000000) { random.nextInt(100000000) }.sortedArray()
+        val packed = PackedTagsList.pack(TIntArrayList.wrap(values).asTagsList())
+        assertTrue(packed.bytes() * 2 < values.size * Integer.BYTES.toLong())
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun unsorted() {
+        PackedTagsList.pack(TIntArrayList(intArrayOf(1, 3, 2)).asTagsList())
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun malformed() {
+        PackedTagsList.read(intArrayOf(1000, 1))
+    }
+}
@@ -1,13 +1,18 @@
 package org.jetbrains.bio.genome.coverage
 
 import org.jetbrains.bio.Tests.assertIn
+import org.jetbrains.bio.Tests.assertIs
 import org.jetbrains.bio.Tests.assertNotIn
+import kotlinx.support.jdk7.use
 import org.jetbrains.bio.genome.*
+import org.jetbrains.bio.npy.NpzFile
 import org.jetbrains.bio.util.withTempFile
 import org.junit.Assert
 import org.junit.Test
+import java.util.*
 import kotlin.test.assertEquals
 import kotlin.test.assertNotNull
+import kotlin.test.assertNull
 import kotlin.test.fail
 
 class PairedEndCoverageTest {
@@ -174,6 +179,20 @@ class PairedEndCoverageTest {
         )
     }
 
+    @Test
+    fun testBatchCoverage() {
+        val coverage = PairedEndCoverage.builder(genomeQuery)
+                .putAll(chromosome1, 5, 13, 23, 1, 111, 7, 4, 5, 50)
+                .build(unique = false)
+        val starts = intArrayOf(0, 5, 5, 10, 30, 100)
+        val ends = intArrayOf(5, 5, 50, 55, 60, 200)
+        val out = IntArray(starts.size)
+        coverage.getCoverage(chromosome1, Strand.PLUS, starts, ends, out)
+        Assert.assertArrayEquals(intArrayOf(2, 0, 5, 3, 1, 1), out)
+        coverage.getCoverage(chromosome1, Strand.MINUS, starts, ends, out)
+        Assert.assertArrayEquals(IntArray(starts.size), out)
+    }
+
     @Test
     fun testSerialization() {
         val coverage = generateCoverage()
@@ -186,6 +205,161 @@ class PairedEndCoverageTest {
         }
     }
 
+    @Test
+    fun testMappedSerialization() {
+        val coverage = generateCoverage()
+        withTempFile("coverage", ".cov") { coveragePath ->
+            coverage.save(coveragePath)
+            val loaded = Coverage.load(coveragePath, genomeQuery, mapped = true)
+            assertEquals(PairedEndCoverage::class.java, loaded::class.java)
+            assertEquals(coverage.data, (loaded as PairedEndCoverage).data)
+            for (chromosome in genomeQuery.get()) {
+                assertIs(loaded.data[chromosome], MappedTagsList::class.java)
+                val range = ChromosomeRange(100, 500, chromosome)
+                assertEquals(coverage.getBothStrandsCoverage(range), loaded.getBothStrandsCoverage(range))
+            }
+        }
+    }
+
+    @Test
+    fun testPackedSerialization() {
+        val coverage = generateCoverage()
+        withTempFile("coverage", ".cov") { coveragePath ->
+            coverage.save(coveragePath, packed = true)
+            val loaded = Coverage.load(coveragePath, genomeQuery)
+            assertEquals(coverage.data, (loaded as PairedEndCoverage).data)
+            for (chromosome in genomeQuery.get()) {
+                assertIs(loaded.data[chromosome], PackedTagsList::class.java)
+                val range = ChromosomeRange(100, 500, chromosome)
+                assertEquals(coverage.getBothStrandsCoverage(range), loaded.getBothStrandsCoverage(range))
+            }
+        }
+    }
+
+    @Test
+    fun testLazyLoading() {
+        val coverage = generateCoverage()
+        withTempFile("coverage", ".cov") { coveragePath ->
+            coverage.save(coveragePath)
+            val cache = ResidentTagsCache.unbounded()
+            val loaded = Coverage.load(coveragePath, genomeQuery, cache = cache) as PairedEndCoverage
+            assertEquals(coverage.depth, loaded.depth)
+            assertEquals(0L, cache.residentBytes())
+            assertEquals(coverage.data, loaded.data)
+            assertEquals(coverage.depth * Integer.BYTES, cache.residentBytes())
+        }
+    }
+
+    @Test
+    fun testFragmentPileup() {
+        val random = Random(42)
+        val fragments = ArrayList<Pair<Int, Int>>()
+        val builder = PairedEndCoverage.builder(genomeQuery)
+        repeat(5000) {
+            val pnext = random.nextInt(100000)
+            val length = 36 + random.nextInt(if (it % 100 == 0) 5000 else 500)
+            fragments.add(pnext to pnext + length)
+            builder.process(chromosome1, pnext + length - 36, pnext, 36)
+        }
+        val coverage = builder.build(unique = false)
+        repeat(1000) {
+            val start = random.nextInt(100000)
+            val end = start + 1 + random.nextInt(1000)
+            assertEquals(
+                    fragments.count { (fragmentStart, fragmentEnd) -> fragmentStart < end && fragmentEnd > start },
+                    coverage.getFragmentPileup(ChromosomeRange(start, end, chromosome1))
+            )
+        }
+        assertEquals(0, coverage.getFragmentPileup(ChromosomeRange(0, 100, chromosome2)))
+    }
+
+    @Test
+    fun testInsertSizeHistogram() {
+        val coverage = PairedEndCoverage.builder(genomeQuery)
+                .process(chromosome1, 164, 100, 36)
+                .process(chromosome1, 264, 200, 36)
+                .process(chromosome1, 400, 300, 50)
+                .process(chromosome2, 20000, 100, 50)
+                .build(unique = false)
+        val histogram = coverage.insertSizeHistogram!!
+        assertEquals(PairedEndCoverage.MAX_HISTOGRAM_INSERT_SIZE + 1, histogram.size)
+        assertEquals(2, histogram[100])
+        assertEquals(1, histogram[150])
+        assertEquals(1, histogram[PairedEndCoverage.MAX_HISTOGRAM_INSERT_SIZE])
+        assertEquals(4, histogram.sum())
+    }
+
+    @Test
+    fun testFragmentLengthsCapped() {
+        val coverage = PairedEndCoverage.builder(genomeQuery)
+                .process(chromosome1, 164, 100, 36)
+                .process(chromosome1, 5_000_000, 100, 50)
+                .build(unique = false)
+        val lengths = coverage.fragmentLengths!![chromosome1]
+        assertEquals(PairedEndCoverage.MAX_HISTOGRAM_INSERT_SIZE, lengths.max)
+        assertEquals(listOf(100, PairedEndCoverage.MAX_HISTOGRAM_INSERT_SIZE), lengths.toIntArray().sorted())
+        // The chimeric pair only spans the capped length around its midpoint.
+        assertEquals(1, coverage.getFragmentPileup(ChromosomeRange(0, 1000, chromosome1)))
+        assertEquals(1, coverage.getFragmentPileup(ChromosomeRange(2_500_000, 2_500_100, chromosome1)))
+    }
+
+    @Test
+    fun testFragmentLengthsSerialization() {
+        val coverage = generateCoverage()
+        withTempFile("coverage", ".cov") { coveragePath ->
+            coverage.save(coveragePath, packed = true)
+            for (loaded in listOf(
+                    Coverage.load(coveragePath, genomeQuery),
+                    Coverage.load(coveragePath, genomeQuery, mapped = true),
+                    Coverage.load(coveragePath, genomeQuery, cache = ResidentTagsCache(0))
+            )) {
+                loaded as PairedEndCoverage
+                Assert.assertArrayEquals(coverage.insertSizeHistogram, loaded.insertSizeHistogram)
+                for (chromosome in genomeQuery.get()) {
+                    Assert.assertArrayEquals(
+                            coverage.fragmentLengths!![chromosome].toIntArray(),
+                            loaded.fragmentLengths!![chromosome].toIntArray()
+                    )
+                    val range = ChromosomeRange(100, 500, chromosome)
+                    assertEquals(coverage.getFragmentPileup(range), loaded.getFragmentPileup(range))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testLoadVersion2() {
+        withTempFile("coverage", ".cov") { coveragePath ->
+            NpzFile.write(coveragePath).use { writer ->
+                writer.write(Coverage.VERSION_FIELD, intArrayOf(Coverage.VERSION))
+                writer.write(Coverage.PAIRED_FIELD, booleanArrayOf(true))
+                writer.write(PairedEndCoverage.PAIRED_VERSION_FIELD, intArrayOf(2))
+                writer.write(PairedEndCoverage.AVERAGE_INSERT_SIZE_FIELD, intArrayOf(150))
+                for (chromosome in genomeQuery.get()) {
+                    val tags = if (chromosome == chromosome1) intArrayOf(100, 200) else IntArray(0)
+                    writer.write(chromosome.name, tags)
+                    // Unpacked lengths, as written before version 3.
+                    writer.write(chromosome.name + "/lengths", IntArray(tags.size) { 150 })
+                }
+                writer.write(PairedEndCoverage.INSERT_SIZE_HISTOGRAM_FIELD, intArrayOf(0, 2))
+            }
+            val loaded = Coverage.load(coveragePath, genomeQuery) as PairedEndCoverage
+            assertEquals(150, loaded.averageInsertSize)
+            assertEquals(2, loaded.getBothStrandsCoverage(ChromosomeRange(0, 1000, chromosome1)))
+            assertNull(loaded.fragmentLengths)
+            assertNull(loaded.insertSizeHistogram)
+        }
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun testNoFragmentLengths() {
+        val coverage = PairedEndCoverage.builder(genomeQuery)
+                .putAll(chromosome1, 10, 20, 30)
+                .build(unique = false)
+        assertNull(coverage.insertSizeHistogram)
+        coverage.getFragmentPileup(ChromosomeRange(0, 100, chromosome1))
+    }
+
     @Test
     fun testPartialLoading() {
         val coverage = generateCoverage()
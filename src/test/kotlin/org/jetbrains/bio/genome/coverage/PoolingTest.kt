@@ -0,0 +1,118 @@
+package org.jetbrains.bio.genome.coverage
+
+import gnu.trove.list.array.TIntArrayList
+import org.jetbrains.bio.genome.*
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+class PoolingTest {
+
+    @Test
+    fun testMergeSorted() {
+        val random = Random(42)
+        val sequences = (0 until 7).map { i ->
+            IntArray(if (i == 3) 0 else random.nextInt(100)) { random.nextInt(50) - 10 }.sortedArray()
+        }
+        val merged = TIntArrayList()
+        mergeSorted(
+                IntArray(sequences.size) { sequences[it].size },
+                { sequence, index -> sequences[sequence][index].toLong() }
+        ) { sequence, index -> merged.add(sequences[sequence][index]) }
+        assertEquals(sequences.flatMap { it.toList() }.sorted(), merged.toArray().toList())
+    }
+
+    @Test
+    fun testSingleEnd() {
+        val first = SingleEndCoverage.builder(genomeQuery)
+                .putAll(chromosome1, Strand.PLUS, 1, 5, 5, 10)
+                .putAll(chromosome1, Strand.MINUS, 3)
+                .build(unique = false)
+        val second = SingleEndCoverage.builder(genomeQuery)
+                .putAll(chromosome1, Strand.PLUS, 5, 7)
+                .putAll(chromosome2, Strand.MINUS, 42)
+                .build(unique = false)
+        val pooled = pool(listOf(first, second)) as SingleEndCoverage
+        assertEquals(first.depth + second.depth, pooled.depth)
+        assertEquals(listOf(1, 5, 5, 5, 7, 10), pooled.data[chromosome1, Strand.PLUS].toList())
+        assertEquals(listOf(3), pooled.data[chromosome1, Strand.MINUS].toList())
+        assertEquals(listOf(42), pooled.data[chromosome2, Strand.MINUS].toList())
+
+        val unique = pool(listOf(first, second), unique = true) as SingleEndCoverage
+        assertEquals(listOf(1, 5, 7, 10), unique.data[chromosome1, Strand.PLUS].toList())
+    }
+
+    @Test
+    fun testSameAsBuilder() {
+        val random = Random(42)
+        val builders = (0 until 5).map { SingleEndCoverage.builder(genomeQuery) }
+        val total = SingleEndCoverage.builder(genomeQuery)
+        repeat(10000) {
+            val chromosome = if (random.nextBoolean()) chromosome1 else chromosome2
+            val strand = if (random.nextBoolean()) Strand.PLUS else Strand.MINUS
+            val offset = random.nextInt(10000)
+            builders[random.nextInt(builders.size)].putAll(chromosome, strand, offset)
+            total.putAll(chromosome, strand, offset)
+        }
+        val coverages = builders.map { it.build(unique = false) }
+        val expected = total.build(unique = true)
+        val pooled = pool(coverages, unique = true) as SingleEndCoverage
+        for (chromosome in genomeQuery.get()) {
+            for (strand in Strand.values()) {
+                assertEquals(expected.data[chromosome, strand], pooled.data[chromosome, strand])
+            }
+        }
+    }
+
+    @Test
+    fun testPairedEnd() {
+        val first = PairedEndCoverage.builder(genomeQuery)
+                .process(chromosome1, 100, 10, 20)
+                .process(chromosome1, 300, 200, 20)
+                .build(unique = false)
+        val second = PairedEndCoverage.builder(genomeQuery)
+                .process(chromosome1, 90, 10, 20)
+                .process(chromosome1, 500, 400, 20)
+                .build(unique = false)
+        val pooled = pool(listOf(first, second)) as PairedEndCoverage
+        assertEquals(listOf(60, 65, 260, 460), pooled.data[chromosome1].toList())
+        assertEquals(listOf(100, 110, 120, 120), pooled.fragmentLengths!![chromosome1].toIntArray().toList())
+        assertEquals(4, pooled.insertSizeHistogram!!.sum())
+
+        val unique = pool(listOf(first, first), unique = true) as PairedEndCoverage
+        assertEquals(first.data[chromosome1], unique.data[chromosome1])
+        assertEquals(
+                first.fragmentLengths!![chromosome1].toIntArray().toList(),
+                unique.fragmentLengths!![chromosome1].toIntArray().toList()
+        )
+    }
+
+    @Test
+    fun testPairedEndWithoutLengths() {
+        val first = PairedEndCoverage.builder(genomeQuery).putAll(chromosome1, 1, 2).build(unique = false)
+        val second = PairedEndCoverage.builder(genomeQuery)
+                .process(chromosome1, 100, 10, 20)
+                .build(unique = false)
+        val pooled = pool(listOf(first, second)) as PairedEndCoverage
+        assertEquals(listOf(1, 2, 60), pooled.data[chromosome1].toList())
+        assertNull(pooled.fragmentLengths)
+        assertNull(pooled.insertSizeHistogram)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testMixed() {
+        pool(listOf(
+                SingleEndCoverage.builder(genomeQuery).build(unique = false),
+                PairedEndCoverage.builder(genomeQuery).build(unique = false)
+        ))
+    }
+
+    private fun TagsList.toList() = (0 until size()).map { this[it] }
+
+    companion object {
+        internal var genomeQuery: GenomeQuery = GenomeQuery(Genome["to1"])
+        internal var chromosome1: Chromosome = genomeQuery.get()[0]
+        internal var chromosome2: Chromosome = genomeQuery.get()[1]
+    }
+}
@@ -3,6 +3,7 @@ package org.jetbrains.bio.genome.coverage
 import gnu.trove.list.array.TIntArrayList
 import kotlinx.support.jdk7.use
 import org.jetbrains.bio.Tests.assertIn
+import org.jetbrains.bio.Tests.assertIs
 import org.jetbrains.bio.Tests.assertNotIn
 import org.jetbrains.bio.genome.*
 import org.jetbrains.bio.genome.format.BedFormat
@@ -11,6 +12,7 @@ import org.jetbrains.bio.genome.format.toBedEntry
 import org.jetbrains.bio.util.withTempFile
 import org.junit.Assert.assertArrayEquals
 import org.junit.Test
+import java.util.*
 import kotlin.test.*
 
 class SingleEndCoverageTest {
@@ -116,6 +118,30 @@ class SingleEndCoverageTest {
         assertArrayEquals(tags, coverage.getTags(Location(5, 50, chromosome1, Strand.PLUS)))
     }
 
+    @Test
+    fun testBatchCoverage() {
+        val coverage = SingleEndCoverage.builder(genomeQuery)
+                .putAll(chromosome1, Strand.PLUS, 5, 13, 23, 1, 111, 7, 4, 5, 50)
+                .putAll(chromosome1, Strand.MINUS, 0, 20, 40, 60)
+                .build(unique = false).withFragment(10)
+        val starts = intArrayOf(0, 0, 5, 10, 10, 25, 100, 200)
+        val ends = intArrayOf(0, 10, 50, 25, 55, 60, 120, 300)
+        for (strand in Strand.values()) {
+            val out = IntArray(starts.size)
+            coverage.getCoverage(chromosome1, strand, starts, ends, out)
+            val expected = IntArray(starts.size) {
+                coverage.getCoverage(Location(starts[it], ends[it], chromosome1, strand))
+            }
+            assertArrayEquals(expected, out)
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testBatchCoverageUnsorted() {
+        val coverage = generateCoverage()
+        coverage.getCoverage(chromosome1, Strand.PLUS, intArrayOf(10, 0), intArrayOf(20, 10), IntArray(2))
+    }
+
     @Test
     fun testSerialization() {
         val builder = SingleEndCoverage.builder(genomeQuery)
@@ -139,6 +165,88 @@ class SingleEndCoverageTest {
         }
     }
 
+    @Test
+    fun testMappedSerialization() {
+        val coverage = generateCoverage()
+        withTempFile("coverage", ".cov") { coveragePath ->
+            coverage.save(coveragePath)
+            val loaded = Coverage.load(coveragePath, genomeQuery, FixedFragment(0), mapped = true)
+            assertEquals(SingleEndCoverage::class.java, loaded::class.java)
+            assertEquals(coverage.data, (loaded as SingleEndCoverage).data)
+            assertEquals(coverage.depth, loaded.depth)
+            for (chromosome in genomeQuery.get()) {
+                for (strand in Strand.values()) {
+                    assertIs(loaded.data[chromosome, strand], MappedTagsList::class.java)
+                    val location = Location(10, 30, chromosome, strand)
+                    assertEquals(coverage.getCoverage(location), loaded.getCoverage(location))
+                    assertArrayEquals(coverage.getTags(location), loaded.getTags(location))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testPackedSerialization() {
+        val coverage = generateCoverage()
+        withTempFile("coverage", ".cov") { coveragePath ->
+            coverage.save(coveragePath, packed = true)
+            for (mapped in listOf(false, true)) {
+                val loaded = Coverage.load(coveragePath, genomeQuery, FixedFragment(0), mapped = mapped)
+                assertEquals(coverage.data, (loaded as SingleEndCoverage).data)
+                for (chromosome in genomeQuery.get()) {
+                    for (strand in Strand.values()) {
+                        assertIs(loaded.data[chromosome, strand], PackedTagsList::class.java)
+                        val location = Location(10, 30, chromosome, strand)
+                        assertEquals(coverage.getCoverage(location), loaded.getCoverage(location))
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testPackedLoading() {
+        val coverage = generateCoverage()
+        withTempFile("coverage", ".cov") { coveragePath ->
+            coverage.save(coveragePath)
+            val loaded = Coverage.load(coveragePath, genomeQuery, FixedFragment(0), packed = true)
+            assertEquals(coverage.data, (loaded as SingleEndCoverage).data)
+            assertEquals(coverage.depth, loaded.depth)
+            assertIs(loaded.data[chromosome1, Strand.PLUS], PackedTagsList::class.java)
+        }
+    }
+
+    @Test
+    fun testLazyLoading() {
+        val coverage = generateCoverage()
+        for (packed in listOf(false, true)) {
+            withTempFile("coverage", ".cov") { coveragePath ->
+                coverage.save(coveragePath, packed)
+                // Only the most recently loaded list is kept.
+                val cache = ResidentTagsCache(0)
+                val loaded = Coverage.load(
+                        coveragePath, genomeQuery, FixedFragment(0), cache = cache
+                ) as SingleEndCoverage
+                assertEquals(coverage.depth, loaded.depth)
+                assertEquals(0L, cache.residentBytes())
+
+                val tags = loaded.data[chromosome1, Strand.PLUS] as LazyTagsList
+                assertFalse(tags.isResident)
+                val location = Location(10, 30, chromosome1, Strand.PLUS)
+                assertEquals(coverage.getCoverage(location), loaded.getCoverage(location))
+                assertTrue(tags.isResident)
+
+                assertEquals(coverage.data, loaded.data)
+                val other = Location(10, 30, chromosome2, Strand.MINUS)
+                assertEquals(coverage.getCoverage(other), loaded.getCoverage(other))
+                assertFalse(tags.isResident)
+                assertEquals(loaded.data[chromosome2, Strand.MINUS].bytes(), cache.residentBytes())
+                assertEquals(coverage.getCoverage(location), loaded.getCoverage(location))
+                assertTrue(tags.isResident)
+            }
+        }
+    }
+
     @Test
     fun testPartialLoading() {
         val coverage = generateCoverage()
@@ -276,6 +384,32 @@ class SingleEndCoverageTest {
         }
     }
 
+    @Test
+    fun testDetectFragmentSizeSameAsNaive() {
+        val builder = generateFragments(fragment = 180)
+        builder.build(false)
+        val naive = naiveFragmentSize(builder, 36)
+        assertEquals(180, naive)
+        assertEquals(naive, SingleEndCoverage.detectFragmentSize(builder.data, 36.0))
+    }
+
+    @Test
+    fun testDetectFragmentSizeSubsampling() {
+        val builder = generateFragments(fragment = 220)
+        val coverage = builder.build(false, fragmentSubsampling = 0.25)
+        assertEquals(220, coverage.detectedFragment)
+        // The subsample is chosen deterministically.
+        assertEquals(
+                SingleEndCoverage.detectFragmentSize(builder.data, 36.0, 0.25),
+                SingleEndCoverage.detectFragmentSize(builder.data, 36.0, 0.25)
+        )
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testDetectFragmentSizeWrongSubsampling() {
+        SingleEndCoverage.detectFragmentSize(SingleEndCoverage.builder(genomeQuery).data, 36.0, 0.0)
+    }
+
     companion object {
         internal var genomeQuery: GenomeQuery = GenomeQuery(Genome["to1"])
         internal var chromosome1: Chromosome = genomeQuery.get()[0]
@@ -292,6 +426,56 @@ class SingleEndCoverageTest {
 
             return builder.build(false).withFragment(0)
         }
+
+        /**
+         * Generates fragments of a given length with 36bp reads on both ends
+         * and some uniformly distributed noise.
+         */
+        private fun generateFragments(fragment: Int): SingleEndCoverage.Builder {
+            val random = Random(42)
+            val builder = SingleEndCoverage.builder(genomeQuery)
+            for (chromosome in genomeQuery.get()) {
+                val length = Math.min(chromosome.length, 1000000)
+                repeat(2000) {
+                    val start = random.nextInt(length - fragment)
+                    builder.process(Location(start, start + 36, chromosome, Strand.PLUS))
+                    builder.process(Location(start + fragment - 36, start + fragment, chromosome, Strand.MINUS))
+                }
+                repeat(2000) {
+                    val start = random.nextInt(length - 36)
+                    val strand = if (random.nextBoolean()) Strand.PLUS else Strand.MINUS
+                    builder.process(Location(start, start + 36, chromosome, strand))
+                }
+            }
+            return builder
+        }
+
+        /**
+         * Straightforward fragment size estimation, which computes
+         * the cross-correlation for each candidate separately.
+         */
+        private fun naiveFragmentSize(builder: SingleEndCoverage.Builder, readLength: Int): Int {
+            val transforms = DoubleArray(500 - readLength + 1)
+            for (chromosome in genomeQuery.get()) {
+                val positive = builder.data[chromosome, Strand.PLUS].toArray().toSet()
+                val negative = builder.data[chromosome, Strand.MINUS].toArray().toSet()
+                if (positive.isEmpty() || negative.isEmpty()) {
+                    continue
+                }
+                val length = chromosome.length.toDouble()
+                val coefficient = (builder.data[chromosome, Strand.PLUS].size() +
+                        builder.data[chromosome, Strand.MINUS].size()) * length /
+                        Math.sqrt(builder.data[chromosome, Strand.PLUS].size() *
+                                (length - builder.data[chromosome, Strand.PLUS].size()) *
+                                builder.data[chromosome, Strand.MINUS].size() *
+                                (length - builder.data[chromosome, Strand.MINUS].size()))
+                for (i in transforms.indices) {
+                    val matched = positive.count { it + readLength + i in negative }
+                    transforms[i] += matched * coefficient
+                }
+            }
+            return readLength + transforms.indices.maxBy { transforms[it] }!!
+        }
     }
 }
 
@@ -0,0 +1,67 @@
+package org.jetbrains.bio.genome.coverage
+
+import org.jetbrains.bio.genome.Genome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.Location
+import org.jetbrains.bio.genome.Strand
+import org.jetbrains.bio.util.withTempDirectory
+import org.jetbrains.bio.util.withTempFile
+import org.junit.Test
+import java.nio.file.Files
+import java.util.*
+import kotlin.test.assertEquals
+
+class SpillingSingleEndCoverageBuilderTest {
+
+    @Test
+    fun testSameAsInMemory() = checkSameAsInMemory(unique = false)
+
+    @Test
+    fun testSameAsInMemoryUnique() = checkSameAsInMemory(unique = true)
+
+    @Test
+    fun testEmpty() {
+        withTempFile("coverage", ".npz") { path ->
+            SingleEndCoverage.spillingBuilder(genomeQuery, 1024).save(false, path)
+            val loaded = Coverage.load(path, genomeQuery) as SingleEndCoverage
+            assertEquals(0L, loaded.depth)
+            assertEquals(0, loaded.detectedFragment)
+        }
+    }
+
+    private fun checkSameAsInMemory(unique: Boolean) {
+        val reads = generateReads()
+        val expected = SingleEndCoverage.builder(genomeQuery).apply {
+            reads.forEach { process(it) }
+        }.build(unique)
+
+        withTempDirectory("spill") { spillDirectory ->
+            withTempFile("coverage", ".npz") { path ->
+                // A tiny budget forces dozens of spills.
+                SingleEndCoverage.spillingBuilder(genomeQuery, 4096, spillDirectory).apply {
+                    reads.forEach { process(it) }
+                }.save(unique, path)
+
+                val loaded = Coverage.load(path, genomeQuery) as SingleEndCoverage
+                assertEquals(expected.detectedFragment, loaded.detectedFragment)
+                assertEquals(expected.data, loaded.data)
+                assertEquals(0L, Files.list(spillDirectory).count())
+            }
+        }
+    }
+
+    private fun generateReads(): List<Location> {
+        val random = Random(42)
+        return genomeQuery.get().flatMap { chromosome ->
+            (0 until 5000).map {
+                val start = random.nextInt(Math.min(chromosome.length, 100000) - 100)
+                val strand = if (random.nextBoolean()) Strand.PLUS else Strand.MINUS
+                Location(start, start + 36, chromosome, strand)
+            }
+        }
+    }
+
+    companion object {
+        internal var genomeQuery: GenomeQuery = GenomeQuery(Genome["to1"])
+    }
+}
@@ -0,0 +1,90 @@
+package org.jetbrains.bio.genome.coverage
+
+import gnu.trove.list.array.TIntArrayList
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class TagsArrayListTest {
+
+    @Test
+    fun radixSortRandom() {
+        val random = Random(42)
+        for (size in intArrayOf(0, 1, 100, 5000, 100000)) {
+            val values = IntArray(size) { random.nextInt() }
+            val expected = values.sortedArray()
+            radixSort(values, size)
+            assertArrayEquals(expected, values)
+        }
+    }
+
+    @Test
+    fun radixSortPrefix() {
+        val random = Random(42)
+        val values = IntArray(10000) { random.nextInt(1000) - 500 }
+        val size = 5000
+        val expected = values.copyOf(size).sortedArray()
+        val tail = values.copyOfRange(size, values.size)
+        radixSort(values, size)
+        assertArrayEquals(expected, values.copyOf(size))
+        assertArrayEquals(tail, values.copyOfRange(size, values.size))
+    }
+
+    @Test
+    fun sortTags() {
+        val random = Random(42)
+        val values = IntArray(10000) { random.nextInt(2000) }
+        val tags = TagsArrayList().apply { add(values) }
+        val sorted = tags.sortTags(unique = false)
+        assertArrayEquals(values.sortedArray(), sorted.toArray())
+
+        val unique = TagsArrayList().apply { add(values) }.sortTags(unique = true)
+        assertArrayEquals(values.distinct().sorted().toIntArray(), unique.toArray())
+    }
+
+    @Test
+    fun sortForeignTags() {
+        val tags = TIntArrayList(intArrayOf(5, 3, 3, 1, 5))
+        assertArrayEquals(intArrayOf(1, 3, 5), tags.sortTags(unique = true).toArray())
+        // The original list is left untouched.
+        assertEquals(5, tags.size())
+    }
+
+    @Test
+    fun removeDuplicates() {
+        val tags = TagsArrayList().apply { add(intArrayOf(1, 1, 1, 2, 3, 3, 4, 5, 5)) }
+        tags.removeDuplicates()
+        assertArrayEquals(intArrayOf(1, 2, 3, 4, 5), tags.toArray())
+    }
+
+    @Test
+    fun radixSortSatellite() {
+        val random = Random(42)
+        for (size in intArrayOf(0, 1, 100, 100000)) {
+            val values = IntArray(size) { random.nextInt(size / 2 + 1) - size / 4 }
+            val tags = TagsArrayList().apply { add(values) }
+            // Each satellite value is the original index of its tag.
+            val satellite = TagsArrayList().apply { add(IntArray(size) { it }) }
+            tags.radixSort(satellite)
+            assertArrayEquals(values.sortedArray(), tags.toArray())
+            for (i in 0 until size) {
+                assertEquals(values[satellite[i]], tags[i])
+                // The sort is stable.
+                if (i > 0 && tags[i] == tags[i - 1]) {
+                    assertTrue(satellite[i] > satellite[i - 1])
+                }
+            }
+        }
+    }
+
+    @Test
+    fun removeDuplicatesSatellite() {
+        val tags = TagsArrayList().apply { add(intArrayOf(1, 1, 1, 2, 3, 3, 4, 5, 5)) }
+        val satellite = TagsArrayList().apply { add(intArrayOf(7, 3, 5, 1, 4, 2, 9, 6, 8)) }
+        tags.removeDuplicates(satellite)
+        assertArrayEquals(intArrayOf(1, 2, 3, 4, 5), tags.toArray())
+        assertArrayEquals(intArrayOf(3, 1, 2, 9, 6), satellite.toArray())
+    }
+}
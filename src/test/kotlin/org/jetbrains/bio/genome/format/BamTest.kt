@@ -0,0 +1,187 @@
+package org.jetbrains.bio.genome.format
+
+import htsjdk.samtools.BAMIndexer
+import htsjdk.samtools.SamReaderFactory
+import htsjdk.samtools.ValidationStringency
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.genome.Genome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.Location
+import org.jetbrains.bio.genome.Strand
+import org.jetbrains.bio.genome.containers.LocationsMergingList
+import org.jetbrains.bio.genome.coverage.SingleEndCoverage
+import org.jetbrains.bio.util.withResource
+import org.junit.Test
+import java.io.File
+import java.nio.file.Path
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class BamTest {
+
+    @Test
+    fun testParallelWithoutIndex() {
+        withResource(BamTest::class.java, "single_end.bam") { path ->
+            assertEquals(readSequentially(path), readInParallel(path))
+        }
+    }
+
+    @Test
+    fun testParallelWithIndex() {
+        withResource(BamTest::class.java, "single_end.bam") { path ->
+            index(path)
+            val expected = readSequentially(path)
+            assertTrue(expected.isNotEmpty())
+            assertEquals(expected, readInParallel(path))
+        }
+    }
+
+    @Test
+    fun testPairedParallelWithIndex() {
+        withResource(BamTest::class.java, "paired_end.bam") { path ->
+            index(path)
+            val expected = ArrayList<List<Any>>()
+            val expectedUnpaired = processPairedReads(TO, path) { chr, pos, pnext, len ->
+                expected.add(listOf(chr, pos, pnext, len))
+            }
+            val actual = Collections.synchronizedList(ArrayList<List<Any>>())
+            val actualUnpaired = processPairedReads(TO, path, parallel = true) { chr, pos, pnext, len ->
+                actual.add(listOf(chr, pos, pnext, len))
+            }
+            assertEquals(expectedUnpaired, actualUnpaired)
+            assertEquals(expected.groupingBy { it }.eachCount(), actual.groupingBy { it }.eachCount())
+        }
+    }
+
+    @Test
+    fun testBatches() {
+        withResource(BamTest::class.java, "single_end.bam") { path ->
+            val locations = ArrayList<Location>()
+            val mapqs = ArrayList<Int>()
+            processReadsBatches(TO, path, batchSize = 7) { batch ->
+                assertTrue(batch.size in 1..7)
+                for (i in 0 until batch.size) {
+                    locations.add(batch.toLocation(i))
+                    mapqs.add(batch.mapqs[i])
+                }
+            }
+            val expected = ArrayList<Location>()
+            processReads(TO, path) { expected.add(it) }
+            assertTrue(expected.isNotEmpty())
+            assertEquals(expected, locations)
+            assertTrue(mapqs.all { it in 1..255 })
+        }
+    }
+
+    @Test
+    fun testBatchesBed() {
+        withResource(BamTest::class.java, "bed12.bed") { path ->
+            val locations = ArrayList<Location>()
+            processReadsBatches(TO, path, batchSize = 3) { batch ->
+                for (i in 0 until batch.size) {
+                    locations.add(batch.toLocation(i))
+                    assertEquals(ReadsBatch.UNKNOWN_MAPQ, batch.mapqs[i])
+                }
+            }
+            val expected = ArrayList<Location>()
+            processReads(TO, path) { expected.add(it) }
+            assertEquals(expected, locations)
+        }
+    }
+
+    @Test
+    fun testBatchesCoverage() {
+        withResource(BamTest::class.java, "single_end.bam") { path ->
+            index(path)
+            val expected = SingleEndCoverage.builder(TO).apply {
+                processReads(TO, path) { process(it) }
+            }.build(unique = false)
+            val actual = SingleEndCoverage.builder(TO).apply {
+                processReadsBatches(TO, path, parallel = true) { process(it) }
+            }.build(unique = false)
+            assertEquals(expected.depth, actual.depth)
+            assertEquals(expected.detectedFragment, actual.detectedFragment)
+            for (chromosome in TO.get()) {
+                for (strand in Strand.values()) {
+                    assertEquals(expected.data[chromosome, strand], actual.data[chromosome, strand])
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testDeduplicate() {
+        withResource(BamTest::class.java, "single_end.bam") { path ->
+            val expected = readSequentially(removeDuplicates(path))
+            assertTrue(expected.values.sum() < readSequentially(path).values.sum())
+            assertEquals(expected, readSequentially(path, deduplicate = true))
+            index(path)
+            assertEquals(expected, readInParallel(path, deduplicate = true))
+        }
+    }
+
+    @Test
+    fun testTargets() {
+        withResource(BamTest::class.java, "single_end.bam") { path ->
+            index(path)
+            val chr1 = TO["chr1"]!!
+            val targets = LocationsMergingList.create(TO, listOf(
+                    Location(1000000, 1200000, chr1, Strand.PLUS),
+                    // Adjacent to the first one, on the other strand.
+                    Location(1200000, 1300000, chr1, Strand.MINUS),
+                    Location(3000000, 3050000, chr1, Strand.PLUS)
+            ))
+            val expected = readSequentially(path).filterKeys { location ->
+                targets.intersectsBothStrands(location)
+            }
+            assertTrue(expected.isNotEmpty())
+            assertTrue(expected.size < readSequentially(path).size)
+            assertEquals(expected, readSequentially(path, targets = targets))
+            assertEquals(expected, readInParallel(path, targets = targets))
+        }
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun testTargetsWithoutIndex() {
+        withResource(BamTest::class.java, "single_end.bam") { path ->
+            val chr1 = TO["chr1"]!!
+            readSequentially(path, targets = LocationsMergingList.create(TO, listOf(
+                    Location(1000000, 1200000, chr1, Strand.PLUS)
+            )))
+        }
+    }
+
+    private fun readSequentially(
+            path: Path,
+            deduplicate: Boolean = false,
+            targets: LocationsMergingList? = null
+    ): Map<Location, Int> {
+        val locations = ArrayList<Location>()
+        processReads(TO, path, deduplicate = deduplicate, targets = targets) { locations.add(it) }
+        return locations.groupingBy { it }.eachCount()
+    }
+
+    private fun readInParallel(
+            path: Path,
+            deduplicate: Boolean = false,
+            targets: LocationsMergingList? = null
+    ): Map<Location, Int> {
+        val locations = Collections.synchronizedList(ArrayList<Location>())
+        processReads(TO, path, parallel = true, deduplicate = deduplicate, targets = targets) { locations.add(it) }
+        return locations.groupingBy { it }.eachCount()
+    }
+
+    private fun index(path: Path) {
+        SamReaderFactory.make()
+                .validationStringency(ValidationStringency.SILENT)
+                .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+                .open(path.toFile()).use { reader ->
+                    BAMIndexer.createIndex(reader, File("$path.bai"))
+                }
+    }
+
+    companion object {
+        private val TO = GenomeQuery(Genome["to1"])
+    }
+}
@@ -0,0 +1,124 @@
+package org.jetbrains.bio.genome.format
+
+import htsjdk.samtools.util.BlockCompressedOutputStream
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.genome.Genome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.containers.LocationsList
+import org.jetbrains.bio.genome.containers.LocationsMergingList
+import org.jetbrains.bio.genome.containers.LocationsSortedList
+import org.jetbrains.bio.util.bufferedWriter
+import org.jetbrains.bio.util.inputStream
+import org.jetbrains.bio.util.withTempFile
+import org.junit.Test
+import java.nio.file.Path
+import java.util.*
+import java.util.zip.GZIPOutputStream
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class BedChunksTest {
+
+    @Test
+    fun testPlainChunks() {
+        val content = randomContent(Random(42), 10000)
+        withTempFile("test", ".bed") { path ->
+            path.toFile().writeText(content)
+            for (chunks in listOf(1, 2, 3, 7, 16)) {
+                checkChunks(path, content, chunks, expectSplit = chunks > 1)
+            }
+        }
+    }
+
+    @Test
+    fun testBgzfChunks() {
+        val content = randomContent(Random(42), 50000)
+        withTempFile("test", ".bed.gz") { path ->
+            BlockCompressedOutputStream(path.toFile()).use { it.write(content.toByteArray()) }
+            for (chunks in listOf(1, 2, 3, 7, 16)) {
+                checkChunks(path, content, chunks, expectSplit = chunks > 1)
+            }
+        }
+    }
+
+    @Test
+    fun testGzipIsNotSplit() {
+        val content = randomContent(Random(42), 10000)
+        withTempFile("test", ".bed.gz") { path ->
+            GZIPOutputStream(path.toFile().outputStream()).use { it.write(content.toByteArray()) }
+            checkChunks(path, content, 4, expectSplit = false)
+        }
+    }
+
+    @Test
+    fun testLongLines() {
+        // Lines spanning several chunks, no trailing newline.
+        val name = "x".repeat(5000)
+        val content = "chr1\t1\t2\t$name\nchr1\t3\t4\nchr1\t5\t6\t$name\nchr1\t7\t8"
+        withTempFile("test", ".bed") { path ->
+            path.toFile().writeText(content)
+            checkChunks(path, content, 16, expectSplit = true)
+        }
+    }
+
+    @Test
+    fun testLineChunkBoundaries() {
+        val content = "a\nbb\nccc\n".toByteArray()
+        // Every line belongs to the chunk its first byte is in.
+        for (split in 1 until content.size) {
+            val first = String(LineChunkInputStream(content.inputStream(), false, (split - 1).toLong()).readBytes())
+            val second = String(LineChunkInputStream(
+                    content.inputStream(split - 1, content.size - split + 1), true, Long.MAX_VALUE).readBytes())
+            assertEquals(String(content), first + second, "split at $split")
+        }
+    }
+
+    @Test
+    fun testLoadLocations() {
+        val genomeQuery = GenomeQuery(Genome["to1"])
+        val random = Random(42)
+        withTempFile("test", ".bed") { path ->
+            path.bufferedWriter().use { writer ->
+                repeat(10000) {
+                    val chromosome = genomeQuery.get()[random.nextInt(genomeQuery.get().size)]
+                    val start = random.nextInt(100000)
+                    val strand = if (random.nextBoolean()) '+' else '-'
+                    writer.write("${chromosome.name}\t$start\t${start + random.nextInt(1000)}\t.\t0\t$strand\n")
+                }
+            }
+            val format = BedFormat.auto(path)
+            assertEquals(
+                    LocationsList.load(LocationsMergingList.builder(genomeQuery), path.inputStream(), "test", format)
+                            .toList(),
+                    LocationsList.load(LocationsMergingList.builder(genomeQuery), path, format).toList()
+            )
+            assertEquals(
+                    LocationsList.load(LocationsSortedList.builder(genomeQuery), path.inputStream(), "test", format)
+                            .toList(),
+                    LocationsList.load(LocationsSortedList.builder(genomeQuery), path, format).toList()
+            )
+        }
+    }
+
+    private fun checkChunks(path: Path, content: String, chunks: Int, expectSplit: Boolean) {
+        val format = BedFormat.auto(path)
+        val lines = scanBedChunks(path, format, chunks, minChunkSize = 1000) { scanner ->
+            val lines = ArrayList<String>()
+            while (scanner.next()) {
+                lines.add(scanner.line())
+            }
+            lines
+        }
+        if (expectSplit) {
+            assertTrue(lines.size > 1, "expected several chunks")
+        } else {
+            assertEquals(1, lines.size)
+        }
+        assertEquals(content.lines().filter { it.isNotEmpty() }, lines.flatten())
+    }
+
+    private fun randomContent(random: Random, lines: Int) = (0 until lines).joinToString("\n", postfix = "\n") {
+        val start = random.nextInt(100000)
+        "chr${random.nextInt(5) + 1}\t$start\t${start + random.nextInt(1000)}\tname$it\t0\t+"
+    }
+}
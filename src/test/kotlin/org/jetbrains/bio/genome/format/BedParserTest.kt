@@ -237,6 +237,17 @@ Fields number in BED file is between 3 and 15, but was 2""")
      * The user should either provide a custom BED format, make sure that the BED file is not tricky,
      * or consider a more robust autodetection approach.
      */
+    @Test
+    fun testAutoFormatAfterLongHeader() {
+        val content = "track name=long\n" + "# comment\n".repeat(1500) +
+                "chr1\t1000\t2000\tcloneA\n" +
+                "chr1\t2000\t3000\tcloneB\n"
+
+        withBedFile(content) { path ->
+            assertEquals(BedFormat.from("bed4"), BedFormat.auto(path))
+        }
+    }
+
     @Test
     fun testTrickyBed() {
         val content = "chr1 1000 2000 cloneA 960 + 1000 5000 255,0,0 2 0,3512\n" +
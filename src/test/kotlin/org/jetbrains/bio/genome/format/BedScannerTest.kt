@@ -0,0 +1,156 @@
+package org.jetbrains.bio.genome.format
+
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.big.BedEntry
+import org.jetbrains.bio.genome.Genome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.containers.LocationsList
+import org.jetbrains.bio.genome.containers.LocationsMergingList
+import org.jetbrains.bio.genome.containers.LocationsSortedList
+import org.jetbrains.bio.util.bufferedWriter
+import org.jetbrains.bio.util.withTempFile
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+
+class BedScannerTest {
+
+    @Test
+    fun testSameAsParser() {
+        val content = "track name=test\n" +
+                "# comment\n" +
+                "chr1\t10\t20\tname1\t5\t+\textra\n" +
+                "chr2\t30\t40\tname2\t0\t-\n" +
+                "chr1\t50\t60\tname3\t1000\t.\r\n" +
+                "chr1\t  70 \t80\t\tname4\t7\t+\n" +
+                "chr1\t90\t100"
+        checkSameAsParser(content, BedFormat.from("bed6+"))
+        checkSameAsParser(content, BedFormat.from("bed3+"))
+    }
+
+    @Test
+    fun testSpaceDelimiter() {
+        val content = "chr2    127471196  127472363  Pos1  0  +  127471196  127472363  255,0,0\n" +
+                "chr2    127475864  127477031  Neg1  0  -  127475864  127477031  0,0,255"
+        checkSameAsParser(content, BedFormat.from("bed9", ' '))
+    }
+
+    @Test
+    fun testPrimitiveFields() {
+        val content = "chr1\t10\t20\tname\t5\t-\textra\tcolumns\nchrX\t-1\t2\tn\t.\t+"
+        BedScanner(content.byteInputStream(), BedFormat.from("bed6+")).use { scanner ->
+            assertEquals(true, scanner.next())
+            assertEquals("chr1", scanner.chromosome)
+            assertEquals(10, scanner.start)
+            assertEquals(20, scanner.end)
+            assertEquals(5, scanner.score)
+            assertEquals('-', scanner.strand)
+            assertEquals("name\t5\t-\textra\tcolumns", scanner.rest())
+
+            assertEquals(true, scanner.next())
+            assertEquals(1, scanner.chromosomeIndex)
+            assertEquals(-1, scanner.start)
+            assertEquals(0, scanner.score)
+            assertEquals('+', scanner.strand)
+            assertEquals(false, scanner.next())
+        }
+    }
+
+    @Test
+    fun testInterning() {
+        val random = Random(42)
+        val names = (0 until 100).map { "chr$it" }
+        val chromosomes = (0 until 10000).map { names[random.nextInt(names.size)] }
+        val content = chromosomes.joinToString("\n") { "$it\t1\t2" }
+        BedScanner(content.byteInputStream(), BedFormat.from("bed3")).use { scanner ->
+            for (chromosome in chromosomes) {
+                assertEquals(true, scanner.next())
+                assertEquals(chromosome, scanner.chromosome)
+                assertEquals(chromosome, scanner.chromosomeName(scanner.chromosomeIndex))
+            }
+            assertEquals(names.size, scanner.chromosomesCount)
+        }
+    }
+
+    @Test
+    fun testLongLines() {
+        // Lines longer than the internal buffer.
+        val name = "x".repeat(200000)
+        val content = "chr1\t1\t2\t$name\nchr1\t3\t4\t$name\n"
+        BedScanner(content.byteInputStream(), BedFormat.from("bed4")).use { scanner ->
+            assertEquals(true, scanner.next())
+            assertEquals(name, scanner.rest())
+            assertEquals(true, scanner.next())
+            assertEquals(3, scanner.start)
+            assertEquals(false, scanner.next())
+        }
+    }
+
+    @Test
+    fun testLenient() {
+        val content = "chr1\t1\t2\nchr1\tfoo\t2\nchr1\t3\n\nchr1\t99999999999\t2\nchr1\t5\t6"
+        BedScanner(content.byteInputStream(), BedFormat.from("bed3")).use { scanner ->
+            val starts = ArrayList<Int>()
+            while (scanner.next()) {
+                starts.add(scanner.start)
+            }
+            assertEquals(listOf(1, 5), starts)
+            assertEquals(4, scanner.linesFailedToParse)
+        }
+    }
+
+    @Test(expected = BedFormatException::class)
+    fun testStrict() {
+        BedScanner("chr1\tfoo\t2".byteInputStream(), BedFormat.from("bed3")).use { scanner ->
+            scanner.stringency = BedParser.Companion.Stringency.STRICT
+            scanner.next()
+        }
+    }
+
+    @Test
+    fun testLoadLocations() {
+        val genomeQuery = GenomeQuery(Genome["to1"])
+        val random = Random(42)
+        withTempFile("test", ".bed") { path ->
+            path.bufferedWriter().use { writer ->
+                repeat(10000) {
+                    val chromosome = genomeQuery.get()[random.nextInt(genomeQuery.get().size)]
+                    val start = random.nextInt(100000)
+                    val strand = if (random.nextBoolean()) '+' else '-'
+                    writer.write("${chromosome.name}\t$start\t${start + random.nextInt(1000)}\t.\t0\t$strand\n")
+                }
+                writer.write("chrUnknown\t1\t2\t.\t0\t+\n")
+            }
+            val format = BedFormat.auto(path)
+            val expected = LocationsMergingList.load(genomeQuery, path, format) { chromosome, entry, fmt ->
+                LocationsList.EXTBED_2_LOC_FUN(chromosome, entry, fmt)
+            }
+            assertEquals(
+                    expected.toList(),
+                    LocationsMergingList.load(genomeQuery, path, format).toList()
+            )
+
+            val expectedSorted = LocationsSortedList.load(genomeQuery, path, format) { chromosome, entry, fmt ->
+                LocationsList.EXTBED_2_LOC_FUN(chromosome, entry, fmt)
+            }
+            assertEquals(
+                    expectedSorted.toList(),
+                    LocationsSortedList.load(genomeQuery, path, format).toList()
+            )
+        }
+    }
+
+    private fun checkSameAsParser(content: String, format: BedFormat) {
+        val expected = format.parse(content.reader()) { parser ->
+            parser.map { listOf(it.chrom, it.start, it.end, it.rest) }
+        }
+        val actual = ArrayList<List<Any>>()
+        BedScanner(content.byteInputStream(), format).use { scanner ->
+            while (scanner.next()) {
+                val entry: BedEntry = scanner.toBedEntry()
+                actual.add(listOf(entry.chrom, entry.start, entry.end, entry.rest))
+            }
+        }
+        assertEquals(expected, actual)
+    }
+}
@@ -0,0 +1,108 @@
+package org.jetbrains.bio.genome.format
+
+import htsjdk.samtools.SamReaderFactory
+import htsjdk.samtools.ValidationStringency
+import htsjdk.samtools.util.BlockCompressedOutputStream
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.util.withResource
+import org.jetbrains.bio.util.withTempFile
+import org.junit.After
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.util.*
+import java.util.concurrent.Executors
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class BgzfTest {
+
+    private val executor = Executors.newFixedThreadPool(4)
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun testRoundTrip() {
+        // Several blocks, some of them incompressible.
+        val random = Random(42)
+        val expected = ByteArray(1 shl 20) { if (it % 3 == 0) random.nextInt().toByte() else (it % 7).toByte() }
+        withTempFile("test", ".gz") { path ->
+            BlockCompressedOutputStream(path.toFile()).use { it.write(expected) }
+            for (aheadBlocks in listOf(1, 2, 16)) {
+                val actual = ByteArrayOutputStream()
+                ParallelBgzfInputStream(Files.newInputStream(path), executor, aheadBlocks).use { stream ->
+                    val buffer = ByteArray(12345)
+                    while (true) {
+                        val count = stream.read(buffer)
+                        if (count < 0) {
+                            break
+                        }
+                        actual.write(buffer, 0, count)
+                    }
+                }
+                assertTrue(Arrays.equals(expected, actual.toByteArray()))
+            }
+        }
+    }
+
+    @Test
+    fun testSingleByteReads() {
+        val expected = "BGZF".repeat(1000).toByteArray()
+        withTempFile("test", ".gz") { path ->
+            BlockCompressedOutputStream(path.toFile()).use { it.write(expected) }
+            ParallelBgzfInputStream(Files.newInputStream(path), executor, 2).use { stream ->
+                for (b in expected) {
+                    assertEquals(b.toInt() and 0xff, stream.read())
+                }
+                assertEquals(-1, stream.read())
+            }
+        }
+    }
+
+    @Test(expected = IOException::class)
+    fun testNotBgzf() {
+        ParallelBgzfInputStream(ByteArrayInputStream("not a BGZF file".toByteArray()), executor, 2).use {
+            it.read()
+        }
+    }
+
+    @Test(expected = IOException::class)
+    fun testTruncated() {
+        withTempFile("test", ".gz") { path ->
+            BlockCompressedOutputStream(path.toFile()).use { it.write(ByteArray(100000) { it.toByte() }) }
+            val bytes = Files.readAllBytes(path)
+            val truncated = ByteArrayInputStream(bytes, 0, bytes.size / 2)
+            ParallelBgzfInputStream(truncated, executor, 2).use { stream ->
+                while (stream.read() >= 0) {
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testSingleEndRecords() = checkRecords("single_end.bam")
+
+    @Test
+    fun testPairedEndRecords() = checkRecords("paired_end.bam")
+
+    private fun checkRecords(name: String) {
+        withResource(BgzfTest::class.java, name) { path ->
+            val reader = SamReaderFactory.make()
+                    .validationStringency(ValidationStringency.SILENT)
+                    .open(path.toFile())
+            val expected = reader.use { it.map { record -> record.samString } }
+            assertTrue(expected.isNotEmpty())
+            val header = SamReaderFactory.make()
+                    .validationStringency(ValidationStringency.SILENT)
+                    .open(path.toFile()).use { it.fileHeader }
+            val actual = ArrayList<String>()
+            forEachBamRecord(path, header, threads = 4) { actual.add(it.samString) }
+            assertEquals(expected, actual)
+        }
+    }
+}
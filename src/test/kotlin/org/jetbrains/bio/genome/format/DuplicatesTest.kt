@@ -0,0 +1,129 @@
+package org.jetbrains.bio.genome.format
+
+import htsjdk.samtools.SAMRecord
+import htsjdk.samtools.SAMRecordSetBuilder
+import htsjdk.samtools.SamReaderFactory
+import htsjdk.samtools.ValidationStringency
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.util.withResource
+import org.jetbrains.bio.util.withTempDirectory
+import org.junit.Test
+import picard.sam.markduplicates.MarkDuplicates
+import java.nio.file.Path
+import kotlin.test.assertEquals
+
+class DuplicatesTest {
+
+    @Test
+    fun testFragments() {
+        val builder = SAMRecordSetBuilder()
+        builder.addFrag("a", 0, 100, false)
+        builder.addFrag("b", 0, 100, false)
+        builder.addFrag("c", 0, 100, true)
+        builder.addFrag("d", 0, 101, false)
+        // Same unclipped start as 'a'.
+        builder.addFrag("e", 0, 105, false, false, "5S31M", null, 10)
+        // Same 5' end on the negative strand, but different starts.
+        builder.addFrag("f", 0, 200, true, false, "36M", null, 30)
+        builder.addFrag("g", 0, 206, true, false, "30M", null, 30)
+        builder.addFrag("h", 1, 100, false)
+        assertEquals(listOf("a", "c", "d", "f", "h"), deduplicate(builder))
+    }
+
+    @Test
+    fun testBestQuality() {
+        val builder = SAMRecordSetBuilder()
+        builder.addFrag("a", 0, 100, false, false, "36M", null, 10)
+        builder.addFrag("b", 0, 100, false, false, "36M", null, 30)
+        builder.addFrag("c", 0, 100, false, false, "36M", null, 20)
+        assertEquals(listOf("b"), deduplicate(builder))
+    }
+
+    @Test
+    fun testPairs() {
+        val builder = SAMRecordSetBuilder()
+        builder.addPair("b", 0, 100, 300)
+        builder.addPair("a", 0, 100, 300)
+        builder.addPair("c", 0, 100, 400)
+        // A fragment is a duplicate of a pair with the same 5' end.
+        builder.addFrag("d", 0, 100, false)
+        assertEquals(listOf("a", "c", "a", "c"), deduplicate(builder))
+    }
+
+    @Test
+    fun testUnmapped() {
+        val builder = SAMRecordSetBuilder()
+        builder.addFrag("a", 0, 100, false)
+        builder.addFrag("b", 0, 100, false)
+        builder.addUnmappedFragment("c")
+        assertEquals(listOf("a", "c"), deduplicate(builder))
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun testUnsorted() {
+        val records = SAMRecordSetBuilder().apply {
+            addFrag("a", 0, 100, false)
+            addFrag("b", 0, 200, false)
+        }.toList()
+        val filter = DuplicatesFilter {}
+        filter.accept(records[1])
+        filter.accept(records[0])
+    }
+
+    @Test
+    fun testSameAsPicardSingleEnd() = checkSameAsPicard("single_end.bam")
+
+    @Test
+    fun testSameAsPicardPairedEnd() = checkSameAsPicard("paired_end.bam")
+
+    private fun deduplicate(builder: SAMRecordSetBuilder): List<String> {
+        val names = ArrayList<String>()
+        val filter = DuplicatesFilter { names.add(it.readName) }
+        builder.forEach { filter.accept(it) }
+        filter.flush()
+        return names
+    }
+
+    private fun checkSameAsPicard(name: String) {
+        withResource(DuplicatesTest::class.java, name) { path ->
+            withTempDirectory("duplicates") { dir ->
+                val picardPath = dir.resolve("picard.bam")
+                assertEquals(0, MarkDuplicates().instanceMain(arrayOf(
+                        "REMOVE_DUPLICATES=true",
+                        "VALIDATION_STRINGENCY=SILENT",
+                        "INPUT=$path",
+                        "OUTPUT=$picardPath",
+                        "M=${dir.resolve("metrics.txt")}")))
+                val expected = ArrayList<SAMRecord>()
+                read(picardPath) { expected.add(it) }
+
+                val actual = ArrayList<SAMRecord>()
+                val filter = DuplicatesFilter { actual.add(it) }
+                read(path) { filter.accept(it) }
+                filter.flush()
+
+                // Picard also marks the secondary alignments of the duplicates.
+                assertEquals(expected.primaryKeys(), actual.primaryKeys())
+            }
+        }
+    }
+
+    private fun read(path: Path, consumer: (SAMRecord) -> Unit) {
+        SamReaderFactory.make()
+                .validationStringency(ValidationStringency.SILENT)
+                .open(path.toFile()).use { reader -> reader.forEach(consumer) }
+    }
+
+    /**
+     * The duplicates may differ in everything but the 5' end and the strand,
+     * so the kept ones are compared by these.
+     */
+    private fun List<SAMRecord>.primaryKeys() = filter { !it.isSecondaryOrSupplementary }.map {
+        listOf(
+                it.referenceIndex,
+                if (it.readNegativeStrandFlag) it.unclippedEnd else it.unclippedStart,
+                it.readNegativeStrandFlag,
+                it.readUnmappedFlag
+        ).toString()
+    }.sorted()
+}
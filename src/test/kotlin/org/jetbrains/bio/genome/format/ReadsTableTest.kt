@@ -0,0 +1,96 @@
+package org.jetbrains.bio.genome.format
+
+import org.jetbrains.bio.genome.Genome
+import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.util.withResource
+import org.jetbrains.bio.util.withTempFile
+import org.junit.Test
+import java.nio.file.Path
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class ReadsTableTest {
+
+    private val genomeQuery = GenomeQuery(Genome["to1"])
+
+    @Test
+    fun testSingleEnd() {
+        withReadsTable("single_end.bam") { path, table ->
+            assertFalse(table.paired)
+            assertEquals(readLocations(path), tableLocations(table, ReadsFilter()))
+            assertEquals(
+                    readLocations(path, parallel = true),
+                    tableLocations(table, ReadsFilter(), parallel = true)
+            )
+        }
+    }
+
+    @Test
+    fun testPairedEnd() {
+        withReadsTable("paired_end.bam") { path, table ->
+            assertTrue(table.paired)
+            val expected = ArrayList<String>()
+            val expectedUnpaired = processPairedReads(genomeQuery, path) { chr, pos, pnext, len ->
+                expected.add("$chr:$pos:$pnext:$len")
+            }
+            val actual = ArrayList<String>()
+            val actualUnpaired = table.processPairedReads(genomeQuery) { chr, pos, pnext, len ->
+                actual.add("$chr:$pos:$pnext:$len")
+            }
+            assertEquals(expectedUnpaired, actualUnpaired)
+            assertEquals(expected.sorted(), actual.sorted())
+        }
+    }
+
+    @Test
+    fun testDetectedDuplicates() {
+        withReadsTable("single_end.bam") { path, table ->
+            val expected = ArrayList<String>()
+            processReads(genomeQuery, path, deduplicate = true) { expected.add(it.toString()) }
+            // The surviving duplicates are unmarked when removed in process.
+            val filter = ReadsFilter(keepMarkedDuplicates = true, removeDetectedDuplicates = true)
+            assertEquals(expected.sorted(), tableLocations(table, filter))
+        }
+    }
+
+    @Test
+    fun testFilter() {
+        withReadsTable("single_end.bam") { _, table ->
+            val all = tableLocations(table, ReadsFilter(minMapq = 0, keepMarkedDuplicates = true))
+            val default = tableLocations(table, ReadsFilter())
+            val strict = tableLocations(table, ReadsFilter(minMapq = 30))
+            assertTrue(all.containsAll(default) && default.containsAll(strict))
+            assertTrue(strict.size <= default.size && default.size <= all.size)
+        }
+    }
+
+    private fun withReadsTable(name: String, block: (Path, ReadsTable) -> Unit) {
+        withResource(ReadsTableTest::class.java, name) { path ->
+            withTempFile("reads", ".npz") { npzPath ->
+                ReadsTable.write(genomeQuery.genome, path, npzPath)
+                block(path, ReadsTable.load(npzPath, genomeQuery.genome))
+            }
+        }
+    }
+
+    private fun readLocations(path: Path, parallel: Boolean = false): List<String> {
+        val locations = ArrayList<String>()
+        processReads(genomeQuery, path, parallel) {
+            synchronized(locations) { locations.add(it.toString()) }
+        }
+        return locations.sorted()
+    }
+
+    private fun tableLocations(table: ReadsTable, filter: ReadsFilter, parallel: Boolean = false): List<String> {
+        val locations = ArrayList<String>()
+        table.processReadsBatches(genomeQuery, parallel, filter = filter) { batch ->
+            synchronized(locations) {
+                for (i in 0 until batch.size) {
+                    locations.add(batch.toLocation(i).toString())
+                }
+            }
+        }
+        return locations.sorted()
+    }
+}
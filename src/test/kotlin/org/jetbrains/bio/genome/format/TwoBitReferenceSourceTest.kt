@@ -0,0 +1,109 @@
+package org.jetbrains.bio.genome.format
+
+import htsjdk.samtools.CRAMFileWriter
+import htsjdk.samtools.SAMFileHeader
+import htsjdk.samtools.SAMRecord
+import htsjdk.samtools.SAMSequenceDictionary
+import htsjdk.samtools.SAMSequenceRecord
+import htsjdk.samtools.SamReaderFactory
+import htsjdk.samtools.ValidationStringency
+import kotlinx.support.jdk7.use
+import org.jetbrains.bio.util.withTempDirectory
+import org.junit.Test
+import java.nio.file.Path
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+class TwoBitReferenceSourceTest {
+
+    @Test
+    fun testBases() {
+        withTwoBit { path, sequences ->
+            val source = TwoBitReferenceSource(path)
+            for ((name, sequence) in sequences) {
+                val bases = source.getReferenceBases(SAMSequenceRecord(name, sequence.length), false)
+                assertEquals(sequence.toUpperCase(), String(bases!!))
+            }
+        }
+    }
+
+    @Test
+    fun testNameVariants() {
+        withTwoBit { path, sequences ->
+            val source = TwoBitReferenceSource(path)
+            assertNull(source.getReferenceBases(SAMSequenceRecord("1", 1), false))
+            assertEquals(
+                    sequences["chr1"]!!.toUpperCase(),
+                    String(source.getReferenceBases(SAMSequenceRecord("1", 1), true)!!)
+            )
+            assertEquals(
+                    sequences["chrM"]!!.toUpperCase(),
+                    String(source.getReferenceBases(SAMSequenceRecord("MT", 1), true)!!)
+            )
+            assertNull(source.getReferenceBases(SAMSequenceRecord("chr2", 1), true))
+        }
+    }
+
+    @Test
+    fun testCram() {
+        withTwoBit { path, sequences ->
+            val source = TwoBitReferenceSource(path)
+            val reference = sequences["chr1"]!!.toUpperCase()
+            val header = SAMFileHeader().apply {
+                sequenceDictionary = SAMSequenceDictionary(sequences.map { (name, sequence) ->
+                    SAMSequenceRecord(name, sequence.length)
+                })
+                sortOrder = SAMFileHeader.SortOrder.coordinate
+            }
+            val random = Random(42)
+            val records = (0 until 50).map { random.nextInt(reference.length - READ_LENGTH) }.sorted()
+                    .mapIndexed { i, start ->
+                        val bases = reference.substring(start, start + READ_LENGTH).toCharArray()
+                        // A mismatch to be stored as a substitution.
+                        bases[i % READ_LENGTH] = if (bases[i % READ_LENGTH] == 'A') 'C' else 'A'
+                        SAMRecord(header).apply {
+                            readName = "read$i"
+                            referenceName = "chr1"
+                            alignmentStart = start + 1
+                            cigarString = "${READ_LENGTH}M"
+                            readString = String(bases)
+                            baseQualityString = "I".repeat(READ_LENGTH)
+                            mappingQuality = 60
+                        }
+                    }
+
+            val cramPath = path.resolveSibling("reads.cram")
+            CRAMFileWriter(cramPath.toFile().outputStream(), source, header, cramPath.toString()).use { writer ->
+                records.forEach { writer.addAlignment(it) }
+            }
+            val actual = SamReaderFactory.make()
+                    .validationStringency(ValidationStringency.SILENT)
+                    .referenceSource(TwoBitReferenceSource(path))
+                    .open(cramPath.toFile()).use { reader ->
+                        reader.map { "${it.alignmentStart}:${it.readString}" }
+                    }
+            assertEquals(records.map { "${it.alignmentStart}:${it.readString}" }, actual)
+        }
+    }
+
+    private fun withTwoBit(block: (Path, Map<String, String>) -> Unit) {
+        val random = Random(42)
+        val sequences = linkedMapOf(
+                // Not a multiple of 4, with an N-block in the middle.
+                "chr1" to random.nextString("acgt", 500) + "n".repeat(13) + random.nextString("ACGT", 490),
+                "chrM" to random.nextString("ACGT", 17) + "NN"
+        )
+        withTempDirectory("twobit") { dir ->
+            val fastaPath = dir.resolve("sequences.fa")
+            val twoBitPath = dir.resolve("sequences.2bit")
+            sequences.map { (name, sequence) -> FastaRecord(name, sequence) }.write(fastaPath)
+            TwoBitWriter.convert(fastaPath, twoBitPath)
+            block(twoBitPath, sequences)
+        }
+    }
+
+    companion object {
+        private const val READ_LENGTH = 36
+    }
+}
@@ -1,18 +1,33 @@
 package org.jetbrains.bio.genome.query
 
+import htsjdk.samtools.BAMIndexer
+import htsjdk.samtools.SamReaderFactory
+import htsjdk.samtools.ValidationStringency
+import kotlinx.support.jdk7.use
 import org.jetbrains.bio.Tests.assertIn
 import org.jetbrains.bio.Tests.assertIs
 import org.jetbrains.bio.genome.Genome
 import org.jetbrains.bio.genome.GenomeQuery
+import org.jetbrains.bio.genome.Location
+import org.jetbrains.bio.genome.Strand
+import org.jetbrains.bio.genome.containers.LocationsMergingList
 import org.jetbrains.bio.genome.coverage.AutoFragment
 import org.jetbrains.bio.genome.coverage.FixedFragment
+import org.jetbrains.bio.genome.coverage.LazyTagsList
+import org.jetbrains.bio.genome.coverage.NormalizedCoverage
 import org.jetbrains.bio.genome.coverage.PairedEndCoverage
+import org.jetbrains.bio.genome.coverage.ResidentTagsCache
 import org.jetbrains.bio.genome.coverage.SingleEndCoverage
 import org.jetbrains.bio.genome.format.processPairedReads
+import org.jetbrains.bio.genome.format.processReads
 import org.jetbrains.bio.util.*
 import org.junit.Test
+import java.io.File
+import java.nio.file.Path
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
+import kotlin.test.assertNotEquals
+import kotlin.test.assertTrue
 
 /**
  * @author Oleg Shpynov
@@ -84,6 +99,17 @@ class ReadsQueryTest {
         }
     }
 
+    @Test
+    fun testLoadWithCache() {
+        withResource(ReadsQueryTest::class.java, "single_end.bam") { path ->
+            val chr1 = TO["chr1"]!!
+            val cache = ResidentTagsCache(0)
+            val coverage = ReadsQuery(TO, path, false, cache = cache).get() as SingleEndCoverage
+            assertIs(coverage.data[chr1, Strand.PLUS], LazyTagsList::class.java)
+            assertEquals(SINGLE_END_BAM_READS, coverage.getBothStrandsCoverage(chr1.range.on(chr1)))
+        }
+    }
+
     @Test
     fun testSingleEndLoggingDefault() {
         withResource(ReadsQueryTest::class.java, "single_end.bam") { path ->
@@ -194,10 +220,91 @@ class ReadsQueryTest {
         }
     }
 
+    @Test
+    fun testNormalizedCoverage() {
+        withResource(ReadsQueryTest::class.java, "single_end.bam") { treatmentPath ->
+            withResource(ReadsQueryTest::class.java, "paired_end.bam") { controlPath ->
+                val genomeQuery = GenomeQuery(Genome["to1"])
+                val treatment = ReadsQuery(genomeQuery, treatmentPath, false)
+                val control = ReadsQuery(genomeQuery, controlPath, false, fragment = FixedFragment(0))
+                val normalized = treatment.normalizedCoverage(control, 1000)
+                assertTrue(treatment.normalizedNpzPath(
+                        control, 1000, NormalizedCoverage.Method.LOG_RATIO, 1.0
+                ).exists)
+                val expected = NormalizedCoverage.of(treatment.get(), control.get(), 1000)
+                val chr1 = genomeQuery["chr1"]!!
+                assertEquals(expected[chr1], normalized[chr1])
+                // Different settings shouldn't reuse the cache file.
+                val fold = treatment.normalizedCoverage(control, 1000, NormalizedCoverage.Method.FOLD_ENRICHMENT)
+                assertEquals(NormalizedCoverage.Method.FOLD_ENRICHMENT, fold.method)
+            }
+        }
+    }
+
     /**
      * We've had troubles with cache file reuse (see issue #1). This test checks that
      * the cache file is not reused when not appropriate.
      */
+    @Test
+    fun testTargetedCoverage() {
+        withResource(ReadsQueryTest::class.java, "single_end.bam") { path ->
+            index(path)
+            val chr1 = TO["chr1"]!!
+            val targets = LocationsMergingList.create(TO, listOf(Location(1000000, 3000000, chr1)))
+            val otherTargets = LocationsMergingList.create(TO, listOf(Location(1000000, 2000000, chr1)))
+            val targeted = ReadsQuery(TO, path, false, targets = targets)
+            val other = ReadsQuery(TO, path, false, targets = otherTargets)
+            assertNotEquals(targeted.npzPath(), ReadsQuery(TO, path, false).npzPath())
+            assertNotEquals(targeted.npzPath(), other.npzPath())
+
+            val coverage = targeted.get()
+            val depth = coverage.getBothStrandsCoverage(Location(1000000, 3000000, chr1).toChromosomeRange())
+            assertTrue(depth > 0)
+            assertTrue(coverage.depth < SINGLE_END_BAM_READS)
+            assertTrue(other.get().depth < coverage.depth)
+        }
+    }
+
+    @Test
+    fun testTargetedCoverageNearTarget() {
+        withResource(ReadsQueryTest::class.java, "single_end.bam") { path ->
+            index(path)
+            val reads = ArrayList<Location>()
+            processReads(TO, path) { reads.add(it) }
+            // The read ends just before the target, while its fragment reaches into it.
+            val read = reads.first { it.strand == Strand.PLUS && it.startOffset > 1000000 }
+            val chr1 = read.chromosome
+            val target = Location(read.endOffset, read.endOffset + 10000, chr1)
+            val fragment = FixedFragment(2 * (read.length() + 50))
+            val full = ReadsQuery(TO, path, false, fragment).get()
+            val targeted = ReadsQuery(
+                    TO, path, false, fragment, targets = LocationsMergingList.create(TO, listOf(target))
+            ).get()
+            assertTrue(targeted.getCoverage(Location(read.endOffset, read.endOffset + 100, chr1)) > 0)
+            assertEquals(
+                    full.getBothStrandsCoverage(target.toChromosomeRange()),
+                    targeted.getBothStrandsCoverage(target.toChromosomeRange())
+            )
+        }
+    }
+
+    @Test
+    fun testCacheReads() {
+        withResource(ReadsQueryTest::class.java, "single_end.bam") { path ->
+            val chr1 = TO["chr1"]!!
+            val streamed = ReadsQuery(TO, path, false)
+            streamed.readsTablePath().deleteIfExists()
+            streamed.npzPath().deleteIfExists()
+            val expected = streamed.coverage().getBothStrandsCoverage(chr1.range.on(chr1))
+            assertFalse(streamed.readsTablePath().exists)
+
+            val cached = ReadsQuery(TO, path, false, cacheReads = true)
+            cached.npzPath().deleteIfExists()
+            assertEquals(expected, cached.coverage().getBothStrandsCoverage(chr1.range.on(chr1)))
+            assertTrue(cached.readsTablePath().exists)
+        }
+    }
+
     @Test
     fun testLoadPairedEndBamAsPairedEndThenSingleEnd() {
         withResource(ReadsQueryTest::class.java, "paired_end.bam") { path ->
@@ -211,4 +318,12 @@ class ReadsQueryTest {
         }
     }
 
-}
\ No newline at end of file
+    private fun index(path: Path) {
+        SamReaderFactory.make()
+                .validationStringency(ValidationStringency.SILENT)
+                .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+                .open(path.toFile()).use { reader ->
+                    BAMIndexer.createIndex(reader, File("$path.bai"))
+                }
+    }
+}